@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.compiler;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a streaming Gson TypeAdapter for every class annotated with LobModel. The adapter for
+ * {@code com.example.User} is {@code com.example.User$$LobAdapter}; AdapterRegistry finds it by
+ * that name.
+ *
+ * Primitives and Strings are read and written inline. Every other field type goes through the
+ * adapter Gson has for it, which for another LobModel is its generated adapter.
+ */
+public class LobProcessor extends AbstractProcessor {
+    private final static String LOB_MODEL = "org.dforsyth.android.lob.adapters.LobModel";
+    private final static String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+    private final static String ADAPTER_SUFFIX = "$$LobAdapter";
+
+    /**
+     * A serialized field of a model
+     */
+    private static class Field {
+        final String mName;
+        final String mJsonName;
+        final TypeMirror mType;
+
+        Field(String name, String jsonName, TypeMirror type) {
+            mName = name;
+            mJsonName = jsonName;
+            mType = type;
+        }
+
+        boolean isInline() {
+            switch (mType.getKind()) {
+                case BOOLEAN:
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                case FLOAT:
+                case DOUBLE:
+                    return true;
+                case DECLARED:
+                    return "java.lang.String".equals(mType.toString());
+                default:
+                    return false;
+            }
+        }
+
+        String boxedType() {
+            switch (mType.getKind()) {
+                case CHAR:
+                    return "java.lang.Character";
+                default:
+                    return mType.toString();
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(LOB_MODEL);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@LobModel only applies to classes");
+                    continue;
+                }
+
+                TypeElement model = (TypeElement) element;
+                List<Field> fields = collectFields(model);
+                if (fields == null || !checkModel(model)) {
+                    continue;
+                }
+
+                try {
+                    write(model, fields);
+                } catch (IOException e) {
+                    error(model, "Unable to write adapter: " + e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private boolean checkModel(TypeElement model) {
+        Set<Modifier> modifiers = model.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.ABSTRACT)) {
+            error(model, "@LobModel classes must not be private or abstract");
+            return false;
+        }
+
+        if (model.getNestingKind().isNested() && !modifiers.contains(Modifier.STATIC)) {
+            error(model, "Nested @LobModel classes must be static");
+            return false;
+        }
+
+        if (!model.getTypeParameters().isEmpty()) {
+            error(model, "@LobModel classes must not be generic");
+            return false;
+        }
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(model.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+
+        error(model, "@LobModel classes need a non-private no-arg constructor");
+        return false;
+    }
+
+    /**
+     * @return The fields Gson would serialize, in the order it writes them, or null if one of them
+     *         can't be reached from the generated adapter
+     */
+    private List<Field> collectFields(TypeElement model) {
+        PackageElement modelPackage = processingEnv.getElementUtils().getPackageOf(model);
+
+        List<TypeElement> hierarchy = new ArrayList<>();
+        TypeElement type = model;
+        while (type != null && !"java.lang.Object".equals(type.getQualifiedName().toString())) {
+            hierarchy.add(type);
+            TypeMirror superclass = type.getSuperclass();
+            type = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement()
+                    : null;
+        }
+
+        List<Field> fields = new ArrayList<>();
+        boolean ok = true;
+        for (TypeElement declaring : hierarchy) {
+            for (VariableElement field : ElementFilter.fieldsIn(declaring.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+
+                boolean visible = modifiers.contains(Modifier.PUBLIC)
+                        || (!modifiers.contains(Modifier.PRIVATE)
+                                && processingEnv.getElementUtils().getPackageOf(declaring).equals(modelPackage));
+                if (!visible) {
+                    error(field, "Fields of @LobModel classes must be visible to their package");
+                    ok = false;
+                    continue;
+                }
+
+                if (modifiers.contains(Modifier.FINAL)) {
+                    error(field, "Fields of @LobModel classes must not be final");
+                    ok = false;
+                    continue;
+                }
+
+                // resolves type variables a generic superclass declared the field with
+                TypeMirror fieldType = processingEnv.getTypeUtils().asMemberOf((DeclaredType) model.asType(), field);
+
+                String name = field.getSimpleName().toString();
+                fields.add(new Field(name, jsonName(field, name), fieldType));
+            }
+        }
+
+        return ok ? fields : null;
+    }
+
+    private static String jsonName(VariableElement field, String name) {
+        for (AnnotationMirror mirror : field.getAnnotationMirrors()) {
+            if (!SERIALIZED_NAME.equals(mirror.getAnnotationType().toString())) {
+                continue;
+            }
+
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : mirror.getElementValues().entrySet()) {
+                if ("value".equals(value.getKey().getSimpleName().toString())) {
+                    return (String) value.getValue().getValue();
+                }
+            }
+        }
+        return name;
+    }
+
+    private void write(TypeElement model, List<Field> fields) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(model).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(model).toString();
+        String adapterName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1) + ADAPTER_SUFFIX;
+        String modelName = model.getQualifiedName().toString();
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                packageName.isEmpty() ? adapterName : packageName + "." + adapterName, model);
+
+        PrintWriter out = new PrintWriter(file.openWriter());
+        try {
+            out.println("// Generated by lob-compiler. Do not edit.");
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+            }
+            out.println();
+            out.println("import com.google.gson.Gson;");
+            out.println("import com.google.gson.TypeAdapter;");
+            out.println("import com.google.gson.reflect.TypeToken;");
+            out.println("import com.google.gson.stream.JsonReader;");
+            out.println("import com.google.gson.stream.JsonToken;");
+            out.println("import com.google.gson.stream.JsonWriter;");
+            out.println();
+            out.println("import java.io.IOException;");
+            out.println();
+            out.println("final class " + adapterName + " extends TypeAdapter<" + modelName + "> {");
+            out.println("    private final Gson mGson;");
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                if (!field.isInline()) {
+                    out.println("    private TypeAdapter<" + field.boxedType() + "> mAdapter" + i + ";");
+                }
+            }
+            out.println();
+            out.println("    " + adapterName + "(Gson gson) {");
+            out.println("        mGson = gson;");
+            out.println("    }");
+
+            // delegates are looked up on first use, so models can refer to each other
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                if (field.isInline()) {
+                    continue;
+                }
+                out.println();
+                out.println("    private TypeAdapter<" + field.boxedType() + "> adapter" + i + "() {");
+                out.println("        if (mAdapter" + i + " == null) {");
+                out.println("            mAdapter" + i + " = mGson.getAdapter(new TypeToken<" + field.boxedType() + ">() {});");
+                out.println("        }");
+                out.println("        return mAdapter" + i + ";");
+                out.println("    }");
+            }
+
+            writeWrite(out, modelName, fields);
+            writeRead(out, modelName, fields);
+
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeWrite(PrintWriter out, String modelName, List<Field> fields) {
+        out.println();
+        out.println("    @Override");
+        out.println("    public void write(JsonWriter out, " + modelName + " value) throws IOException {");
+        out.println("        if (value == null) {");
+        out.println("            out.nullValue();");
+        out.println("            return;");
+        out.println("        }");
+        out.println();
+        out.println("        out.beginObject();");
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            String name = "\"" + escape(field.mJsonName) + "\"";
+            String access = "value." + field.mName;
+
+            if (field.mType.getKind() == TypeKind.FLOAT) {
+                // as a Number, so it prints like Gson's float adapter and not widened to double
+                out.println("        out.name(" + name + ").value((Number) " + access + ");");
+            } else if (field.mType.getKind().isPrimitive() && field.isInline()) {
+                out.println("        out.name(" + name + ").value(" + access + ");");
+            } else if (field.mType.getKind().isPrimitive()) {
+                out.println("        out.name(" + name + ");");
+                out.println("        adapter" + i + "().write(out, " + access + ");");
+            } else {
+                // like Gson by default, nulls are left out
+                out.println("        if (" + access + " != null) {");
+                out.println("            out.name(" + name + ");");
+                if (field.isInline()) {
+                    out.println("            out.value(" + access + ");");
+                } else {
+                    out.println("            adapter" + i + "().write(out, " + access + ");");
+                }
+                out.println("        }");
+            }
+        }
+        out.println("        out.endObject();");
+        out.println("    }");
+    }
+
+    private static void writeRead(PrintWriter out, String modelName, List<Field> fields) {
+        out.println();
+        out.println("    @Override");
+        out.println("    public " + modelName + " read(JsonReader in) throws IOException {");
+        out.println("        if (in.peek() == JsonToken.NULL) {");
+        out.println("            in.nextNull();");
+        out.println("            return null;");
+        out.println("        }");
+        out.println();
+        out.println("        " + modelName + " value = new " + modelName + "();");
+        out.println("        in.beginObject();");
+        out.println("        while (in.hasNext()) {");
+        out.println("            switch (in.nextName()) {");
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            out.println("                case \"" + escape(field.mJsonName) + "\":");
+            out.println("                    if (in.peek() == JsonToken.NULL) {");
+            out.println("                        in.nextNull();");
+            if (!field.mType.getKind().isPrimitive()) {
+                out.println("                        value." + field.mName + " = null;");
+            }
+            out.println("                    } else {");
+            out.println("                        value." + field.mName + " = " + readExpression(field, i) + ";");
+            out.println("                    }");
+            out.println("                    break;");
+        }
+        out.println("                default:");
+        out.println("                    in.skipValue();");
+        out.println("            }");
+        out.println("        }");
+        out.println("        in.endObject();");
+        out.println();
+        out.println("        return value;");
+        out.println("    }");
+    }
+
+    private static String readExpression(Field field, int index) {
+        switch (field.mType.getKind()) {
+            case BOOLEAN:
+                return "in.nextBoolean()";
+            case BYTE:
+                return "(byte) in.nextInt()";
+            case SHORT:
+                return "(short) in.nextInt()";
+            case INT:
+                return "in.nextInt()";
+            case LONG:
+                return "in.nextLong()";
+            case FLOAT:
+                return "(float) in.nextDouble()";
+            case DOUBLE:
+                return "in.nextDouble()";
+            default:
+                if (field.isInline()) {
+                    // Gson reads booleans into String fields too
+                    return "in.peek() == JsonToken.BOOLEAN ? Boolean.toString(in.nextBoolean()) : in.nextString()";
+                }
+                return "adapter" + index + "().read(in)";
+        }
+    }
+
+    private static String escape(String name) {
+        return name.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,5 @@
+# Adapters generated by lob-compiler are found by name from their model class
+-keepnames @org.dforsyth.android.lob.adapters.LobModel class *
+-keep class **$$LobAdapter {
+    <init>(com.google.gson.Gson);
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStackQueue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link AuthRefresher}
+ */
+public class AuthRefresherTest extends AndroidTestCase {
+    private final static long WAIT_MS = 5000;
+
+    private static class CountingDynamic implements LobDynamic {
+        int calls;
+
+        @Override
+        public Map<String, String> getDynamicHeaders() {
+            calls++;
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("Authorization", "token " + calls);
+            return map;
+        }
+
+        @Override
+        public Map<String, String> getDynamicParams() {
+            return null;
+        }
+
+        @Override
+        public Map<String, String> getDynamicQueryParams() {
+            return null;
+        }
+    }
+
+    public void testSingleFlight() throws Exception {
+        final AtomicInteger refreshes = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final AuthRefresher refresher = new AuthRefresher(new LobAuthenticator() {
+            @Override
+            public boolean refresh(VolleyError error) {
+                refreshes.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+        }, null);
+
+        final int generation = refresher.awaitGeneration(WAIT_MS);
+        final AtomicInteger replayed = new AtomicInteger();
+
+        Thread[] threads = new Thread[20];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (refresher.refresh(generation, new AuthFailureError(), WAIT_MS)) {
+                            replayed.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        // counted as not replayed
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        started.await();
+        release.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, refreshes.get());
+        assertEquals(threads.length, replayed.get());
+        assertEquals(generation + 1, refresher.awaitGeneration(WAIT_MS));
+    }
+
+    public void testFailedRefresh() throws Exception {
+        AuthRefresher refresher = new AuthRefresher(new LobAuthenticator() {
+            @Override
+            public boolean refresh(VolleyError error) {
+                return false;
+            }
+        }, null);
+
+        int generation = refresher.awaitGeneration(WAIT_MS);
+
+        assertFalse(refresher.refresh(generation, new AuthFailureError(), WAIT_MS));
+        assertEquals(generation, refresher.awaitGeneration(WAIT_MS));
+    }
+
+    public void testCachedDynamicInvalidated() throws Exception {
+        CountingDynamic dynamic = new CountingDynamic();
+        CachingDynamic caching = new CachingDynamic(dynamic);
+
+        AuthRefresher refresher = new AuthRefresher(new LobAuthenticator() {
+            @Override
+            public boolean refresh(VolleyError error) {
+                return true;
+            }
+        }, caching);
+
+        assertEquals("token 1", caching.getDynamicHeaders().get("Authorization"));
+        assertEquals("token 1", caching.getDynamicHeaders().get("Authorization"));
+
+        refresher.refresh(refresher.awaitGeneration(WAIT_MS), new AuthFailureError(), WAIT_MS);
+
+        assertEquals("token 2", caching.getDynamicHeaders().get("Authorization"));
+        assertEquals(2, dynamic.calls);
+    }
+
+    public void testWaitTimesOut() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final AuthRefresher refresher = new AuthRefresher(new LobAuthenticator() {
+            @Override
+            public boolean refresh(VolleyError error) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+        }, null);
+
+        final int generation = refresher.awaitGeneration(WAIT_MS);
+        Thread refreshing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresher.refresh(generation, new AuthFailureError(), WAIT_MS);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        });
+        refreshing.start();
+        started.await();
+
+        // a stuck refresh fails waiting requests instead of parking them
+        try {
+            refresher.awaitGeneration(50);
+            fail();
+        } catch (AuthFailureError e) {
+            // expected
+        }
+        assertFalse(refresher.refresh(generation, new AuthFailureError(), 50));
+
+        release.countDown();
+        refreshing.join();
+        assertEquals(generation + 1, refresher.awaitGeneration(50));
+    }
+
+    public void testReplay() throws Exception {
+        final AtomicInteger refreshes = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+
+        // only accepts credentials from after the refresh
+        TestEndpoint endpoint = new TestEndpoint(null, null, null) {
+            @Override
+            public boolean matchRequest(Request<?> request) {
+                return true;
+            }
+
+            @Override
+            public HttpResponse prepareResponse(Request<?> request, Map<String, String> additionalHeaders)
+                    throws UnsupportedEncodingException {
+                requests.incrementAndGet();
+                String authorization;
+                try {
+                    authorization = request.getHeaders().get("Authorization");
+                } catch (AuthFailureError e) {
+                    throw new IllegalStateException(e);
+                }
+
+                HttpResponse response;
+                if ("token 2".equals(authorization)) {
+                    response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+                    response.setEntity(new StringEntity("{}"));
+                } else {
+                    response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 401, "Unauthorized"));
+                    response.setEntity(new StringEntity(""));
+                }
+                return response;
+            }
+        };
+
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .setDynamic(new CountingDynamic())
+                .setAuthenticator(new LobAuthenticator() {
+                    @Override
+                    public boolean refresh(VolleyError error) {
+                        refreshes.incrementAndGet();
+                        return true;
+                    }
+                })
+                .build();
+
+        LobResponse<Object> response = new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("me")
+                .build()
+                .request();
+
+        assertNotNull(response.getDecoded());
+        assertEquals(1, refreshes.get());
+        assertEquals(2, requests.get());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.content.Context;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+
+import org.dforsyth.android.lob.queues.LobQueue;
+import org.dforsyth.android.lob.queues.QueueMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DeferralThrottle}
+ */
+public class DeferralThrottleTest extends AndroidTestCase {
+    private static class TestQueue implements LobQueue {
+        final List<Request<?>> submitted = new ArrayList<>();
+
+        @Override
+        public void prepare(Context context) {
+        }
+
+        @Override
+        public synchronized void submitRequest(Request<?> request) {
+            submitted.add(request);
+        }
+
+        @Override
+        public void cancel(Object tag) {
+        }
+
+        @Override
+        public RequestQueue getRequestQueue() {
+            return null;
+        }
+
+        synchronized int size() {
+            return submitted.size();
+        }
+    }
+
+    private static final LobRequest.Callbacks<Object> IGNORE = new LobRequest.Callbacks<Object>() {
+        @Override
+        public void onSuccess(LobResponse<Object> response) {
+        }
+
+        @Override
+        public void onFailure(VolleyError error) {
+        }
+    };
+
+    private TestQueue q;
+
+    private Lob client(long maxDeferralMs) {
+        return new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(q = new TestQueue())
+                .setMaxDeferral(maxDeferralMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    private static void send(Lob client, String path, boolean deferrable) {
+        new LobRequest.Builder<Object>(client, Object.class)
+                .addPath(path)
+                .setDeferrable(deferrable)
+                .build()
+                .requestAsync(IGNORE);
+    }
+
+    public void testRideAlong() {
+        Lob client = client(TimeUnit.MINUTES.toMillis(10));
+        DeferralThrottle throttle = client.getDeferralThrottle();
+
+        send(client, "analytics", true);
+        send(client, "prefetch", true);
+        assertEquals(0, q.size());
+        assertEquals(2, throttle.getPendingCount());
+
+        // queued, but it may yet be answered from the cache
+        send(client, "feed", false);
+        assertEquals(1, q.size());
+        assertTrue(q.submitted.get(0).getUrl().endsWith("/feed"));
+        assertEquals(2, throttle.getPendingCount());
+
+        // what the network dispatcher does when it takes the request
+        q.submitted.get(0).addMarker("network-queue-take");
+        assertEquals(3, q.size());
+        assertEquals(0, throttle.getPendingCount());
+
+        QueueMetrics metrics = throttle.getMetrics();
+        assertEquals(1, metrics.get(DeferralThrottle.FLUSHES));
+        assertEquals(1, metrics.get(DeferralThrottle.RIDE_ALONG_FLUSHES));
+        assertEquals(2, metrics.get(DeferralThrottle.LAST_BATCH_SIZE));
+    }
+
+    public void testCacheHitDoesNotFlush() {
+        Lob client = client(TimeUnit.MINUTES.toMillis(10));
+        DeferralThrottle throttle = client.getDeferralThrottle();
+
+        send(client, "analytics", true);
+        send(client, "feed", false);
+
+        // the cache dispatcher answered it, the radio stays asleep
+        q.submitted.get(0).addMarker("cache-hit");
+        assertEquals(1, q.size());
+        assertEquals(1, throttle.getPendingCount());
+        assertEquals(0, throttle.getMetrics().get(DeferralThrottle.FLUSHES));
+    }
+
+    public void testManualFlush() {
+        Lob client = client(TimeUnit.MINUTES.toMillis(10));
+        DeferralThrottle throttle = client.getDeferralThrottle();
+
+        send(client, "analytics", true);
+        throttle.flush();
+        assertEquals(1, q.size());
+
+        QueueMetrics metrics = throttle.getMetrics();
+        assertEquals(1, metrics.get(DeferralThrottle.MANUAL_FLUSHES));
+        assertEquals(0, metrics.get(DeferralThrottle.RIDE_ALONG_FLUSHES));
+    }
+
+    public void testMaxDelay() throws Exception {
+        Lob client = client(50);
+        DeferralThrottle throttle = client.getDeferralThrottle();
+
+        send(client, "analytics", true);
+        assertEquals(0, q.size());
+
+        Thread.sleep(500);
+        assertEquals(1, q.size());
+        QueueMetrics metrics = throttle.getMetrics();
+        assertEquals(1, metrics.get(DeferralThrottle.TIMEOUT_FLUSHES));
+        assertEquals(0, metrics.get(DeferralThrottle.RIDE_ALONG_FLUSHES));
+        assertTrue(metrics.get(DeferralThrottle.TOTAL_DELAY_MS) >= 50);
+    }
+
+    public void testDeadline() throws Exception {
+        Lob client = client(TimeUnit.MINUTES.toMillis(10));
+        DeferralThrottle throttle = client.getDeferralThrottle();
+
+        new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("analytics")
+                .setDeferrable(true)
+                .setDeadline(1000, TimeUnit.MILLISECONDS)
+                .build()
+                .requestAsync(IGNORE);
+        assertEquals(0, q.size());
+
+        // sent well before the deadline, not at it
+        Thread.sleep(700);
+        assertEquals(1, q.size());
+        assertFalse(((ObjectRequest<?>) q.submitted.get(0)).isExpired());
+        assertEquals(0, throttle.getPendingCount());
+    }
+
+    public void testCancel() {
+        Lob client = client(TimeUnit.MINUTES.toMillis(10));
+
+        new LobRequest.Builder<Object>(client, Object.class)
+                .setDeferrable(true)
+                .build()
+                .requestAsync("tag", IGNORE);
+        client.cancel("tag");
+
+        assertEquals(0, client.getDeferralThrottle().getPendingCount());
+    }
+}
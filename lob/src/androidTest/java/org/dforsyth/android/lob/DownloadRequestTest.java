@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStackQueue;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DownloadRequest} resuming into a {@link DownloadRequest.FileSink}, against an
+ * endpoint that honors Range and If-Range
+ */
+public class DownloadRequestTest extends AndroidTestCase {
+    private final static String BODY = "0123456789";
+    private final static String ETAG = "\"v2\"";
+
+    /**
+     * Serves {@link #BODY}, or the part of it asked for if the If-Range still matches
+     */
+    private static class RangeEndpoint extends TestEndpoint {
+        final List<String> ranges = new ArrayList<>();
+        final List<String> ifRanges = new ArrayList<>();
+
+        RangeEndpoint() {
+            super(null, null, null);
+        }
+
+        @Override
+        public boolean matchRequest(Request<?> request) {
+            return true;
+        }
+
+        @Override
+        public HttpResponse prepareResponse(Request<?> request, Map<String, String> additionalHeaders)
+                throws UnsupportedEncodingException {
+            Map<String, String> headers;
+            try {
+                headers = request.getHeaders();
+            } catch (AuthFailureError e) {
+                throw new IllegalStateException(e);
+            }
+
+            String range = headers.get(Constants.HEADER_RANGE);
+            String ifRange = headers.get(Constants.HEADER_IF_RANGE);
+            synchronized (this) {
+                ranges.add(range);
+                ifRanges.add(ifRange);
+            }
+
+            if (range == null || !ETAG.equals(ifRange)) {
+                return response(200, BODY, null);
+            }
+
+            int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            if (start >= BODY.length()) {
+                return response(416, "", "bytes */" + BODY.length());
+            }
+
+            return response(206, BODY.substring(start), "bytes " + start + "-" + (BODY.length() - 1) + "/" + BODY.length());
+        }
+
+        private static HttpResponse response(int status, String body, String contentRange)
+                throws UnsupportedEncodingException {
+            HttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, "Status"));
+            response.addHeader(Constants.HEADER_ETAG, ETAG);
+            if (contentRange != null) {
+                response.addHeader(Constants.HEADER_CONTENT_RANGE, contentRange);
+            }
+            response.setEntity(new StringEntity(body));
+            return response;
+        }
+    }
+
+    private static class Result implements DownloadRequest.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        long downloaded = -1;
+        boolean success;
+        VolleyError error;
+
+        @Override
+        public void onProgress(long downloaded, long total) {
+            this.downloaded = downloaded;
+        }
+
+        @Override
+        public void onSuccess(DownloadRequest.Sink sink) {
+            success = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(VolleyError error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    private File file;
+    private DownloadRequest.FileSink sink;
+    private RangeEndpoint endpoint;
+    private Lob client;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = new File(getContext().getCacheDir(), "download.txt");
+        sink = new DownloadRequest.FileSink(file);
+        sink.setValidator(null);
+        file.delete();
+
+        endpoint = new RangeEndpoint();
+        client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .build();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        sink.setValidator(null);
+        file.delete();
+        super.tearDown();
+    }
+
+    private void write(String content, String validator) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        sink.setValidator(validator);
+    }
+
+    private String read() throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private Result download() throws InterruptedException {
+        Result result = new Result();
+        new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("files/1")
+                .build()
+                .downloadAsync(null, sink, result);
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        return result;
+    }
+
+    public void testFreshDownload() throws Exception {
+        Result result = download();
+
+        assertTrue(result.success);
+        assertEquals(BODY, read());
+        assertEquals(ETAG, sink.getValidator());
+        assertNull(endpoint.ranges.get(0));
+    }
+
+    public void testResume() throws Exception {
+        write(BODY.substring(0, 4), ETAG);
+
+        Result result = download();
+
+        assertTrue(result.success);
+        assertEquals(BODY, read());
+        assertEquals("bytes=4-", endpoint.ranges.get(0));
+        assertEquals(ETAG, endpoint.ifRanges.get(0));
+        assertEquals(BODY.length(), result.downloaded);
+    }
+
+    public void testChangedOnServer() throws Exception {
+        write("abcd", "\"v1\"");
+
+        Result result = download();
+
+        // the server sent the new version whole, and it replaced the old bytes
+        assertTrue(result.success);
+        assertEquals(BODY, read());
+        assertEquals(ETAG, sink.getValidator());
+        assertEquals("bytes=4-", endpoint.ranges.get(0));
+    }
+
+    public void testNoValidator() throws Exception {
+        write("abcd", null);
+
+        Result result = download();
+
+        // nothing to check the bytes against, so they aren't trusted
+        assertTrue(result.success);
+        assertEquals(BODY, read());
+        assertNull(endpoint.ranges.get(0));
+    }
+
+    public void testAlreadyComplete() throws Exception {
+        write(BODY, ETAG);
+
+        Result result = download();
+
+        assertTrue(result.success);
+        assertEquals(BODY, read());
+        assertEquals(1, endpoint.ranges.size());
+        assertEquals(BODY.length(), result.downloaded);
+    }
+
+    public void testLongerThanServer() throws Exception {
+        write(BODY + "extra", ETAG);
+
+        Result result = download();
+
+        // unsatisfiable and not complete, so start over
+        assertTrue(result.success);
+        assertEquals(BODY, read());
+        assertEquals(2, endpoint.ranges.size());
+        assertEquals("bytes=15-", endpoint.ranges.get(0));
+        assertNull(endpoint.ranges.get(1));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests for {@link EndpointPool}
+ */
+public class EndpointPoolTest extends AndroidTestCase {
+    private final static Uri A = Uri.parse("https://a.example.com/api");
+    private final static Uri B = Uri.parse("https://b.example.com/api");
+
+    private EndpointPool mPool;
+    private EndpointPool.Endpoint mA;
+    private EndpointPool.Endpoint mB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new EndpointPool(Arrays.asList(A, B));
+        mA = mPool.getEndpoints().get(0);
+        mB = mPool.getEndpoints().get(1);
+    }
+
+    public void testPrefersFaster() {
+        mPool.reportSuccess(mA, 300);
+        mPool.reportSuccess(mB, 50);
+
+        assertSame(mB, mPool.select());
+    }
+
+    public void testAvoidsFailing() {
+        mPool.reportSuccess(mA, 50);
+        mPool.reportSuccess(mB, 300);
+        mPool.reportFailure(mA);
+
+        assertSame(mB, mPool.select());
+        assertTrue(mPool.getErrorRate(mA) > 0);
+    }
+
+    public void testExclude() {
+        assertNotNull(mPool.select(Collections.singleton(mA)));
+        assertSame(mB, mPool.select(Collections.singleton(mA)));
+        assertNull(mPool.select(Arrays.asList(mA, mB)));
+    }
+
+    public void testRewrite() {
+        assertEquals("https://b.example.com/api/users?id=1",
+                mPool.rewrite("https://a.example.com/api/users?id=1", mB));
+        assertEquals("https://c.example.com/users",
+                mPool.rewrite("https://c.example.com/users", mB));
+    }
+
+    public void testRequestFailover() {
+        ObjectRequest<Object> request = new ObjectRequest<>(
+                0, A + "/users", null, null, null, null, null, null, null, null);
+        request.setEndpointPool(mPool);
+
+        EndpointPool.Endpoint first = request.getEndpoint();
+        assertTrue(request.failover());
+        assertNotSame(first, request.getEndpoint());
+        assertFalse(request.failover());
+
+        // the cache key doesn't depend on where the request was sent
+        assertEquals(A + "/users", request.getCacheKey());
+    }
+}
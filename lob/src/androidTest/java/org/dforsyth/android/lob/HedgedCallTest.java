@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStackQueue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link HedgedCall} against an endpoint that is slow the first time only
+ */
+public class HedgedCallTest extends AndroidTestCase {
+    private final static long SLOW_MS = 500;
+    private final static long DELAY_MS = 100;
+
+    /**
+     * Stalls the first request it sees and answers the rest straight away
+     */
+    private static class SlowFirstEndpoint extends TestEndpoint {
+        final List<Long> arrivals = new ArrayList<>();
+        final List<Long> deadlines = new ArrayList<>();
+
+        SlowFirstEndpoint() {
+            super(null, null, null);
+        }
+
+        @Override
+        public boolean matchRequest(Request<?> request) {
+            return true;
+        }
+
+        @Override
+        public HttpResponse prepareResponse(Request<?> request, Map<String, String> additionalHeaders)
+                throws UnsupportedEncodingException {
+            boolean first;
+            synchronized (arrivals) {
+                first = arrivals.isEmpty();
+                arrivals.add(SystemClock.elapsedRealtime());
+                deadlines.add(((ObjectRequest<?>) request).getDeadline());
+            }
+
+            if (first) {
+                SystemClock.sleep(SLOW_MS);
+            }
+
+            HttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+            response.setEntity(new StringEntity("{}"));
+            return response;
+        }
+    }
+
+    public void testHedgeWins() throws Exception {
+        SlowFirstEndpoint endpoint = new SlowFirstEndpoint();
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .build();
+
+        HedgePolicy policy = new HedgePolicy(0.95, DELAY_MS);
+        LobRequest<Object> request = new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("posts")
+                .setHedgePolicy(policy)
+                .build();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger delivered = new AtomicInteger();
+        request.requestAsync(new LobRequest.Callbacks<Object>() {
+            @Override
+            public void onSuccess(LobResponse<Object> response) {
+                delivered.incrementAndGet();
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(VolleyError error) {
+                delivered.incrementAndGet();
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // give the slow copy time to finish, it must not be delivered too
+        SystemClock.sleep(SLOW_MS + 300);
+        assertEquals(1, delivered.get());
+
+        synchronized (endpoint.arrivals) {
+            assertEquals(2, endpoint.arrivals.size());
+            assertTrue(endpoint.arrivals.get(1) - endpoint.arrivals.get(0) >= DELAY_MS);
+        }
+
+        assertEquals(1, policy.getHedgedCount());
+        assertEquals(1, policy.getHedgeWinCount());
+    }
+
+    public void testHedgeSharesDeadline() throws Exception {
+        SlowFirstEndpoint endpoint = new SlowFirstEndpoint();
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .build();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("posts")
+                .setHedgePolicy(new HedgePolicy(0.95, DELAY_MS))
+                .setDeadline(5, TimeUnit.SECONDS)
+                .build()
+                .requestAsync(new LobRequest.Callbacks<Object>() {
+                    @Override
+                    public void onSuccess(LobResponse<Object> response) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(VolleyError error) {
+                        done.countDown();
+                    }
+                });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        synchronized (endpoint.arrivals) {
+            assertEquals(2, endpoint.deadlines.size());
+            assertTrue(endpoint.deadlines.get(0) > 0);
+            assertEquals(endpoint.deadlines.get(0), endpoint.deadlines.get(1));
+        }
+    }
+
+    public void testHedgeRejectsReuse() {
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {new SlowFirstEndpoint()}))
+                .build();
+
+        try {
+            new LobRequest.Builder<Object>(client, Object.class)
+                    .setHedgePolicy(new HedgePolicy(0.95, DELAY_MS))
+                    .setReuse(new Object())
+                    .build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -38,9 +38,15 @@ import com.android.volley.Request.Method;
 
 import org.dforsyth.android.lob.util.Constants;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Lob Request tests
@@ -212,4 +218,164 @@ public class LobRequestTest extends AndroidTestCase {
             assertTrue(false);
         }
     }
+
+    public void testDeadline() {
+        LobRequest<Object> request = new LobRequest.Builder<Object>(
+                client,
+                Object.class
+        )
+        .setDeadline(500, TimeUnit.MILLISECONDS)
+        .build();
+
+        ObjectRequest<Object> objectRequest = request.createRequest(null, null, null);
+
+        assertFalse(objectRequest.isExpired());
+        assertTrue(objectRequest.getRemainingMs() <= 500);
+        assertTrue(objectRequest.getRetryPolicy() instanceof LobRetryPolicy);
+        assertTrue(objectRequest.getTimeoutMs() <= 500);
+    }
+
+    public void testNoDeadline() {
+        LobRequest<Object> request = new LobRequest.Builder<Object>(
+                client,
+                Object.class
+        ).build();
+
+        ObjectRequest<Object> objectRequest = request.createRequest(null, null, null);
+
+        assertFalse(objectRequest.isExpired());
+        assertEquals(Long.MAX_VALUE, objectRequest.getRemainingMs());
+    }
+
+    public void testStreamingBody() {
+        final byte[] TEST_BYTES = "something".getBytes();
+
+        LobRequest<Object> request = new LobRequest.Builder<Object>(
+                client,
+                Object.class
+        )
+        .setMethod(Method.POST)
+        .setBody(LobBody.create("application/octet-stream", -1, new LobBody.StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new ByteArrayInputStream(TEST_BYTES);
+            }
+        }))
+        .build();
+
+        ObjectRequest<Object> objectRequest = request.createRequest(null, null, null);
+
+        assertNotNull(objectRequest.getLobBody());
+        assertEquals("application/octet-stream", objectRequest.getBodyContentType());
+
+        try {
+            // stacks that can't stream get the body buffered
+            assertTrue(Arrays.equals(TEST_BYTES, objectRequest.getBody()));
+        } catch (AuthFailureError authFailureError) {
+            authFailureError.printStackTrace();
+            assertTrue(false);
+        }
+    }
+
+    public void testObjectBody() {
+        Map<String, String> object = new HashMap<String, String>();
+        object.put("key", "value");
+
+        LobRequest<Object> request = new LobRequest.Builder<Object>(
+                client,
+                Object.class
+        )
+        .setMethod(Method.POST)
+        .setEncodedBody(object)
+        .build();
+
+        ObjectRequest<Object> objectRequest = request.createRequest(null, null, null);
+
+        assertEquals(Constants.CONTENT_TYPE_JSON, objectRequest.getBodyContentType());
+
+        // small enough to buffer, so it goes out with a length instead of chunked
+        assertEquals(15, objectRequest.getLobBody().getContentLength());
+
+        try {
+            assertTrue(
+                    Arrays.equals(
+                            "{\"key\":\"value\"}".getBytes(Charset.forName("UTF-8")),
+                            objectRequest.getBody()
+                    )
+            );
+        } catch (AuthFailureError authFailureError) {
+            authFailureError.printStackTrace();
+            assertTrue(false);
+        }
+    }
+
+    public void testLargeObjectBody() throws Exception {
+        char[] value = new char[LobBody.MAX_BUFFERED_SIZE];
+        Arrays.fill(value, 'a');
+        Map<String, String> object = new HashMap<String, String>();
+        object.put("key", new String(value));
+
+        LobRequest<Object> request = new LobRequest.Builder<Object>(
+                client,
+                Object.class
+        )
+        .setMethod(Method.POST)
+        .setEncodedBody(object)
+        .build();
+
+        LobBody body = request.createRequest(null, null, null).getLobBody();
+
+        // too large to hold, so it is streamed chunked
+        assertEquals(-1, body.getContentLength());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertEquals(LobBody.MAX_BUFFERED_SIZE + "{\"key\":\"\"}".length(), out.size());
+    }
+
+    public void testContentTypeHeader() {
+        LobRequest<Object> request = new LobRequest.Builder<Object>(
+                client,
+                Object.class
+        )
+        .setMethod(Method.POST)
+        .addHeader(Constants.HEADER_CONTENT_TYPE, "text/plain")
+        .setEncodedBody(new HashMap<String, String>())
+        .build();
+
+        ObjectRequest<Object> objectRequest = request.createRequest(null, null, null);
+
+        assertEquals("text/plain", objectRequest.getBodyContentType());
+    }
+
+    public void testCompressBody() {
+        LobRequest<Object> request = new LobRequest.Builder<Object>(
+                client,
+                Object.class
+        )
+        .setMethod(Method.POST)
+        .setBody("something".getBytes())
+        .setCompressBody(true)
+        .build();
+
+        ObjectRequest<Object> objectRequest = request.createRequest(null, null, null);
+
+        assertTrue(objectRequest.isCompressBody());
+    }
+
+    public void testHedgeNonIdempotent() {
+        try {
+            new LobRequest.Builder<Object>(client, Object.class)
+                    .setMethod(Method.POST)
+                    .setHedgePolicy(new HedgePolicy())
+                    .build();
+            fail("hedged a POST");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        new LobRequest.Builder<Object>(client, Object.class)
+                .setHedgePolicy(new HedgePolicy())
+                .build();
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import org.dforsyth.android.lob.queues.SimpleQueue;
+import org.dforsyth.android.lob.stacks.LobStack;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link LobScope}
+ */
+public class LobScopeTest extends AndroidTestCase {
+
+    private Lob client;
+    private LobRequest<Object> request;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        client = new Lob.Builder(
+                getContext(),
+                Uri.parse("https://www.google.com")
+        ).build();
+
+        request = new LobRequest.Builder<Object>(
+                client,
+                Object.class
+        ).build();
+    }
+
+    public void testCancel() {
+        LobScope scope = new LobScope();
+
+        ObjectRequest<Object> a = request.createRequest(scope, null, null);
+        ObjectRequest<Object> b = request.createRequest(scope, null, null);
+        ObjectRequest<Object> other = request.createRequest(new Object(), null, null);
+
+        assertEquals(2, scope.size());
+        assertEquals(scope, a.getTag());
+
+        client.cancel(scope);
+
+        assertTrue(a.isCanceled());
+        assertTrue(b.isCanceled());
+        assertFalse(other.isCanceled());
+        assertEquals(0, scope.size());
+
+        // a cancelled scope can still be used
+        ObjectRequest<Object> c = request.createRequest(scope, null, null);
+        assertFalse(c.isCanceled());
+        assertEquals(1, scope.size());
+    }
+
+    public void testClose() {
+        LobScope scope = new LobScope();
+
+        ObjectRequest<Object> a = request.createRequest(scope, null, null);
+
+        scope.close();
+
+        assertTrue(a.isCanceled());
+        assertTrue(scope.isClosed());
+
+        ObjectRequest<Object> b = request.createRequest(scope, null, null);
+        assertTrue(b.isCanceled());
+        assertEquals(0, scope.size());
+    }
+
+    public void testCancelDuringRead() throws Exception {
+        MockWebServer server = new MockWebServer();
+        // 64KB at 1KB every 100ms, so reading the whole body takes over 6 seconds
+        server.enqueue(new MockResponse()
+                .setBody(new Buffer().write(new byte[64 * 1024]))
+                .throttleBody(1024, 100, TimeUnit.MILLISECONDS));
+        server.start();
+
+        try {
+            SimpleQueue queue = new SimpleQueue(new LobStack());
+            Lob slowClient = new Lob.Builder(getContext(), Uri.parse(server.url("/").toString()))
+                    .setQueue(queue)
+                    .build();
+
+            final CountDownLatch finished = new CountDownLatch(1);
+            queue.getRequestQueue().addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+                @Override
+                public void onRequestFinished(Request<Object> request) {
+                    finished.countDown();
+                }
+            });
+
+            final AtomicInteger delivered = new AtomicInteger();
+            LobScope scope = new LobScope();
+            new LobRequest.Builder<Object>(slowClient, Object.class)
+                    .build()
+                    .requestAsync(scope, new LobRequest.Callbacks<Object>() {
+                        @Override
+                        public void onSuccess(LobResponse<Object> response) {
+                            delivered.incrementAndGet();
+                        }
+
+                        @Override
+                        public void onFailure(VolleyError error) {
+                            delivered.incrementAndGet();
+                        }
+                    });
+
+            // let the headers arrive and the body start trickling in
+            assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+            Thread.sleep(300);
+
+            scope.cancel();
+
+            // the read is aborted, not left to run to the end of the body
+            assertTrue(finished.await(3, TimeUnit.SECONDS));
+
+            // give a stray delivery time to reach the main thread
+            Thread.sleep(200);
+            assertEquals(0, delivered.get());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
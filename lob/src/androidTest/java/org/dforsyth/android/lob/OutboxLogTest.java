@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request.Method;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link OutboxLog}
+ */
+public class OutboxLogTest extends AndroidTestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("outbox", ".log", getContext().getCacheDir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private static OutboxLog.Entry append(OutboxLog log, String key) throws Exception {
+        Map<String, String> headers = Collections.singletonMap("Idempotency-Key", key);
+        return log.append(key, Method.POST, "https://api.example.com/" + key, headers, null,
+                "application/json", ("{\"key\":\"" + key + "\"}").getBytes("UTF-8"));
+    }
+
+    public void testReplay() throws Exception {
+        OutboxLog log = new OutboxLog(file);
+        OutboxLog.Entry a = append(log, "a");
+        append(log, "b");
+        append(log, "c");
+        log.ack(a.seq);
+        log.close();
+
+        log = new OutboxLog(file);
+        List<OutboxLog.Entry> pending = log.getPending();
+        assertEquals(2, pending.size());
+        assertEquals("b", pending.get(0).idempotencyKey);
+        assertEquals("https://api.example.com/c", pending.get(1).url);
+        assertEquals("{\"key\":\"c\"}", new String(pending.get(1).body, "UTF-8"));
+        assertEquals("c", pending.get(1).headers.get("Idempotency-Key"));
+
+        // sequence numbers carry on after a reopen
+        assertTrue(append(log, "d").seq > pending.get(1).seq);
+        log.close();
+    }
+
+    public void testTornTail() throws Exception {
+        OutboxLog log = new OutboxLog(file);
+        append(log, "a");
+        append(log, "b");
+        log.close();
+
+        // lose the end of the last record, then add garbage
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {0, 0, 0, 9, 1, 2});
+        out.close();
+
+        log = new OutboxLog(file);
+        assertEquals(1, log.size());
+        append(log, "c");
+        log.close();
+
+        log = new OutboxLog(file);
+        assertEquals(2, log.size());
+        assertEquals("c", log.getPending().get(1).idempotencyKey);
+        log.close();
+    }
+
+    public void testCompact() throws Exception {
+        OutboxLog log = new OutboxLog(file);
+        OutboxLog.Entry keep = append(log, "keep");
+        for (int i = 0; i < OutboxLog.COMPACT_ACKS; i++) {
+            log.ack(append(log, "x" + i).seq);
+        }
+        log.close();
+
+        // only the pending request is left
+        long compacted = file.length();
+        log = new OutboxLog(file);
+        assertEquals(1, log.size());
+        assertEquals(keep.seq, log.getPending().get(0).seq);
+        log.ack(keep.seq);
+        log.close();
+
+        assertTrue(compacted > 0);
+        assertEquals(0, file.length());
+    }
+}
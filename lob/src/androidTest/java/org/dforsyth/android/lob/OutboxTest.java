@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.VolleyError;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStack;
+import org.dforsyth.android.lob.test.TestStackQueue;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link Outbox} against a {@link org.dforsyth.android.lob.test.TestStack} endpoint
+ */
+public class OutboxTest extends AndroidTestCase {
+    private File file;
+    private Lob client;
+
+    /**
+     * Answers every request with one status, and remembers the idempotency keys it saw
+     */
+    private static class StatusEndpoint extends TestEndpoint {
+        final int status;
+        final List<String> keys = new ArrayList<>();
+
+        StatusEndpoint(int status) {
+            super(null, null, null);
+            this.status = status;
+        }
+
+        @Override
+        public boolean matchRequest(Request<?> request) {
+            return true;
+        }
+
+        @Override
+        public HttpResponse prepareResponse(Request<?> request, Map<String, String> additionalHeaders)
+                throws UnsupportedEncodingException {
+            try {
+                synchronized (keys) {
+                    keys.add(request.getHeaders().get(Constants.HEADER_IDEMPOTENCY_KEY));
+                }
+            } catch (AuthFailureError e) {
+                throw new IllegalStateException(e);
+            }
+
+            HttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, "Status"));
+            response.setEntity(new StringEntity("{}"));
+            return response;
+        }
+    }
+
+    private static class RecordingListener implements Outbox.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        String sent;
+        String dropped;
+        VolleyError error;
+
+        @Override
+        public void onSent(String idempotencyKey, LobResponse<Object> response) {
+            sent = idempotencyKey;
+            done.countDown();
+        }
+
+        @Override
+        public void onDropped(String idempotencyKey, VolleyError error) {
+            dropped = idempotencyKey;
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("outbox", ".log", getContext().getCacheDir());
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private Outbox outbox(StatusEndpoint endpoint, RecordingListener listener) {
+        client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestStack(new TestEndpoint[] {endpoint}).setLatency(200)))
+                .build();
+        return new Outbox(getContext(), client, file).setListener(listener);
+    }
+
+    private LobRequest<Object> post() {
+        return new LobRequest.Builder<Object>(client, Object.class)
+                .setMethod(Method.POST)
+                .addPath("likes")
+                .addParam("post", "1")
+                .build();
+    }
+
+    public void testSent() throws Exception {
+        StatusEndpoint endpoint = new StatusEndpoint(201);
+        RecordingListener listener = new RecordingListener();
+        Outbox outbox = outbox(endpoint, listener);
+
+        String key = outbox.enqueue(post());
+
+        // logged before enqueue returned, and still going out
+        assertEquals(1, outbox.getPendingCount());
+        assertTrue(file.length() > 0);
+
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        assertEquals(key, listener.sent);
+        assertEquals(key, endpoint.keys.get(0));
+        outbox.close();
+    }
+
+    public void testRejected() throws Exception {
+        StatusEndpoint endpoint = new StatusEndpoint(400);
+        RecordingListener listener = new RecordingListener();
+        Outbox outbox = outbox(endpoint, listener);
+
+        String key = outbox.enqueue(post());
+
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        assertEquals(key, listener.dropped);
+        assertEquals(1, endpoint.keys.size());
+        outbox.close();
+    }
+
+    public void testServerErrorRetriesCapped() throws Exception {
+        StatusEndpoint endpoint = new StatusEndpoint(503);
+        RecordingListener listener = new RecordingListener();
+        Outbox outbox = outbox(endpoint, listener).setMaxServerErrorRetries(1);
+
+        String key = outbox.enqueue(post());
+
+        assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+        assertEquals(key, listener.dropped);
+        assertEquals(503, listener.error.networkResponse.statusCode);
+        // the first attempt and one retry, with the same key
+        assertEquals(2, endpoint.keys.size());
+        assertEquals(key, endpoint.keys.get(1));
+        outbox.close();
+    }
+
+    public void testClosed() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        Outbox outbox = outbox(new StatusEndpoint(201), listener);
+        outbox.close();
+
+        // a request that can't be logged is reported, not lost quietly
+        String key = outbox.enqueue(post());
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        assertEquals(key, listener.dropped);
+    }
+
+    private static void awaitRequests(StatusEndpoint endpoint, int count) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            synchronized (endpoint.keys) {
+                if (endpoint.keys.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(100);
+        }
+        fail("Expected " + count + " requests");
+    }
+
+    public void testCloseInFlight() throws Exception {
+        StatusEndpoint endpoint = new StatusEndpoint(201);
+        RecordingListener listener = new RecordingListener();
+        Outbox outbox = outbox(endpoint, listener);
+
+        String key = outbox.enqueue(post());
+        awaitRequests(endpoint, 1);
+        outbox.close();
+
+        // the response arrives after close, it is ignored rather than acknowledged
+        assertFalse(listener.done.await(1, TimeUnit.SECONDS));
+
+        // so the request is still in the log, and goes out again with the same key
+        RecordingListener reopened = new RecordingListener();
+        Outbox next = new Outbox(getContext(), client, file).setListener(reopened);
+        assertTrue(reopened.done.await(5, TimeUnit.SECONDS));
+        assertEquals(key, reopened.sent);
+        assertEquals(2, endpoint.keys.size());
+        assertEquals(key, endpoint.keys.get(1));
+        next.close();
+    }
+
+    public void testCloseWhileRetryScheduled() throws Exception {
+        StatusEndpoint endpoint = new StatusEndpoint(503);
+        RecordingListener listener = new RecordingListener();
+        Outbox outbox = outbox(endpoint, listener);
+
+        outbox.enqueue(post());
+        awaitRequests(endpoint, 1);
+
+        // let the failure come back and the backoff be scheduled
+        Thread.sleep(500);
+        outbox.close();
+
+        // the backoff is cancelled, nothing more is sent or reported
+        Thread.sleep(Outbox.INITIAL_BACKOFF_MS + 500);
+        assertEquals(1, endpoint.keys.size());
+        assertEquals(1, listener.done.getCount());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.dforsyth.android.lob.batch;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.LobResponse;
+import org.dforsyth.android.lob.queues.LobQueue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link Batcher}. The batcher lives on the main thread, so every call to it is posted
+ * there.
+ */
+public class BatcherTest extends AndroidTestCase {
+    private final static long WINDOW_MS = 100;
+
+    private static class TestQueue implements LobQueue {
+        final BlockingQueue<Request<?>> submitted = new LinkedBlockingQueue<>();
+
+        @Override
+        public void prepare(Context context) {
+        }
+
+        @Override
+        public void submitRequest(Request<?> request) {
+            submitted.add(request);
+        }
+
+        @Override
+        public void cancel(Object tag) {
+        }
+
+        @Override
+        public RequestQueue getRequestQueue() {
+            return null;
+        }
+    }
+
+    private static class Ignore implements LobRequest.Callbacks<Object> {
+        @Override
+        public void onSuccess(LobResponse<Object> response) {
+        }
+
+        @Override
+        public void onFailure(VolleyError error) {
+        }
+    }
+
+    private Lob client;
+    private TestQueue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        queue = new TestQueue();
+        client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(queue)
+                .build();
+    }
+
+    private LobRequest<Object> get(String path) {
+        return new LobRequest.Builder<Object>(client, Object.class)
+                .addPath(path)
+                .build();
+    }
+
+    private static void onMain(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private void add(final Batcher batcher, final String... paths) throws InterruptedException {
+        onMain(new Runnable() {
+            @Override
+            public void run() {
+                for (String path : paths) {
+                    batcher.add(get(path), new Ignore());
+                }
+            }
+        });
+    }
+
+    public void testSingleRequestUnbatched() throws Exception {
+        Batcher batcher = new Batcher(client, "batch", new JsonBatchFormat(), WINDOW_MS, 20);
+        add(batcher, "users/1");
+
+        Request<?> sent = queue.submitted.poll(5, TimeUnit.SECONDS);
+        assertEquals("https://api.example.com/users/1", sent.getUrl());
+        assertNull(queue.submitted.poll(WINDOW_MS * 2, TimeUnit.MILLISECONDS));
+    }
+
+    public void testWindowFlush() throws Exception {
+        Batcher batcher = new Batcher(client, "batch", new JsonBatchFormat(), WINDOW_MS, 20);
+        long start = System.currentTimeMillis();
+        add(batcher, "users/1", "users/2");
+
+        // held for the window, then sent together
+        Request<?> sent = queue.submitted.poll(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start >= WINDOW_MS);
+        assertEquals("https://api.example.com/batch", sent.getUrl());
+        assertNull(queue.submitted.poll(WINDOW_MS * 2, TimeUnit.MILLISECONDS));
+    }
+
+    public void testMaxSizeFlush() throws Exception {
+        // a window this long would fail the test if the batch waited for it
+        final Batcher batcher = new Batcher(client, "batch", new JsonBatchFormat(), TimeUnit.MINUTES.toMillis(1), 2);
+        add(batcher, "users/1", "users/2", "users/3");
+
+        Request<?> sent = queue.submitted.poll(0, TimeUnit.MILLISECONDS);
+        assertNotNull(sent);
+        assertEquals("https://api.example.com/batch", sent.getUrl());
+
+        // the third starts the next batch, which is still waiting
+        assertNull(queue.submitted.poll(WINDOW_MS, TimeUnit.MILLISECONDS));
+
+        onMain(new Runnable() {
+            @Override
+            public void run() {
+                batcher.flush();
+            }
+        });
+        assertEquals("https://api.example.com/users/3", queue.submitted.poll(5, TimeUnit.SECONDS).getUrl());
+    }
+}
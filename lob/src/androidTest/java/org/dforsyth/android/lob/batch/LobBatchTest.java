@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.batch;
+
+import android.content.Context;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Base64;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.LobResponse;
+import org.dforsyth.android.lob.ObjectRequest;
+import org.dforsyth.android.lob.encoders.Projection;
+import org.dforsyth.android.lob.queues.LobQueue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link LobBatch}
+ */
+public class LobBatchTest extends AndroidTestCase {
+    private class TestQueue implements LobQueue {
+        private LinkedList<Request<?>> ll;
+
+        @Override
+        public void prepare(Context context) {
+            ll = new LinkedList<>();
+        }
+
+        @Override
+        public void submitRequest(Request<?> request) {
+            ll.add(request);
+        }
+
+        @Override
+        public void cancel(Object tag) {
+        }
+
+        @Override
+        public RequestQueue getRequestQueue() {
+            return null;
+        }
+
+        public Request<?> pop() {
+            return ll.removeFirst();
+        }
+    }
+
+    private static class Result<T> implements LobRequest.Callbacks<T> {
+        T decoded;
+        VolleyError error;
+
+        @Override
+        public void onSuccess(LobResponse<T> response) {
+            decoded = response.getDecoded();
+        }
+
+        @Override
+        public void onFailure(VolleyError error) {
+            this.error = error;
+        }
+    }
+
+    Lob client;
+    TestQueue q;
+
+    @Override
+    protected void setUp() throws Exception {
+        client = new Lob.Builder(
+                getContext(),
+                Uri.parse("https://api.example.com")
+        )
+        .setQueue(q = new TestQueue())
+        .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testBatch() throws Exception {
+        LobRequest<Map<String, String>> user = new LobRequest.Builder<Map<String, String>>(client, Map.class)
+                .addPath("users/1")
+                .build();
+        LobRequest<Object> missing = new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("missing")
+                .build();
+
+        Result<Map<String, String>> userResult = new Result<>();
+        Result<Object> missingResult = new Result<>();
+
+        new LobBatch(client, "batch")
+                .add(user, userResult)
+                .add(missing, missingResult)
+                .submit();
+
+        ObjectRequest batchRequest = (ObjectRequest) q.pop();
+        assertEquals("https://api.example.com/batch", batchRequest.getUrl());
+        assertEquals(Request.Method.POST, batchRequest.getMethod());
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        batchRequest.getLobBody().writeTo(body);
+        assertEquals(
+                "{\"requests\":[{\"method\":\"GET\",\"path\":\"/users/1\"},{\"method\":\"GET\",\"path\":\"/missing\"}]}",
+                body.toString("UTF-8"));
+
+        NetworkResponse response = new NetworkResponse(
+                "{\"responses\":[{\"status\":200,\"body\":{\"name\":\"lob\"}},{\"status\":404}]}".getBytes("UTF-8"),
+                new HashMap<String, String>());
+
+        Object decoded = batchRequest.getResponseDecoder().decode(response);
+        batchRequest.getListener().onResponse(new LobResponse<>(response, decoded));
+
+        assertNull(userResult.error);
+        assertEquals("lob", userResult.decoded.get("name"));
+
+        assertTrue(missingResult.error instanceof ServerError);
+        assertEquals(404, missingResult.error.networkResponse.statusCode);
+    }
+
+    public void testBinaryBody() throws Exception {
+        byte[] bytes = new byte[] {(byte) 0xff, 0, (byte) 0x80, 'x'};
+        LobRequest<Object> upload = new LobRequest.Builder<Object>(client, Object.class)
+                .setMethod(Request.Method.POST)
+                .addPath("blobs")
+                .setBody(bytes)
+                .build();
+        LobRequest<Object> download = new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("blobs/1")
+                .build();
+
+        new LobBatch(client, "batch")
+                .add(upload, new Result<Object>())
+                .add(download, new Result<Object>())
+                .submit();
+
+        ObjectRequest batchRequest = (ObjectRequest) q.pop();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        batchRequest.getLobBody().writeTo(body);
+        assertEquals(
+                "{\"requests\":[{\"method\":\"POST\",\"path\":\"/blobs\",\"bodyEncoding\":\"base64\",\"body\":\""
+                        + Base64.encodeToString(bytes, Base64.NO_WRAP)
+                        + "\"},{\"method\":\"GET\",\"path\":\"/blobs/1\"}]}",
+                body.toString("UTF-8"));
+
+        NetworkResponse response = new NetworkResponse(
+                ("{\"responses\":[{\"status\":201},{\"status\":200,\"bodyEncoding\":\"base64\",\"body\":\""
+                        + Base64.encodeToString(bytes, Base64.NO_WRAP) + "\"}]}").getBytes("UTF-8"),
+                new HashMap<String, String>());
+
+        List<NetworkResponse> parts = new JsonBatchFormat().decode(response);
+        assertEquals(201, parts.get(0).statusCode);
+        assertTrue(Arrays.equals(bytes, parts.get(1).data));
+    }
+
+    public void testFormParams() {
+        LobRequest<Object> request = new LobRequest.Builder<Object>(client, Object.class)
+                .setMethod(Request.Method.POST)
+                .addParam("key", "value")
+                .build();
+
+        try {
+            new LobBatch(client, "batch").add(request, new Result<Object>());
+            fail("batched form params");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testProjectedPart() throws Exception {
+        LobRequest<Map<String, String>> user = new LobRequest.Builder<Map<String, String>>(client, Map.class)
+                .addPath("users/1")
+                .setProjection(Projection.of("name"))
+                .build();
+        LobRequest<Object> feed = new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("feed")
+                .build();
+
+        Result<Map<String, String>> userResult = new Result<>();
+        new LobBatch(client, "batch")
+                .add(user, userResult)
+                .add(feed, new Result<Object>())
+                .submit();
+
+        ObjectRequest batchRequest = (ObjectRequest) q.pop();
+        NetworkResponse response = new NetworkResponse(
+                "{\"responses\":[{\"status\":200,\"body\":{\"name\":\"lob\",\"bio\":\"long\"}},{\"status\":200}]}"
+                        .getBytes("UTF-8"),
+                new HashMap<String, String>());
+
+        Object decoded = batchRequest.getResponseDecoder().decode(response);
+        batchRequest.getListener().onResponse(new LobResponse<>(response, decoded));
+
+        // decoded the way it would be alone, through the projection
+        assertNull(userResult.error);
+        assertEquals("lob", userResult.decoded.get("name"));
+        assertFalse(userResult.decoded.containsKey("bio"));
+    }
+
+    public void testUnbatchable() {
+        LobRequest<Object> request = new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("feed")
+                .setDeadline(1, TimeUnit.SECONDS)
+                .build();
+        assertFalse(LobBatch.canBatch(request));
+
+        try {
+            new LobBatch(client, "batch").add(request, new Result<Object>());
+            fail("batched a request with a deadline");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        LobRequest<Object> deferrable = new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("analytics")
+                .setDeferrable(true)
+                .build();
+        assertFalse(LobBatch.canBatch(deferrable));
+    }
+}
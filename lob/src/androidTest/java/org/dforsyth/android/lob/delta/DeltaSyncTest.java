@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.delta;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+
+import com.google.gson.JsonObject;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStackQueue;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delta synced requests against a {@link org.dforsyth.android.lob.test.TestStack} endpoint
+ */
+public class DeltaSyncTest extends AndroidTestCase {
+
+    static class Settings {
+        String theme;
+        int fontSize;
+        List<String> flags;
+    }
+
+    /**
+     * Serves version 1 in full, version 2 as a patch against version 1, and 304 after that
+     */
+    private static class SettingsEndpoint extends TestEndpoint {
+        String ifNoneMatch;
+        String acceptIm;
+        int requests;
+
+        // sent as Delta-Base with patches, when set
+        String deltaBase;
+        // replaced with another version while the first patch is in flight, when set
+        DeltaCache racingCache;
+
+        SettingsEndpoint() {
+            super(null, null, null);
+        }
+
+        @Override
+        public boolean matchRequest(Request<?> request) {
+            return request.getUrl().endsWith("/settings");
+        }
+
+        @Override
+        public HttpResponse prepareResponse(Request<?> request, Map<String, String> additionalHeaders)
+                throws UnsupportedEncodingException {
+            try {
+                ifNoneMatch = request.getHeaders().get(Constants.HEADER_IF_NONE_MATCH);
+                acceptIm = request.getHeaders().get(Constants.HEADER_A_IM);
+            } catch (AuthFailureError e) {
+                throw new IllegalStateException(e);
+            }
+            requests++;
+
+            HttpResponse response;
+            if (ifNoneMatch == null) {
+                response = response(200, "OK",
+                        "{\"theme\":\"light\",\"fontSize\":12,\"flags\":[\"a\"]}");
+                response.addHeader(Constants.HEADER_ETAG, "\"v1\"");
+            } else if (ifNoneMatch.equals("\"v1\"")) {
+                response = response(DeltaDecoder.SC_IM_USED, "IM Used",
+                        "[{\"op\":\"replace\",\"path\":\"/theme\",\"value\":\"dark\"},"
+                                + "{\"op\":\"add\",\"path\":\"/flags/-\",\"value\":\"b\"}]");
+                response.addHeader(Constants.HEADER_ETAG, "\"v2\"");
+                response.addHeader(Constants.HEADER_IM, DeltaDecoder.IM_JSON_PATCH);
+                if (deltaBase != null) {
+                    response.addHeader(Constants.HEADER_DELTA_BASE, deltaBase);
+                }
+                if (racingCache != null) {
+                    racingCache.put("https://api.example.com/settings", new DeltaCache.Entry("\"v3\"", new JsonObject()));
+                    racingCache = null;
+                }
+            } else {
+                response = response(304, "Not Modified", "");
+            }
+            return response;
+        }
+
+        private static HttpResponse response(int status, String reason, String body)
+                throws UnsupportedEncodingException {
+            HttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, reason));
+            response.setEntity(new StringEntity(body));
+            return response;
+        }
+    }
+
+    public void testSync() throws Exception {
+        SettingsEndpoint endpoint = new SettingsEndpoint();
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .build();
+        DeltaCache cache = new DeltaCache();
+
+        Settings full = sync(client, cache);
+        assertNull(endpoint.ifNoneMatch);
+        assertEquals(DeltaDecoder.ACCEPTED_IM, endpoint.acceptIm);
+        assertEquals("light", full.theme);
+
+        Settings patched = sync(client, cache);
+        assertEquals("\"v1\"", endpoint.ifNoneMatch);
+        assertEquals("dark", patched.theme);
+        assertEquals(12, patched.fontSize);
+        assertEquals(2, patched.flags.size());
+
+        Settings unchanged = sync(client, cache);
+        assertEquals("\"v2\"", endpoint.ifNoneMatch);
+        assertEquals("dark", unchanged.theme);
+        assertEquals("b", unchanged.flags.get(1));
+    }
+
+    public void testReusedRequest() throws Exception {
+        SettingsEndpoint endpoint = new SettingsEndpoint();
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .build();
+        DeltaCache cache = new DeltaCache();
+        LobRequest<Settings> request = new LobRequest.Builder<Settings>(client, Settings.class)
+                .addPath("settings")
+                .setDeltaCache(cache)
+                .build();
+
+        assertEquals("light", request.request().getDecoded().theme);
+        assertNull(endpoint.ifNoneMatch);
+
+        Settings patched = request.request().getDecoded();
+        assertEquals("\"v1\"", endpoint.ifNoneMatch);
+        assertEquals(2, patched.flags.size());
+
+        // the same request asks about the version it has now, and the patch isn't applied twice
+        Settings unchanged = request.request().getDecoded();
+        assertEquals("\"v2\"", endpoint.ifNoneMatch);
+        assertEquals(2, unchanged.flags.size());
+    }
+
+    public void testCachedVersionReplacedInFlight() throws Exception {
+        SettingsEndpoint endpoint = new SettingsEndpoint();
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .build();
+        DeltaCache cache = new DeltaCache();
+
+        sync(client, cache);
+        endpoint.racingCache = cache;
+
+        // the v1 patch doesn't fit v3, so the request starts over with a full body
+        Settings settings = sync(client, cache);
+        assertEquals(3, endpoint.requests);
+        assertNull(endpoint.ifNoneMatch);
+        assertEquals("light", settings.theme);
+        assertEquals("\"v1\"", cache.get("https://api.example.com/settings").etag);
+    }
+
+    public void testDeltaBaseMismatch() throws Exception {
+        SettingsEndpoint endpoint = new SettingsEndpoint();
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .build();
+        DeltaCache cache = new DeltaCache();
+
+        sync(client, cache);
+        endpoint.deltaBase = "\"v0\"";
+
+        Settings settings = sync(client, cache);
+        assertEquals(3, endpoint.requests);
+        assertEquals("light", settings.theme);
+        assertEquals(1, settings.flags.size());
+    }
+
+    public void testNotGet() {
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com")).build();
+
+        try {
+            new LobRequest.Builder<Settings>(client, Settings.class)
+                    .setMethod(Request.Method.POST)
+                    .setDeltaCache(new DeltaCache())
+                    .build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static Settings sync(Lob client, DeltaCache cache) throws Exception {
+        return new LobRequest.Builder<Settings>(client, Settings.class)
+                .addPath("settings")
+                .setDeltaCache(cache)
+                .build()
+                .request()
+                .getDecoded();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.delta;
+
+import android.test.AndroidTestCase;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Tests for {@link JsonPatch}, mostly the examples from RFC 6902 and RFC 7386
+ */
+public class JsonPatchTest extends AndroidTestCase {
+
+    private static JsonElement json(String json) {
+        return new JsonParser().parse(json);
+    }
+
+    private static void assertPatch(String expected, String target, String patch) throws PatchError {
+        assertEquals(json(expected), JsonPatch.apply(json(target), json(patch)));
+    }
+
+    private static void assertPatchError(String target, String patch) {
+        JsonElement document = json(target);
+        try {
+            JsonPatch.apply(document, json(patch));
+            fail(patch);
+        } catch (PatchError e) {
+            // the target is never changed
+            assertEquals(json(target), document);
+        }
+    }
+
+    public void testAdd() throws Exception {
+        assertPatch("{\"foo\":\"bar\",\"baz\":\"qux\"}",
+                "{\"foo\":\"bar\"}",
+                "[{\"op\":\"add\",\"path\":\"/baz\",\"value\":\"qux\"}]");
+        assertPatch("{\"foo\":[\"bar\",\"qux\",\"baz\"]}",
+                "{\"foo\":[\"bar\",\"baz\"]}",
+                "[{\"op\":\"add\",\"path\":\"/foo/1\",\"value\":\"qux\"}]");
+        assertPatch("{\"foo\":[\"bar\",[\"abc\",\"def\"]]}",
+                "{\"foo\":[\"bar\"]}",
+                "[{\"op\":\"add\",\"path\":\"/foo/-\",\"value\":[\"abc\",\"def\"]}]");
+        assertPatch("{\"a/b\":1,\"m~n\":2}",
+                "{}",
+                "[{\"op\":\"add\",\"path\":\"/a~1b\",\"value\":1},{\"op\":\"add\",\"path\":\"/m~0n\",\"value\":2}]");
+    }
+
+    public void testRemoveReplace() throws Exception {
+        assertPatch("{\"foo\":[\"bar\",\"baz\"]}",
+                "{\"foo\":[\"bar\",\"qux\",\"baz\"]}",
+                "[{\"op\":\"remove\",\"path\":\"/foo/1\"}]");
+        assertPatch("{\"baz\":\"boo\",\"foo\":\"bar\"}",
+                "{\"baz\":\"qux\",\"foo\":\"bar\"}",
+                "[{\"op\":\"replace\",\"path\":\"/baz\",\"value\":\"boo\"}]");
+        assertPatch("[1]", "{\"whole\":true}", "[{\"op\":\"replace\",\"path\":\"\",\"value\":[1]}]");
+    }
+
+    public void testMoveCopyTest() throws Exception {
+        assertPatch("{\"foo\":{\"bar\":\"baz\"},\"qux\":{\"corge\":\"grault\",\"thud\":\"fred\"}}",
+                "{\"foo\":{\"bar\":\"baz\",\"waldo\":\"fred\"},\"qux\":{\"corge\":\"grault\"}}",
+                "[{\"op\":\"move\",\"from\":\"/foo/waldo\",\"path\":\"/qux/thud\"}]");
+        assertPatch("{\"foo\":[\"all\",\"cows\",\"eat\",\"grass\"]}",
+                "{\"foo\":[\"all\",\"grass\",\"cows\",\"eat\"]}",
+                "[{\"op\":\"move\",\"from\":\"/foo/1\",\"path\":\"/foo/3\"}]");
+        assertPatch("{\"a\":[1],\"b\":[1]}",
+                "{\"a\":[1]}",
+                "[{\"op\":\"copy\",\"from\":\"/a\",\"path\":\"/b\"},{\"op\":\"test\",\"path\":\"/b/0\",\"value\":1}]");
+    }
+
+    public void testErrors() {
+        assertPatchError("{\"foo\":\"bar\"}", "[{\"op\":\"add\",\"path\":\"/baz/bat\",\"value\":\"qux\"}]");
+        assertPatchError("{\"foo\":\"bar\"}", "[{\"op\":\"remove\",\"path\":\"/missing\"}]");
+        assertPatchError("{\"foo\":[1]}", "[{\"op\":\"add\",\"path\":\"/foo/3\",\"value\":2}]");
+        assertPatchError("{\"foo\":\"bar\"}",
+                "[{\"op\":\"add\",\"path\":\"/new\",\"value\":1},{\"op\":\"test\",\"path\":\"/foo\",\"value\":\"baz\"}]");
+        assertPatchError("{\"foo\":\"bar\"}", "[{\"op\":\"frobnicate\",\"path\":\"/foo\"}]");
+        assertPatchError("{\"foo\":\"bar\"}", "{\"op\":\"remove\",\"path\":\"/foo\"}");
+    }
+
+    public void testMerge() {
+        assertEquals(
+                json("{\"title\":\"Hello!\",\"author\":{\"givenName\":\"John\"},"
+                        + "\"tags\":[\"example\"],\"content\":\"This will be unchanged\","
+                        + "\"phoneNumber\":\"+01-123-456-7890\"}"),
+                JsonPatch.merge(
+                        json("{\"title\":\"Goodbye!\",\"author\":{\"givenName\":\"John\",\"familyName\":\"Doe\"},"
+                                + "\"tags\":[\"example\",\"sample\"],\"content\":\"This will be unchanged\"}"),
+                        json("{\"title\":\"Hello!\",\"phoneNumber\":\"+01-123-456-7890\","
+                                + "\"author\":{\"familyName\":null},\"tags\":[\"example\"]}")));
+    }
+}
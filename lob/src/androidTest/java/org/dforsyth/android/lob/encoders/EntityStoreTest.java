@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.NetworkResponse;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link EntityStore} and {@link NormalizingEncoder}
+ */
+public class EntityStoreTest extends AndroidTestCase {
+    private final static Type POSTS = new TypeToken<List<Post>>() {}.getType();
+
+    static class User {
+        long id;
+        String name;
+        String bio;
+        int followers;
+        Post pinned;
+    }
+
+    static class Post {
+        String id;
+        String text;
+        User author;
+    }
+
+    private NormalizingEncoder encoder() {
+        EntityStore store = new EntityStore()
+                .register(User.class, "id")
+                .register(Post.class, "id");
+        return new NormalizingEncoder(new GsonEncoder(), store);
+    }
+
+    public void testDeduplicate() throws Exception {
+        NormalizingEncoder encoder = encoder();
+
+        List<Post> posts = encoder.decode("[{\"id\":\"p1\",\"author\":{\"id\":1,\"name\":\"ann\"}},"
+                + "{\"id\":\"p2\",\"author\":{\"id\":1,\"name\":\"ann\"}}]", POSTS);
+        assertSame(posts.get(0).author, posts.get(1).author);
+
+        Post post = encoder.decode("{\"id\":\"p3\",\"author\":{\"id\":1}}", Post.class);
+        assertSame(posts.get(0).author, post.author);
+        assertSame(post.author, encoder.getStore().get(User.class, 1L));
+        assertEquals(4, encoder.getStore().size());
+    }
+
+    public void testMerge() throws Exception {
+        NormalizingEncoder encoder = encoder();
+
+        User user = encoder.decode("{\"id\":1,\"name\":\"ann\",\"bio\":\"old\"}", User.class);
+        User updated = encoder.decode("{\"id\":1,\"bio\":\"new\"}", User.class);
+
+        assertSame(user, updated);
+        assertEquals("ann", user.name);
+        assertEquals("new", user.bio);
+    }
+
+    public void testPartialPrimitives() throws Exception {
+        NormalizingEncoder encoder = encoder();
+
+        User user = encoder.decode("{\"id\":1,\"name\":\"ann\",\"followers\":10}", User.class);
+        encoder.decode("{\"id\":1,\"bio\":\"new\"}", User.class);
+        assertEquals(10, user.followers);
+        assertEquals("ann", user.name);
+
+        // members that are there are copied, explicit nulls too
+        encoder.decode("{\"id\":1,\"followers\":0,\"name\":null}", User.class);
+        assertEquals(0, user.followers);
+        assertNull(user.name);
+        assertEquals("new", user.bio);
+    }
+
+    public void testOlderResponse() throws Exception {
+        NormalizingEncoder encoder = encoder();
+
+        User user = encoder.decode(response("{\"id\":1,\"name\":\"new\"}",
+                "Wed, 21 Oct 2015 07:28:00 GMT"), User.class);
+
+        // a cache hit from before resolves to the same entity, but doesn't roll it back
+        User cached = encoder.decode(response("{\"id\":1,\"name\":\"old\",\"bio\":\"b\"}",
+                "Wed, 21 Oct 2015 07:20:00 GMT"), User.class);
+        assertSame(user, cached);
+        assertEquals("new", user.name);
+        assertNull(user.bio);
+
+        encoder.decode(response("{\"id\":1,\"name\":\"newer\"}",
+                "Wed, 21 Oct 2015 07:30:00 GMT"), User.class);
+        assertEquals("newer", user.name);
+    }
+
+    private static NetworkResponse response(String body, String date) throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Date", date);
+        headers.put("Content-Type", "application/json; charset=UTF-8");
+        return new NetworkResponse(200, body.getBytes("UTF-8"), headers, false);
+    }
+
+    public void testCycle() throws Exception {
+        NormalizingEncoder encoder = encoder();
+
+        User user = new User();
+        user.id = 2;
+        user.pinned = new Post();
+        user.pinned.id = "p";
+        user.pinned.author = user;
+
+        assertSame(user, encoder.getStore().normalize(user));
+        assertSame(user.pinned, encoder.getStore().get(Post.class, "p"));
+    }
+
+    public void testUnknownIdField() {
+        try {
+            new EntityStore().register(User.class, "uuid");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+
+import org.dforsyth.android.lob.adapters.AdapterRegistry;
+import org.dforsyth.android.lob.adapters.LobModel;
+
+import java.util.List;
+
+/**
+ * Compares decoding through adapters generated by lob-compiler with Gson's reflective adapters.
+ * Timings are logged, not asserted.
+ */
+public class GsonEncoderBenchmark extends AndroidTestCase {
+    private final static String TAG = GsonEncoderBenchmark.class.getSimpleName();
+
+    private final static int ITERATIONS = 2000;
+
+    private final static String JSON = "{\"id\":7,\"user_name\":\"lob\",\"admin\":true,\"score\":1.5,"
+            + "\"tags\":[\"a\",\"b\"],\"address\":{\"street\":\"Main\",\"number\":4},"
+            + "\"friends\":[{\"id\":8,\"user_name\":\"volley\"},{\"id\":9}],\"unknown\":{\"x\":[1,2]}}";
+
+    @LobModel
+    static class User {
+        long id;
+        @SerializedName("user_name") String name;
+        boolean admin;
+        double score;
+        List<String> tags;
+        Address address;
+        List<User> friends;
+    }
+
+    @LobModel
+    static class Address {
+        String street;
+        int number;
+    }
+
+    private static GsonEncoder generated() {
+        return new GsonEncoder(new AdapterRegistry());
+    }
+
+    public void testGeneratedAdapterUsed() {
+        Gson gson = new GsonBuilder().registerTypeAdapterFactory(new AdapterRegistry()).create();
+
+        assertTrue(gson.getAdapter(User.class).getClass().getName().endsWith(AdapterRegistry.ADAPTER_SUFFIX));
+    }
+
+    public void testSameResult() throws DecodeError {
+        User reflective = new GsonEncoder().decode(JSON, User.class);
+        User generated = generated().decode(JSON, User.class);
+
+        assertEquals(reflective.id, generated.id);
+        assertEquals(reflective.name, generated.name);
+        assertEquals(reflective.admin, generated.admin);
+        assertEquals(reflective.score, generated.score);
+        assertEquals(reflective.tags, generated.tags);
+        assertEquals(reflective.address.street, generated.address.street);
+        assertEquals(reflective.address.number, generated.address.number);
+        assertEquals(reflective.friends.size(), generated.friends.size());
+        assertEquals(reflective.friends.get(1).id, generated.friends.get(1).id);
+        assertNull(generated.friends.get(1).name);
+
+        assertEquals(new GsonEncoder().encode(reflective).length(), generated().encode(generated).length());
+    }
+
+    public void testFirstDecode() throws DecodeError {
+        long start = System.nanoTime();
+        new GsonEncoder().decode(JSON, User.class);
+        long reflective = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        generated().decode(JSON, User.class);
+        long generated = System.nanoTime() - start;
+
+        Log.i(TAG, "first decode: reflective " + reflective / 1000 + "us, generated " + generated / 1000 + "us");
+    }
+
+    public void testPrewarmedFirstDecode() throws DecodeError {
+        GsonEncoder encoder = new GsonEncoder();
+        encoder.prewarm(User.class);
+
+        long start = System.nanoTime();
+        encoder.decode(JSON, User.class);
+        Log.i(TAG, "first decode after prewarm: " + (System.nanoTime() - start) / 1000 + "us");
+    }
+
+    public void testThroughput() throws DecodeError {
+        GsonEncoder reflectiveEncoder = new GsonEncoder();
+        GsonEncoder generatedEncoder = generated();
+
+        // build adapters and warm up the runtime before timing
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            reflectiveEncoder.decode(JSON, User.class);
+            generatedEncoder.decode(JSON, User.class);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            reflectiveEncoder.decode(JSON, User.class);
+        }
+        long reflective = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            generatedEncoder.decode(JSON, User.class);
+        }
+        long generated = System.nanoTime() - start;
+
+        Log.i(TAG, ITERATIONS + " decodes: reflective " + reflective / 1000000 + "ms, generated "
+                + generated / 1000000 + "ms");
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.NetworkResponse;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import org.dforsyth.android.lob.util.Constants;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Tests for {@link JsonArrayView}
+ */
+public class JsonArrayViewTest extends AndroidTestCase {
+
+    static class Item {
+        int id;
+        String name;
+    }
+
+    private static JsonArrayView<Item> view(String json) throws Exception {
+        Map<String, String> headers = Collections.singletonMap(
+                Constants.HEADER_CONTENT_TYPE, Constants.CONTENT_TYPE_JSON);
+        NetworkResponse response = new NetworkResponse(200, json.getBytes("UTF-8"), headers, false);
+        return JsonArrayView.<Item>decoder(new Gson(), Item.class, 2).decode(response);
+    }
+
+    public void testIndex() throws Exception {
+        // the second element wouldn't decode as an Item, but it is never asked for
+        JsonArrayView<Item> view = view(" [ {\"id\":1,\"name\":\"a,]}\\\"\"} ,\n"
+                + "{\"id\":2,\"name\":[\"ignored\"]}, {\"id\":3,\"name\":\"c\"}, null ] ");
+
+        assertEquals(4, view.size());
+        assertEquals(3, view.get(2).id);
+        assertEquals("a,]}\"", view.get(0).name);
+        assertNull(view.get(3));
+    }
+
+    public void testCached() throws Exception {
+        JsonArrayView<Item> view = view("[{\"id\":1},{\"id\":2},{\"id\":3}]");
+
+        Item first = view.get(0);
+        assertSame(first, view.get(0));
+
+        view.get(1);
+        view.get(2);
+        assertNotSame(first, view.get(0));
+    }
+
+    public void testEmpty() throws Exception {
+        assertEquals(0, view("[]").size());
+        assertEquals(0, view(" [ ] ").size());
+    }
+
+    public void testMalformed() throws Exception {
+        String[] malformed = {"{}", "[1,,2]", "[1,", "[{\"id\":1]"};
+        for (String json : malformed) {
+            try {
+                view(json);
+                fail(json);
+            } catch (DecodeError e) {
+                // expected
+            }
+        }
+    }
+
+    public void testBadElement() throws Exception {
+        JsonArrayView<Item> view = view("[{\"id\":1},{\"id\":\"x\"}]");
+
+        assertEquals(1, view.get(0).id);
+        try {
+            view.get(1);
+            fail();
+        } catch (JsonParseException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.NetworkResponse;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link MergingDecoder}
+ */
+public class MergingDecoderTest extends AndroidTestCase {
+
+    static class Quote {
+        String symbol;
+        double price;
+    }
+
+    static class Board {
+        long version;
+        Quote top;
+        List<Quote> quotes;
+    }
+
+    static class Account {
+        String displayName;
+        int loginCount;
+    }
+
+    /**
+     * Reads a quote from {"sym": ...}, which reflection wouldn't
+     */
+    static class QuoteAdapter extends TypeAdapter<Quote> {
+        @Override
+        public void write(JsonWriter out, Quote value) throws IOException {
+            out.beginObject().name("sym").value(value.symbol).endObject();
+        }
+
+        @Override
+        public Quote read(JsonReader in) throws IOException {
+            Quote quote = new Quote();
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("sym")) {
+                    quote.symbol = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return quote;
+        }
+    }
+
+    private static NetworkResponse response(String json) throws Exception {
+        Map<String, String> headers = Collections.emptyMap();
+        return new NetworkResponse(200, json.getBytes("UTF-8"), headers, false);
+    }
+
+    public void testReuse() throws Exception {
+        MergingDecoder<Board> decoder = new MergingDecoder<>(new Gson(), Board.class);
+
+        Board first = decoder.decode(response("{\"version\":1,\"top\":{\"symbol\":\"A\",\"price\":1.5},"
+                + "\"quotes\":[{\"symbol\":\"A\",\"price\":1.5},{\"symbol\":\"B\",\"price\":2}]}"));
+        Quote top = first.top;
+        List<Quote> quotes = first.quotes;
+        Quote second = quotes.get(1);
+
+        Board next = decoder.decode(response("{\"version\":2,\"top\":{\"symbol\":\"B\",\"price\":3},"
+                + "\"quotes\":[{\"symbol\":\"A\",\"price\":1.5},{\"symbol\":\"B\",\"price\":3},"
+                + "{\"symbol\":\"C\",\"price\":4}],\"unknown\":[1]}"));
+
+        assertSame(first, next);
+        assertSame(top, next.top);
+        assertSame(quotes, next.quotes);
+        assertSame(second, next.quotes.get(1));
+        assertEquals(2, next.version);
+        assertEquals("B", next.top.symbol);
+        assertEquals(3.0, next.quotes.get(1).price);
+        assertEquals("C", next.quotes.get(2).symbol);
+    }
+
+    public void testShrinkAndNull() throws Exception {
+        Board board = new Gson().fromJson("{\"top\":{\"symbol\":\"A\"},"
+                + "\"quotes\":[{\"symbol\":\"A\"},{\"symbol\":\"B\"}]}", Board.class);
+        MergingDecoder<Board> decoder = new MergingDecoder<>(new Gson(), Board.class, board);
+
+        Board next = decoder.decode(response("{\"top\":null,\"quotes\":[{\"symbol\":\"Z\"}]}"));
+
+        assertSame(board, next);
+        assertNull(next.top);
+        assertEquals(1, next.quotes.size());
+        assertEquals("Z", next.quotes.get(0).symbol);
+    }
+
+    public void testMalformed() throws Exception {
+        MergingDecoder<Board> decoder = new MergingDecoder<>(new Gson(), Board.class, new Board());
+
+        try {
+            decoder.decode(response("{\"version\":\"x\"}"));
+            fail();
+        } catch (DecodeError e) {
+            // expected
+        }
+    }
+
+    public void testPartialFailure() throws Exception {
+        MergingDecoder<Board> decoder = new MergingDecoder<>(new Gson(), Board.class);
+        Board board = decoder.decode(response("{\"version\":1,\"top\":{\"symbol\":\"A\",\"price\":1.5},"
+                + "\"quotes\":[{\"symbol\":\"A\",\"price\":1.5},{\"symbol\":\"B\",\"price\":2}]}"));
+
+        // fails after changing the version, the top quote and the list
+        try {
+            decoder.decode(response("{\"version\":2,\"top\":{\"symbol\":\"B\",\"price\":3},"
+                    + "\"quotes\":[{\"symbol\":\"Z\"}],\"version\":\"x\"}"));
+            fail();
+        } catch (DecodeError e) {
+            // expected
+        }
+
+        assertSame(board, decoder.getPrevious());
+        assertEquals(1, board.version);
+        assertEquals("A", board.top.symbol);
+        assertEquals(1.5, board.top.price);
+        assertEquals(2, board.quotes.size());
+        assertEquals("A", board.quotes.get(0).symbol);
+        assertEquals(1.5, board.quotes.get(0).price);
+    }
+
+    public void testUnmentionedReset() throws Exception {
+        MergingDecoder<Board> decoder = new MergingDecoder<>(new Gson(), Board.class);
+        Board board = decoder.decode(response("{\"version\":1,\"top\":{\"symbol\":\"A\",\"price\":1.5},"
+                + "\"quotes\":[]}"));
+
+        decoder.decode(response("{\"top\":{\"symbol\":\"B\"}}"));
+
+        // the same as decoding the response fresh
+        assertEquals(0, board.version);
+        assertNull(board.quotes);
+        assertEquals("B", board.top.symbol);
+        assertEquals(0.0, board.top.price);
+    }
+
+    public void testNamingPolicy() throws Exception {
+        Gson gson = new GsonBuilder()
+                .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+                .create();
+        MergingDecoder<Account> decoder = new MergingDecoder<>(
+                gson, FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES, Account.class, null);
+
+        Account first = decoder.decode(response("{\"display_name\":\"A\",\"login_count\":1}"));
+        Account next = decoder.decode(response("{\"display_name\":\"B\",\"login_count\":2}"));
+
+        // members are matched to fields, not skipped and reset
+        assertSame(first, next);
+        assertEquals("B", next.displayName);
+        assertEquals(2, next.loginCount);
+    }
+
+    public void testTypeAdapter() throws Exception {
+        Gson gson = new GsonBuilder()
+                .registerTypeAdapter(Quote.class, new QuoteAdapter())
+                .create();
+        MergingDecoder<Board> decoder = new MergingDecoder<>(gson, Board.class);
+
+        Board first = decoder.decode(response("{\"version\":1,\"top\":{\"sym\":\"A\"}}"));
+        Quote top = first.top;
+        Board next = decoder.decode(response("{\"version\":2,\"top\":{\"sym\":\"B\"}}"));
+
+        // the board is merged, the quote is left to its adapter
+        assertSame(first, next);
+        assertEquals(2, next.version);
+        assertNotSame(top, next.top);
+        assertEquals("B", next.top.symbol);
+    }
+}
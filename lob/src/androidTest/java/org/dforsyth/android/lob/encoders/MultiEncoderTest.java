@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.protobuf.MessageLite;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStackQueue;
+import org.dforsyth.android.lob.util.Constants;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link MultiEncoder} and {@link MessagePackEncoder}
+ */
+public class MultiEncoderTest extends AndroidTestCase {
+
+    static class Item {
+        long id;
+        String name;
+        double price;
+        List<String> tags;
+        byte[] blob;
+    }
+
+    private static Item item() {
+        Item item = new Item();
+        item.id = 1L << 40;
+        item.name = "widget";
+        item.price = 2.5;
+        item.tags = Arrays.asList("a", "b");
+        item.blob = new byte[] {1, -2, 3};
+        return item;
+    }
+
+    private static NetworkResponse response(byte[] data, String contentType) {
+        Map<String, String> headers = Collections.singletonMap(Constants.HEADER_CONTENT_TYPE, contentType);
+        return new NetworkResponse(200, data, headers, false);
+    }
+
+    public void testMessagePackRoundTrip() throws Exception {
+        MessagePackEncoder codec = new MessagePackEncoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(item(), out);
+
+        MultiEncoder encoder = new MultiEncoder().addCodec(codec);
+        Item decoded = encoder.decode(response(out.toByteArray(), "application/msgpack"), Item.class);
+
+        assertEquals(1L << 40, decoded.id);
+        assertEquals("widget", decoded.name);
+        assertEquals(2.5, decoded.price);
+        assertEquals(Arrays.asList("a", "b"), decoded.tags);
+        assertTrue(Arrays.equals(new byte[] {1, -2, 3}, decoded.blob));
+    }
+
+    static class Catalog {
+        Map<String, List<Integer>> stock;
+        String note;
+    }
+
+    public void testMessagePackStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePacker packer = MessagePack.newDefaultPacker(out);
+        packer.packMapHeader(2);
+        packer.packString("stock");
+        packer.packMapHeader(2);
+        packer.packString("a");
+        packer.packArrayHeader(2).packInt(1).packInt(2);
+        packer.packString("b");
+        packer.packArrayHeader(0);
+        packer.packString("note");
+        packer.packString("say \"hi\"\n");
+        packer.flush();
+
+        Catalog decoded = new MultiEncoder().addCodec(new MessagePackEncoder())
+                .decode(response(out.toByteArray(), "application/msgpack"), Catalog.class);
+
+        assertEquals(Arrays.asList(1, 2), decoded.stock.get("a"));
+        assertEquals(Collections.<Integer>emptyList(), decoded.stock.get("b"));
+        assertEquals("say \"hi\"\n", decoded.note);
+    }
+
+    public void testMessagePackUsesJsonGson() throws Exception {
+        Gson gson = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.UPPER_CAMEL_CASE).create();
+        MessagePackEncoder codec = new MessagePackEncoder();
+        MultiEncoder encoder = new MultiEncoder(new GsonEncoder(gson)).addCodec(codec);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(item(), out);
+        Item decoded = encoder.decode(response(out.toByteArray(), "application/msgpack"), Item.class);
+        assertEquals("widget", decoded.name);
+
+        // the names on the wire are the JSON encoder's
+        Map<?, ?> raw = new MultiEncoder().addCodec(new MessagePackEncoder())
+                .decode(response(out.toByteArray(), "application/msgpack"), Map.class);
+        assertEquals("widget", raw.get("Name"));
+    }
+
+    public void testJsonFallback() throws Exception {
+        MultiEncoder encoder = new MultiEncoder().addCodec(new MessagePackEncoder());
+        byte[] json = "{\"name\":\"widget\"}".getBytes("UTF-8");
+
+        Item decoded = encoder.decode(response(json, Constants.CONTENT_TYPE_JSON), Item.class);
+        assertEquals("widget", decoded.name);
+    }
+
+    public void testAccept() {
+        MultiEncoder encoder = new MultiEncoder()
+                .addCodec(new ProtobufEncoder())
+                .addCodec(new MessagePackEncoder());
+
+        assertEquals("application/x-protobuf, application/msgpack;q=0.9, application/json;q=0.1",
+                encoder.getAccept(MessageLite.class));
+    }
+
+    public void testAcceptByType() {
+        MultiEncoder encoder = new MultiEncoder()
+                .addCodec(new ProtobufEncoder())
+                .addCodec(new MessagePackEncoder());
+
+        // protobuf can't decode a plain object, so don't ask for it
+        assertEquals("application/msgpack, application/json;q=0.1", encoder.getAccept(Item.class));
+        assertEquals(Constants.CONTENT_TYPE_JSON, encoder.getAccept(null));
+
+        encoder = new MultiEncoder().addCodec(new ProtobufEncoder());
+        assertEquals(Constants.CONTENT_TYPE_JSON, encoder.getAccept(Item.class));
+    }
+
+    public void testRequestCodec() {
+        MultiEncoder encoder = new MultiEncoder().addCodec(new MessagePackEncoder());
+        assertEquals(Constants.CONTENT_TYPE_JSON, encoder.getContentType());
+
+        encoder.setRequestCodec("application/msgpack");
+        assertEquals(MessagePackEncoder.CONTENT_TYPE, encoder.getContentType());
+
+        try {
+            encoder.setRequestCodec("application/x-unknown");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testProjectedRequest() throws Exception {
+        final String[] accept = new String[1];
+        TestEndpoint endpoint = new TestEndpoint(null, null, null) {
+            @Override
+            public boolean matchRequest(Request<?> request) {
+                return true;
+            }
+
+            @Override
+            public HttpResponse prepareResponse(Request<?> request, Map<String, String> additionalHeaders)
+                    throws UnsupportedEncodingException {
+                try {
+                    accept[0] = request.getHeaders().get(Constants.HEADER_ACCEPT);
+                } catch (AuthFailureError e) {
+                    throw new IllegalStateException(e);
+                }
+                HttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+                response.setEntity(new StringEntity("{\"Name\":\"widget\",\"Price\":2.5,\"Blob\":[1]}"));
+                response.addHeader(Constants.HEADER_CONTENT_TYPE, Constants.CONTENT_TYPE_JSON);
+                return response;
+            }
+        };
+
+        // the encoder's own Gson has to be the one that decodes, or the names won't match
+        Gson gson = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.UPPER_CAMEL_CASE).create();
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .setEncoder(new MultiEncoder(new GsonEncoder(gson)).addCodec(new MessagePackEncoder()))
+                .build();
+
+        Item item = new LobRequest.Builder<Item>(client, Item.class)
+                .setProjection(Projection.of("Name", "Price"))
+                .build()
+                .request()
+                .getDecoded();
+
+        assertEquals(Constants.MEDIA_TYPE_JSON, accept[0]);
+        assertEquals("widget", item.name);
+        assertEquals(2.5, item.price);
+        assertNull(item.blob);
+    }
+
+    public void testProjectedRequestNeedsGson() {
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setEncoder(new Encoder() {
+                    @Override
+                    public <T> T decode(String json, Type type) {
+                        return null;
+                    }
+
+                    @Override
+                    public <T> String encode(T object) {
+                        return null;
+                    }
+                })
+                .build();
+
+        try {
+            new LobRequest.Builder<Item>(client, Item.class)
+                    .setProjection(Projection.of("name"))
+                    .build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.NetworkResponse;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link Projection} and {@link ProjectedDecoder}
+ */
+public class ProjectionTest extends AndroidTestCase {
+    private final static String JSON = "{\"id\":7,\"name\":\"post\","
+            + "\"author\":{\"name\":\"ann\",\"bio\":\"long\",\"followers\":[1,2,3]},"
+            + "\"comments\":[{\"id\":1,\"body\":\"a\"},{\"id\":2,\"body\":\"b\"}],"
+            + "\"embedded\":{\"deep\":{\"deeper\":[{},{}]}}}";
+
+    static class Author {
+        String name;
+        String bio;
+    }
+
+    static class Comment {
+        long id;
+        String body;
+    }
+
+    static class Post {
+        long id;
+        @SerializedName("name") String title;
+        Author author;
+        List<Comment> comments;
+        Map<String, Object> embedded;
+    }
+
+    static class Summary {
+        long id;
+        Author author;
+    }
+
+    static class Profile {
+        String displayName;
+        int followerCount;
+    }
+
+    private static <T> T decode(Class<T> type, Projection projection) throws Exception {
+        return decode(new Gson(), JSON, type, projection);
+    }
+
+    private static <T> T decode(Gson gson, String json, Class<T> type, Projection projection) throws Exception {
+        Map<String, String> headers = Collections.emptyMap();
+        NetworkResponse response = new NetworkResponse(200, json.getBytes("UTF-8"), headers, false);
+        return new ProjectedDecoder<T>(gson, type, projection).decode(response);
+    }
+
+    public void testPaths() throws Exception {
+        Post post = decode(Post.class, Projection.of("id", "author.name", "comments[].id"));
+
+        assertEquals(7, post.id);
+        assertNull(post.title);
+        assertEquals("ann", post.author.name);
+        assertNull(post.author.bio);
+        assertEquals(2, post.comments.size());
+        assertEquals(2, post.comments.get(1).id);
+        assertNull(post.comments.get(1).body);
+        assertNull(post.embedded);
+    }
+
+    public void testWholeSubtree() throws Exception {
+        Post post = decode(Post.class, Projection.of("author", "author.name"));
+
+        assertEquals("ann", post.author.name);
+        assertEquals("long", post.author.bio);
+    }
+
+    public void testType() throws Exception {
+        Projection projection = Projection.of(Summary.class);
+        assertNull(projection.get("comments"));
+        assertNull(projection.get("author").get("followers"));
+
+        Summary summary = decode(Summary.class, projection);
+        assertEquals(7, summary.id);
+        assertEquals("long", summary.author.bio);
+
+        Projection postProjection = Projection.of(Post.class);
+        assertNotNull(postProjection.get("name"));
+        assertTrue(postProjection.get("embedded").isAll());
+    }
+
+    public void testEmptyPath() {
+        try {
+            Projection.of("author.");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testTypeWithNamingPolicy() throws Exception {
+        FieldNamingPolicy policy = FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES;
+        Gson gson = new GsonBuilder().setFieldNamingPolicy(policy).create();
+
+        Projection projection = Projection.of(Profile.class, policy);
+        assertNotNull(projection.get("display_name"));
+        assertNull(projection.get("displayName"));
+        // cached apart from the projection with Java names
+        assertNotNull(Projection.of(Profile.class).get("displayName"));
+
+        Profile profile = decode(gson, "{\"display_name\":\"ann\",\"follower_count\":3,\"bio\":\"long\"}",
+                Profile.class, projection);
+        assertEquals("ann", profile.displayName);
+        assertEquals(3, profile.followerCount);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.StringRequest;
+
+/**
+ * Tests for {@link HostThrottle}
+ */
+public class HostThrottleTest extends AndroidTestCase {
+
+    private Request<?> request(String url) {
+        return new StringRequest(url, null, null);
+    }
+
+    public void testDefaultConcurrency() {
+        HostThrottle throttle = new HostThrottle(2);
+
+        Request<?> a = request("https://a.example.com/1");
+
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(a));
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request("https://a.example.com/2")));
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(request("https://a.example.com/3")));
+
+        // other hosts keep flowing
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request("https://b.example.com/1")));
+
+        throttle.release(a);
+
+        assertEquals(1, throttle.getInFlight("a.example.com"));
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request("https://a.example.com/3")));
+    }
+
+    public void testHostConcurrency() {
+        HostThrottle throttle = new HostThrottle(4)
+                .setMaxConcurrency("analytics.example.com", 1);
+
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request("https://analytics.example.com/e")));
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(request("https://analytics.example.com/e")));
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request("https://api.example.com/e")));
+    }
+
+    public void testRate() {
+        HostThrottle throttle = new HostThrottle(10)
+                .setRate("api.example.com", 1, 2);
+
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request("https://api.example.com/1")));
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request("https://api.example.com/2")));
+
+        long delay = throttle.tryAcquire(request("https://api.example.com/3"));
+        assertTrue(delay > 0);
+        assertTrue(delay <= 1000);
+
+        // a refused request doesn't count against concurrency
+        assertEquals(2, throttle.getInFlight("api.example.com"));
+    }
+}
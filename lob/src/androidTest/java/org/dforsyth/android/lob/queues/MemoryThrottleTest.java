@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.StringRequest;
+
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobRequest;
+
+import java.util.Map;
+
+/**
+ * Tests for {@link MemoryThrottle} and {@link QueueMetrics}
+ */
+public class MemoryThrottleTest extends AndroidTestCase {
+    private Lob client;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com")).build();
+    }
+
+    private Request<?> request(long sizeHint) {
+        return new LobRequest.Builder<Object>(client, Object.class)
+                .addPath("feed")
+                .setResponseSizeHint(sizeHint)
+                .build()
+                .createRequest(null, null, null);
+    }
+
+    public void testBudget() {
+        MemoryThrottle throttle = new MemoryThrottle(1000, 400);
+
+        Request<?> a = request(600);
+        Request<?> b = request(300);
+        Request<?> c = request(200);
+
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(a));
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(b));
+        assertEquals(900, throttle.getInFlightBytes());
+
+        // 1100 would be over budget
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(c));
+        assertEquals(900, throttle.getInFlightBytes());
+
+        throttle.release(a);
+        assertEquals(300, throttle.getInFlightBytes());
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(c));
+        assertEquals(500, throttle.getInFlightBytes());
+    }
+
+    public void testDefaultEstimate() {
+        MemoryThrottle throttle = new MemoryThrottle(1000, 400);
+
+        // no size hint, and nothing seen from the endpoint yet
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(new StringRequest("https://api.example.com/a", null, null)));
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(new StringRequest("https://api.example.com/b", null, null)));
+        assertEquals(800, throttle.getInFlightBytes());
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(new StringRequest("https://api.example.com/c", null, null)));
+    }
+
+    public void testOversized() {
+        MemoryThrottle throttle = new MemoryThrottle(1000, 400);
+
+        // larger than the whole budget, but alone
+        Request<?> huge = request(5000);
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(huge));
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(request(1)));
+
+        throttle.release(huge);
+        assertEquals(0, throttle.getInFlightBytes());
+    }
+
+    public void testLargeRequestNotStarved() {
+        MemoryThrottle throttle = new MemoryThrottle(1000, 400);
+
+        Request<?> a = request(600);
+        Request<?> big = request(800);
+        Request<?> small = request(300);
+
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(a));
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(big));
+        assertEquals(800, throttle.getReservedBytes());
+
+        // small would fit next to a, but the room is held for big
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(small));
+
+        throttle.release(a);
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(small));
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(big));
+        assertEquals(0, throttle.getReservedBytes());
+
+        // now small is the one waiting, and holds its room in turn
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(small));
+        assertEquals(300, throttle.getReservedBytes());
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(request(100)));
+
+        throttle.release(big);
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(small));
+    }
+
+    public void testCanceledReservation() {
+        MemoryThrottle throttle = new MemoryThrottle(1000, 400);
+
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request(600)));
+        Request<?> big = request(800);
+        assertEquals(Throttle.WAIT, throttle.tryAcquire(big));
+
+        big.cancel();
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request(300)));
+        assertEquals(0, throttle.getReservedBytes());
+    }
+
+    public void testReleaseUnknown() {
+        MemoryThrottle throttle = new MemoryThrottle(1000, 400);
+
+        assertEquals(Throttle.ADMIT, throttle.tryAcquire(request(100)));
+
+        // a request that was never admitted doesn't free anything
+        throttle.release(request(100));
+        assertEquals(100, throttle.getInFlightBytes());
+    }
+
+    public void testMetrics() {
+        MemoryThrottle throttle = new MemoryThrottle(1000, 400);
+        Request<?> a = request(600);
+        throttle.tryAcquire(a);
+        throttle.tryAcquire(request(300));
+        throttle.release(a);
+
+        QueueMetrics metrics = new QueueMetrics();
+        throttle.report(metrics);
+
+        assertEquals(300, metrics.get(MemoryThrottle.IN_FLIGHT_BYTES));
+        assertEquals(1000, metrics.get(MemoryThrottle.BUDGET_BYTES));
+        assertEquals(900, metrics.get(MemoryThrottle.PEAK_BYTES));
+        assertEquals(0, metrics.get(MemoryThrottle.RESERVED_BYTES));
+        assertEquals(0, metrics.get("unknown"));
+
+        Map<String, Long> map = metrics.asMap();
+        assertEquals(4, map.size());
+        try {
+            map.put("other", 1L);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.RequestFuture;
+
+import org.dforsyth.android.lob.DeadlineExceededError;
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.LobResponse;
+import org.dforsyth.android.lob.ObjectRequest;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStack;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ThrottledQueue}
+ */
+public class ThrottledQueueTest extends AndroidTestCase {
+
+    /**
+     * Never admits anything
+     */
+    private static class ClosedThrottle implements Throttle {
+        @Override
+        public long tryAcquire(Request<?> request) {
+            return WAIT;
+        }
+
+        @Override
+        public void release(Request<?> request) {
+        }
+
+        @Override
+        public void report(QueueMetrics metrics) {
+        }
+    }
+
+    public void testExpiresWhileHeld() throws Exception {
+        ThrottledQueue queue = new ThrottledQueue(new TestStack(new TestEndpoint[0]), new ClosedThrottle());
+        queue.prepare(getContext());
+
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com")).build();
+        RequestFuture<LobResponse<Object>> future = RequestFuture.newFuture();
+        ObjectRequest<Object> request = new LobRequest.Builder<Object>(client, Object.class)
+                .setDeadline(100, TimeUnit.MILLISECONDS)
+                .build()
+                .createRequest(null, future, future);
+
+        queue.submitRequest(request);
+        assertEquals(1, queue.getPendingCount());
+
+        QueueMetrics metrics = queue.getMetrics();
+        assertEquals(1, metrics.get(QueueMetrics.PENDING));
+        assertEquals(0, metrics.get(QueueMetrics.ADMITTED));
+
+        // nothing frees the throttle, so only the deadline can get the request out
+        try {
+            future.get(2, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededError);
+        }
+        assertEquals(0, queue.getPendingCount());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.dforsyth.android.lob.stacks;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request.Method;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+import org.apache.http.HttpResponse;
+import org.dforsyth.android.lob.LobBody;
+import org.dforsyth.android.lob.ObjectRequest;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests for {@link LobStack}'s compression of request and response bodies
+ */
+public class LobStackTest extends AndroidTestCase {
+    private final static String TEXT = "compressed compressed compressed";
+
+    private MockWebServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockWebServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private ObjectRequest<Object> request(int method, Map<String, String> headers, byte[] body) {
+        return new ObjectRequest<Object>(method, mServer.url("/").toString(), null, null, null,
+                headers, null, body, null, null);
+    }
+
+    private ObjectRequest<Object> request(int method) {
+        return request(method, new HashMap<String, String>(), null);
+    }
+
+    private static String read(HttpResponse response) throws Exception {
+        InputStream in = response.getEntity().getContent();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private HttpResponse perform(ObjectRequest<Object> request) throws Exception {
+        return new LobStack().performRequest(request, Collections.<String, String>emptyMap());
+    }
+
+    private static Buffer gzip(String text) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+        return new Buffer().write(bytes.toByteArray());
+    }
+
+    private static Buffer deflate(String text, boolean nowrap) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+        return new Buffer().write(bytes.toByteArray());
+    }
+
+    private void enqueue(Buffer body, String encoding) {
+        mServer.enqueue(new MockResponse()
+                .setBody(body)
+                .addHeader(Constants.HEADER_CONTENT_ENCODING, encoding));
+    }
+
+    public void testGzipResponse() throws Exception {
+        enqueue(gzip(TEXT), Constants.ENCODING_GZIP);
+        mServer.start();
+
+        ObjectRequest<Object> request = request(Method.GET);
+        HttpResponse response = perform(request);
+
+        assertEquals(TEXT, read(response));
+        assertNull(response.getFirstHeader(Constants.HEADER_CONTENT_ENCODING));
+        assertTrue(request.getWireBytes() > 0);
+        assertEquals("gzip, deflate", mServer.takeRequest().getHeader(Constants.HEADER_ACCEPT_ENCODING));
+    }
+
+    public void testDeflateResponse() throws Exception {
+        enqueue(deflate(TEXT, false), Constants.ENCODING_DEFLATE);
+        mServer.start();
+
+        assertEquals(TEXT, read(perform(request(Method.GET))));
+    }
+
+    public void testRawDeflateResponse() throws Exception {
+        enqueue(deflate(TEXT, true), Constants.ENCODING_DEFLATE);
+        mServer.start();
+
+        assertEquals(TEXT, read(perform(request(Method.GET))));
+    }
+
+    public void testOwnAcceptEncoding() throws Exception {
+        Buffer gzipped = gzip(TEXT);
+        long size = gzipped.size();
+        enqueue(gzipped, Constants.ENCODING_GZIP);
+        mServer.start();
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put(Constants.HEADER_ACCEPT_ENCODING, Constants.ENCODING_GZIP);
+        HttpResponse response = perform(request(Method.GET, headers, null));
+
+        // handed back as sent
+        assertEquals(Constants.ENCODING_GZIP, response.getFirstHeader(Constants.HEADER_CONTENT_ENCODING).getValue());
+        assertEquals(size, response.getEntity().getContentLength());
+    }
+
+    public void testCompressedLobBody() throws Exception {
+        mServer.enqueue(new MockResponse());
+        mServer.start();
+
+        ObjectRequest<Object> request = request(Method.POST)
+                .setBody(LobBody.create("text/plain", TEXT.getBytes("UTF-8")))
+                .setCompressBody(true);
+        perform(request);
+
+        RecordedRequest recorded = mServer.takeRequest();
+        assertEquals(Constants.ENCODING_GZIP, recorded.getHeader(Constants.HEADER_CONTENT_ENCODING));
+        assertEquals(TEXT, Okio.buffer(new GzipSource(recorded.getBody())).readUtf8());
+    }
+
+    public void testCompressedByteBody() throws Exception {
+        mServer.enqueue(new MockResponse());
+        mServer.start();
+
+        ObjectRequest<Object> request = request(Method.POST, new HashMap<String, String>(), TEXT.getBytes("UTF-8"))
+                .setCompressBody(true);
+        perform(request);
+
+        RecordedRequest recorded = mServer.takeRequest();
+        assertEquals(Constants.ENCODING_GZIP, recorded.getHeader(Constants.HEADER_CONTENT_ENCODING));
+        assertEquals(TEXT, Okio.buffer(new GzipSource(recorded.getBody())).readUtf8());
+    }
+}
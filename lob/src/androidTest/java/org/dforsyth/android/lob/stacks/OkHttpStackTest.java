@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.stacks;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.StringRequest;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSink;
+import okio.GzipSource;
+import okio.Okio;
+
+import org.apache.http.HttpResponse;
+import org.dforsyth.android.lob.LobBody;
+import org.dforsyth.android.lob.ObjectRequest;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link OkHttpStack}
+ */
+public class OkHttpStackTest extends AndroidTestCase {
+    private MockWebServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockWebServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private String perform(OkHttpStack stack) throws Exception {
+        return perform(stack, new StringRequest(mServer.url("/").toString(), null, null));
+    }
+
+    private String perform(OkHttpStack stack, Request<?> request) throws Exception {
+        HttpResponse response = stack.performRequest(request, Collections.<String, String>emptyMap());
+
+        // the connection only goes back to the pool once the body is consumed
+        InputStream in = response.getEntity().getContent();
+        try {
+            StringBuilder body = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) {
+                body.append((char) b);
+            }
+            return body.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testConnectionReuse() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("one"));
+        mServer.enqueue(new MockResponse().setBody("two"));
+        mServer.start();
+
+        OkHttpStack stack = new OkHttpStack();
+
+        assertEquals("one", perform(stack));
+        assertEquals("two", perform(stack));
+
+        assertEquals(1, stack.getOpenedConnectionCount());
+        assertEquals(1, stack.getReusedConnectionCount());
+        assertEquals(1, stack.getConnectionCount());
+        assertEquals(0, mServer.takeRequest().getSequenceNumber());
+        assertEquals(1, mServer.takeRequest().getSequenceNumber());
+    }
+
+    public void testMultiplexed() throws Exception {
+        mServer.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        mServer.enqueue(new MockResponse().setBody("one"));
+        mServer.start();
+
+        OkHttpStack stack = new OkHttpStack(new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build());
+
+        assertEquals("one", perform(stack));
+        assertEquals(1, stack.getMultiplexedConnectionCount());
+    }
+
+    public void testAbort() throws Exception {
+        mServer.start();
+
+        OkHttpStack stack = new OkHttpStack();
+        Request<?> request = new StringRequest(mServer.url("/").toString(), null, null);
+        request.cancel();
+
+        try {
+            stack.performRequest(request, Collections.<String, String>emptyMap());
+            fail("cancelled request was sent");
+        } catch (IOException e) {
+            assertEquals(0, mServer.getRequestCount());
+        }
+    }
+
+    private ObjectRequest<Object> objectRequest(int method) {
+        return new ObjectRequest<Object>(method, mServer.url("/").toString(), null, null, null,
+                new HashMap<String, String>(), null, null, null, null);
+    }
+
+    public void testGzipResponse() throws Exception {
+        Buffer gzipped = new Buffer();
+        GzipSink sink = new GzipSink(gzipped);
+        Buffer plain = new Buffer().writeUtf8("compressed");
+        sink.write(plain, plain.size());
+        sink.close();
+
+        mServer.enqueue(new MockResponse()
+                .setBody(gzipped)
+                .addHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP));
+        mServer.start();
+
+        assertEquals("compressed", perform(new OkHttpStack(), objectRequest(Request.Method.GET)));
+        assertEquals("gzip, deflate", mServer.takeRequest().getHeader(Constants.HEADER_ACCEPT_ENCODING));
+    }
+
+    public void testCompressedBody() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("ok"));
+        mServer.start();
+
+        ObjectRequest<Object> request = objectRequest(Request.Method.POST)
+                .setBody(LobBody.create("text/plain", "hello".getBytes("UTF-8")))
+                .setCompressBody(true);
+        assertEquals("ok", perform(new OkHttpStack(), request));
+
+        RecordedRequest recorded = mServer.takeRequest();
+        assertEquals(Constants.ENCODING_GZIP, recorded.getHeader(Constants.HEADER_CONTENT_ENCODING));
+        assertEquals("hello", Okio.buffer(new GzipSource(recorded.getBody())).readUtf8());
+    }
+
+    public void testCancelInFlight() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("late").setHeadersDelay(10, TimeUnit.SECONDS));
+        mServer.start();
+
+        final ObjectRequest<Object> request = objectRequest(Request.Method.GET);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                request.cancel();
+            }
+        }).start();
+
+        long start = System.currentTimeMillis();
+        try {
+            perform(new OkHttpStack(), request);
+            fail("cancelled call finished");
+        } catch (IOException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+}
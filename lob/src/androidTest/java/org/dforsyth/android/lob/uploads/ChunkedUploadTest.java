@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.dforsyth.android.lob.uploads;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobBody;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.LobResponse;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStackQueue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ChunkedUpload} against an endpoint that can fail a chosen chunk
+ */
+public class ChunkedUploadTest extends AndroidTestCase {
+    private final static String BASE = "https://api.example.com";
+    private final static String CONTENT = "abcdefghij";
+    private final static long CHUNK_SIZE = 4;
+    private final static int MAX_RETRIES = 2;
+
+    private static class Session {
+        String id;
+    }
+
+    /**
+     * Starts a session, puts each chunk at its offset and commits
+     */
+    private static class TestProtocol implements UploadProtocol<Session> {
+        @Override
+        public LobRequest<Session> start(Lob client, long length, int chunkCount) {
+            return new LobRequest.Builder<Session>(client, Session.class)
+                    .setMethod(Request.Method.POST)
+                    .addPath("uploads")
+                    .build();
+        }
+
+        @Override
+        public LobRequest<?> chunk(Lob client, Session session, ChunkedUpload.Chunk chunk, LobBody body) {
+            return new LobRequest.Builder<Object>(client, Object.class)
+                    .setMethod(Request.Method.PUT)
+                    .addPath("uploads/" + session.id + "/chunks/" + chunk.getOffset())
+                    .setBody(body)
+                    .build();
+        }
+
+        @Override
+        public LobRequest<?> commit(Lob client, Session session, List<ChunkedUpload.Chunk> chunks) {
+            return new LobRequest.Builder<Object>(client, Object.class)
+                    .setMethod(Request.Method.POST)
+                    .addPath("uploads/" + session.id + "/commit")
+                    .build();
+        }
+    }
+
+    /**
+     * Records every chunk it is sent as "offset:body". The chunk at failOffset gets a 500 for its
+     * first failures attempts.
+     */
+    private static class UploadEndpoint extends TestEndpoint {
+        final List<String> chunks = new ArrayList<>();
+        long failOffset = -1;
+        int failures;
+        boolean committed;
+
+        UploadEndpoint() {
+            super(null, null, null);
+        }
+
+        @Override
+        public boolean matchRequest(Request<?> request) {
+            return true;
+        }
+
+        @Override
+        public HttpResponse prepareResponse(Request<?> request, Map<String, String> additionalHeaders)
+                throws UnsupportedEncodingException {
+            String path = Uri.parse(request.getUrl()).getPath();
+            if (path.equals("/uploads")) {
+                return respond(200, "{\"id\":\"u1\"}");
+            }
+            if (path.equals("/uploads/u1/commit")) {
+                synchronized (this) {
+                    committed = true;
+                }
+                return respond(200, "{}");
+            }
+
+            long offset = Long.parseLong(path.substring("/uploads/u1/chunks/".length()));
+            String body;
+            try {
+                body = new String(request.getBody(), "UTF-8");
+            } catch (AuthFailureError e) {
+                throw new IllegalStateException(e);
+            }
+
+            synchronized (this) {
+                chunks.add(offset + ":" + body);
+                if (offset == failOffset && failures > 0) {
+                    failures--;
+                    return respond(500, "");
+                }
+            }
+            return respond(200, "{}");
+        }
+
+        synchronized List<String> getChunks() {
+            return new ArrayList<>(chunks);
+        }
+
+        synchronized boolean isCommitted() {
+            return committed;
+        }
+
+        synchronized void fail(long offset, int times) {
+            failOffset = offset;
+            failures = times;
+        }
+
+        private static HttpResponse respond(int status, String body) throws UnsupportedEncodingException {
+            HttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, "Status"));
+            response.setEntity(new StringEntity(body));
+            return response;
+        }
+    }
+
+    private static class Result implements ChunkedUpload.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long uploaded;
+        volatile LobResponse<?> response;
+        volatile VolleyError error;
+
+        @Override
+        public void onProgress(long uploaded, long total) {
+            this.uploaded = uploaded;
+        }
+
+        @Override
+        public void onSuccess(LobResponse<?> response) {
+            this.response = response;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(VolleyError error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    private UploadEndpoint endpoint;
+    private ChunkedUpload<Session> upload;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("upload", null, getContext().getCacheDir());
+        write(file, CONTENT);
+
+        endpoint = new UploadEndpoint();
+        Lob client = new Lob.Builder(getContext(), Uri.parse(BASE))
+                .setQueue(new TestStackQueue(new TestEndpoint[] {endpoint}))
+                .build();
+
+        // one chunk at a time, so the order they arrive in is fixed
+        upload = new ChunkedUpload.Builder<>(client, file, new TestProtocol())
+                .setChunkSize(CHUNK_SIZE)
+                .setConcurrency(1)
+                .setMaxChunkRetries(MAX_RETRIES)
+                .setRetryDelay(10)
+                .build();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private Result upload() throws InterruptedException {
+        final Result result = new Result();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                upload.start(result);
+            }
+        });
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        return result;
+    }
+
+    public void testChunks() throws Exception {
+        List<ChunkedUpload.Chunk> chunks = upload.getChunks();
+        assertEquals(3, chunks.size());
+        assertEquals(0, chunks.get(0).getOffset());
+        assertEquals(4, chunks.get(0).getLength());
+        assertEquals(4, chunks.get(1).getOffset());
+        assertEquals(4, chunks.get(1).getLength());
+        assertEquals(8, chunks.get(2).getOffset());
+        assertEquals(2, chunks.get(2).getLength());
+
+        Result result = upload();
+        assertNull(result.error);
+        assertNotNull(result.response);
+        assertEquals(CONTENT.length(), result.uploaded);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("0:abcd");
+        expected.add("4:efgh");
+        expected.add("8:ij");
+        assertEquals(expected, endpoint.getChunks());
+
+        for (ChunkedUpload.Chunk chunk : chunks) {
+            assertEquals(1, chunk.getAttempts());
+            assertNotNull(chunk.getResponse());
+        }
+        assertTrue(endpoint.isCommitted());
+    }
+
+    public void testChunkRetried() throws Exception {
+        endpoint.fail(4, 1);
+
+        Result result = upload();
+        assertNull(result.error);
+        assertEquals(CONTENT.length(), result.uploaded);
+
+        // only the failed chunk is sent again, ahead of the one still waiting
+        List<String> expected = new ArrayList<>();
+        expected.add("0:abcd");
+        expected.add("4:efgh");
+        expected.add("4:efgh");
+        expected.add("8:ij");
+        assertEquals(expected, endpoint.getChunks());
+
+        List<ChunkedUpload.Chunk> chunks = upload.getChunks();
+        assertEquals(1, chunks.get(0).getAttempts());
+        assertEquals(2, chunks.get(1).getAttempts());
+        assertEquals(1, chunks.get(2).getAttempts());
+        assertTrue(endpoint.isCommitted());
+    }
+
+    public void testChunkFails() throws Exception {
+        endpoint.fail(4, Integer.MAX_VALUE);
+
+        Result result = upload();
+        assertNull(result.response);
+        assertTrue(result.error instanceof ServerError);
+        assertEquals(500, result.error.networkResponse.statusCode);
+
+        // the first try plus every retry, then the upload gives up without committing
+        List<String> expected = new ArrayList<>();
+        expected.add("0:abcd");
+        for (int i = 0; i <= MAX_RETRIES; i++) {
+            expected.add("4:efgh");
+        }
+        assertEquals(expected, endpoint.getChunks());
+
+        List<ChunkedUpload.Chunk> chunks = upload.getChunks();
+        assertEquals(MAX_RETRIES + 1, chunks.get(1).getAttempts());
+        assertEquals(0, chunks.get(2).getAttempts());
+        assertNull(chunks.get(2).getResponse());
+        assertFalse(endpoint.isCommitted());
+    }
+}
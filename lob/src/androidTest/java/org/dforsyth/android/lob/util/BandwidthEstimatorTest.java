@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.util;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.android.volley.Request;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.queues.BandwidthThrottle;
+import org.dforsyth.android.lob.queues.ThrottledQueue;
+import org.dforsyth.android.lob.test.TestEndpoint;
+import org.dforsyth.android.lob.test.TestStack;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link BandwidthEstimator} and {@link BandwidthThrottle}
+ */
+public class BandwidthEstimatorTest extends AndroidTestCase {
+
+    public void testSamples() {
+        BandwidthEstimator estimator = new BandwidthEstimator(1);
+        assertEquals(BandwidthEstimator.Quality.UNKNOWN, estimator.getQuality());
+
+        estimator.addSample(500, 100);
+        assertEquals(100, estimator.getRttMs());
+        assertEquals(BandwidthEstimator.Quality.EXCELLENT, estimator.getQuality());
+
+        // 100KB in 1.1s, less the 100ms round trip, is 800kbps
+        estimator.addSample(100 * 1000, 1100);
+        assertEquals(800.0, estimator.getBandwidthKbps(), 0.001);
+        assertEquals(BandwidthEstimator.Quality.GOOD, estimator.getQuality());
+
+        // in between sizes are neither
+        estimator.addSample(4000, 10000);
+        assertEquals(2, estimator.getSampleCount());
+
+        estimator.reset();
+        assertEquals(-1.0, estimator.getBandwidthKbps());
+    }
+
+    public void testAverage() {
+        BandwidthEstimator estimator = new BandwidthEstimator(0.5);
+        estimator.addSample(10 * 1000, 100);
+        estimator.addSample(10 * 1000, 400);
+
+        // 800kbps, then 200kbps
+        assertEquals(500.0, estimator.getBandwidthKbps(), 0.001);
+    }
+
+    public void testThrottleConcurrency() {
+        BandwidthEstimator estimator = new BandwidthEstimator(1);
+        BandwidthThrottle throttle = new BandwidthThrottle(estimator, 4);
+        assertEquals(4, throttle.getConcurrency());
+
+        estimator.addSample(100 * 1000, 20000);
+        assertEquals(BandwidthEstimator.Quality.POOR, estimator.getQuality());
+        assertEquals(1, throttle.getConcurrency());
+
+        assertEquals(BandwidthThrottle.ADMIT, throttle.tryAcquire(null));
+        assertEquals(BandwidthThrottle.WAIT, throttle.tryAcquire(null));
+        throttle.release(null);
+        assertEquals(BandwidthThrottle.ADMIT, throttle.tryAcquire(null));
+    }
+
+    public void testThrottledStack() throws Exception {
+        char[] body = new char[8 * 1024];
+        Arrays.fill(body, 'x');
+        TestEndpoint endpoint = new TestEndpoint(
+                new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"), null, new String(body)) {
+            @Override
+            public boolean matchRequest(Request<?> request) {
+                return true;
+            }
+        };
+
+        // 8KB at 8KB/s
+        TestStack stack = new TestStack(new TestEndpoint[] {endpoint}).setBytesPerSecond(8 * 1024);
+        BandwidthThrottle throttle = new BandwidthThrottle();
+        Lob client = new Lob.Builder(getContext(), Uri.parse("https://api.example.com"))
+                .setQueue(new ThrottledQueue(stack, throttle))
+                .build();
+
+        BandwidthEstimator.getDefault().reset();
+        new LobRequest.Builder<Object>(client).build().request();
+
+        assertEquals(BandwidthEstimator.Quality.POOR, BandwidthEstimator.getDefault().getQuality());
+        assertTrue(BandwidthEstimator.getDefault().getBandwidthKbps() < 80);
+        assertEquals(1, throttle.getConcurrency());
+    }
+}
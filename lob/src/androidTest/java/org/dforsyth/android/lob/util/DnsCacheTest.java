@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.util;
+
+import android.test.AndroidTestCase;
+
+import java.net.InetAddress;
+
+/**
+ * Tests for {@link DnsCache}
+ */
+public class DnsCacheTest extends AndroidTestCase {
+
+    public void testCached() throws Exception {
+        DnsCache cache = new DnsCache(DnsCache.DEFAULT_TTL_MS);
+
+        InetAddress[] first = cache.lookup("localhost");
+        assertSame(first, cache.lookup("localhost"));
+
+        cache.evictAll();
+        assertNotSame(first, cache.lookup("localhost"));
+    }
+
+    public void testExpired() throws Exception {
+        DnsCache cache = new DnsCache(1);
+
+        InetAddress[] first = cache.lookup("localhost");
+        Thread.sleep(5);
+        assertNotSame(first, cache.lookup("localhost"));
+    }
+
+    public void testPrefetchFailure() {
+        DnsCache cache = new DnsCache(DnsCache.DEFAULT_TTL_MS);
+
+        assertFalse(cache.prefetch("nonexistent.invalid"));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.VolleyError;
+
+/**
+ * Makes sure only one credential refresh runs at a time. Every refresh bumps a generation number;
+ * requests remember the generation their credentials came from, so a request that failed with
+ * credentials that have since been replaced is just replayed.
+ */
+class AuthRefresher {
+    /**
+     * How long a request without a deadline waits on someone else's refresh
+     */
+    final static long DEFAULT_WAIT_MS = 30 * 1000;
+
+    private final LobAuthenticator mAuthenticator;
+    private final CachingDynamic mDynamic;
+
+    private int mGeneration;
+    private int mAttempt;
+    private int mCompletedAttempt;
+    private boolean mRefreshing;
+
+    AuthRefresher(LobAuthenticator authenticator, CachingDynamic dynamic) {
+        mAuthenticator = authenticator;
+        mDynamic = dynamic;
+    }
+
+    /**
+     * Wait for a running refresh, if there is one
+     *
+     * @param timeoutMs How long to wait for the refresh
+     * @return The generation of the credentials a request made now would use
+     * @throws AuthFailureError If the refresh is still running after timeoutMs
+     */
+    synchronized int awaitGeneration(long timeoutMs) throws InterruptedException, AuthFailureError {
+        long until = SystemClock.elapsedRealtime() + timeoutMs;
+        while (mRefreshing) {
+            if (!waitUntil(until)) {
+                throw new AuthFailureError("Timed out waiting for credentials");
+            }
+        }
+        return mGeneration;
+    }
+
+    synchronized void invalidate() {
+        if (mDynamic != null) {
+            mDynamic.invalidate();
+        }
+        mGeneration++;
+    }
+
+    /**
+     * Refresh credentials, or wait for the refresh another request started
+     *
+     * @param generation Generation of the credentials that failed
+     * @param error The failure
+     * @param timeoutMs How long to wait for a refresh another request started
+     * @return true if the request should be replayed
+     */
+    boolean refresh(int generation, VolleyError error, long timeoutMs) throws InterruptedException {
+        long until = SystemClock.elapsedRealtime() + timeoutMs;
+        synchronized (this) {
+            int waitedOn = -1;
+            while (true) {
+                if (mGeneration != generation) {
+                    return true;
+                }
+
+                // the refresh we were parked on failed, fail along with it
+                if (waitedOn != -1 && mCompletedAttempt >= waitedOn) {
+                    return false;
+                }
+
+                if (!mRefreshing) {
+                    mRefreshing = true;
+                    mAttempt++;
+                    break;
+                }
+
+                waitedOn = mAttempt;
+                if (!waitUntil(until)) {
+                    return false;
+                }
+            }
+        }
+
+        boolean refreshed = false;
+        try {
+            refreshed = mAuthenticator.refresh(error);
+        } finally {
+            synchronized (this) {
+                mRefreshing = false;
+                mCompletedAttempt = mAttempt;
+                if (refreshed) {
+                    invalidate();
+                }
+                notifyAll();
+            }
+        }
+
+        return refreshed;
+    }
+
+    /**
+     * Wait to be notified, but not past until
+     *
+     * @return false if until has passed
+     */
+    private boolean waitUntil(long until) throws InterruptedException {
+        long remaining = until - SystemClock.elapsedRealtime();
+        if (remaining <= 0) {
+            return false;
+        }
+        wait(remaining);
+        return true;
+    }
+}
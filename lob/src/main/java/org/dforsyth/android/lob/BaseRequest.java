@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import org.dforsyth.android.lob.stacks.Abortable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What every request Lob sends has in common: headers and dynamic values, a deadline, a scope,
+ * credentials that may be refreshed, an endpoint pool to fail over in, and a connection to abort.
+ *
+ * @param <T> Response type
+ */
+public abstract class BaseRequest<T> extends Request<T> implements Abortable, Retryable {
+    private final Map<String, String> mHeaders;
+    private final LobDynamic mDynamic;
+
+    private long mDeadline;
+    private LobScope mScope;
+    private Abortable.Connection mConnection;
+    private AuthRefresher mAuthRefresher;
+    private volatile int mAuthGeneration;
+    private EndpointPool mEndpointPool;
+    private EndpointPool.Endpoint mEndpoint;
+    private Set<EndpointPool.Endpoint> mFailedEndpoints;
+
+    public BaseRequest(int method, String url, LobDynamic dynamic, Map<String, String> headers,
+                       Response.ErrorListener errorListener) {
+        super(method, url, errorListener);
+
+        mHeaders = headers != null ? headers : Collections.<String, String>emptyMap();
+        mDynamic = dynamic;
+    }
+
+    protected LobDynamic getDynamic() {
+        return mDynamic;
+    }
+
+    /**
+     * Wait out a credential refresh, then merge the request's headers with the dynamic ones
+     *
+     * @return A new map the caller may add to
+     */
+    protected Map<String, String> buildHeaders() throws AuthFailureError {
+        if (mAuthRefresher != null) {
+            // don't go out with credentials that are being replaced
+            try {
+                mAuthGeneration = mAuthRefresher.awaitGeneration(getAuthWaitMs());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AuthFailureError("Interrupted waiting for credentials", e);
+            }
+        }
+
+        Map<String, String> headers = new HashMap<String, String>(mHeaders);
+        if (mDynamic != null) {
+            Map<String, String> dynamicHeaders = mDynamic.getDynamicHeaders();
+            if (dynamicHeaders != null) {
+                headers.putAll(dynamicHeaders);
+            }
+        }
+
+        return headers;
+    }
+
+    /**
+     * @return The value of a header set on the request, or else by the dynamic values, or null
+     */
+    protected String getHeaderValue(String name) {
+        String value = mHeaders.get(name);
+        if (value == null && mDynamic != null) {
+            Map<String, String> dynamicHeaders = mDynamic.getDynamicHeaders();
+            if (dynamicHeaders != null) {
+                value = dynamicHeaders.get(name);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public String getUrl() {
+        String url = getUnroutedUrl();
+
+        synchronized (this) {
+            if (mEndpointPool != null) {
+                return mEndpointPool.rewrite(url, mEndpoint);
+            }
+        }
+
+        return url;
+    }
+
+    /**
+     * @return The URL built against the client's base URI, before any endpoint pool moved it
+     */
+    protected String getUnroutedUrl() {
+        return addDynamicQueryParams(super.getUrl(), mDynamic);
+    }
+
+    /**
+     * @return The URL with the dynamic query params appended, if there are any
+     */
+    static String addDynamicQueryParams(String url, LobDynamic dynamic) {
+        if (dynamic != null) {
+            Map<String, String> dynamicQueryParams = dynamic.getDynamicQueryParams();
+            if (dynamicQueryParams != null) {
+                Uri.Builder builder = Uri.parse(url).buildUpon();
+                for (String key : dynamicQueryParams.keySet()) {
+                    builder.appendQueryParameter(key, dynamicQueryParams.get(key));
+                }
+                return builder.build().toString();
+            }
+        }
+
+        return url;
+    }
+
+    /**
+     * Set the time by which this request, including queueing and retries, has to be done
+     *
+     * @param deadline Deadline in {@link SystemClock#elapsedRealtime()} milliseconds, or 0 for none
+     */
+    public BaseRequest<T> setDeadline(long deadline) {
+        mDeadline = deadline;
+        return this;
+    }
+
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    @Override
+    public long getRemainingMs() {
+        if (mDeadline == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        return mDeadline - SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public boolean isExpired() {
+        return getRemainingMs() <= 0;
+    }
+
+    /**
+     * Put this request in a scope. The request leaves the scope when it finishes.
+     */
+    public BaseRequest<T> setScope(LobScope scope) {
+        mScope = scope;
+        scope.add(this);
+        return this;
+    }
+
+    void setAuthRefresher(AuthRefresher authRefresher) {
+        mAuthRefresher = authRefresher;
+    }
+
+    @Override
+    public AuthRefresher getAuthRefresher() {
+        return mAuthRefresher;
+    }
+
+    @Override
+    public long getAuthWaitMs() {
+        return Math.min(getRemainingMs(), AuthRefresher.DEFAULT_WAIT_MS);
+    }
+
+    @Override
+    public int getAuthGeneration() {
+        return mAuthGeneration;
+    }
+
+    /**
+     * Send this request to the best endpoint in a pool instead of the URL it was built with
+     */
+    public synchronized BaseRequest<T> setEndpointPool(EndpointPool pool) {
+        mEndpointPool = pool;
+        mEndpoint = pool.select();
+        mFailedEndpoints = new HashSet<>();
+        return this;
+    }
+
+    public synchronized EndpointPool.Endpoint getEndpoint() {
+        return mEndpoint;
+    }
+
+    /**
+     * Send this request somewhere other than an endpoint, if the pool has anywhere else
+     */
+    synchronized void routeAwayFrom(EndpointPool.Endpoint endpoint) {
+        if (mEndpointPool == null || endpoint == null) {
+            return;
+        }
+
+        EndpointPool.Endpoint other = mEndpointPool.select(Collections.singleton(endpoint));
+        if (other != null) {
+            mEndpoint = other;
+        }
+    }
+
+    /**
+     * Mark the current endpoint as failed and move to one this request hasn't failed on yet
+     *
+     * @return True if there was another endpoint to move to
+     */
+    @Override
+    public synchronized boolean failover() {
+        if (mEndpointPool == null) {
+            return false;
+        }
+
+        mEndpointPool.reportFailure(mEndpoint);
+        mFailedEndpoints.add(mEndpoint);
+
+        EndpointPool.Endpoint next = mEndpointPool.select(mFailedEndpoints);
+        if (next == null) {
+            return false;
+        }
+
+        mEndpoint = next;
+        return true;
+    }
+
+    /**
+     * Tell the endpoint pool how the current endpoint did
+     *
+     * @param networkTimeMs How long the attempt took, or -1 if the endpoint failed
+     */
+    public synchronized void reportEndpoint(long networkTimeMs) {
+        if (mEndpointPool == null) {
+            return;
+        }
+
+        if (networkTimeMs < 0) {
+            mEndpointPool.reportFailure(mEndpoint);
+        } else {
+            mEndpointPool.reportSuccess(mEndpoint, networkTimeMs);
+        }
+    }
+
+    @Override
+    public void setConnection(Abortable.Connection connection) {
+        synchronized (this) {
+            if (!isCanceled()) {
+                mConnection = connection;
+                return;
+            }
+        }
+
+        // cancelled while connecting
+        connection.abort();
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+
+        final Abortable.Connection connection;
+        synchronized (this) {
+            connection = mConnection;
+            mConnection = null;
+        }
+
+        if (connection != null) {
+            // disconnecting can block on the socket, keep it off the caller's thread
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.abort();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onFinish() {
+        super.onFinish();
+
+        synchronized (this) {
+            mConnection = null;
+        }
+
+        if (mScope != null) {
+            mScope.remove(this);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import java.util.Map;
+
+/**
+ * A {@link LobDynamic} that asks the one it wraps for values once, and keeps them until
+ * {@link #invalidate()} is called.
+ */
+public class CachingDynamic implements LobDynamic {
+    private final LobDynamic mDynamic;
+
+    private boolean mValid;
+    private Map<String, String> mHeaders;
+    private Map<String, String> mParams;
+    private Map<String, String> mQueryParams;
+
+    public CachingDynamic(LobDynamic dynamic) {
+        mDynamic = dynamic;
+    }
+
+    private void load() {
+        if (!mValid) {
+            mHeaders = mDynamic.getDynamicHeaders();
+            mParams = mDynamic.getDynamicParams();
+            mQueryParams = mDynamic.getDynamicQueryParams();
+            mValid = true;
+        }
+    }
+
+    public synchronized void invalidate() {
+        mValid = false;
+        mHeaders = null;
+        mParams = null;
+        mQueryParams = null;
+    }
+
+    @Override
+    public synchronized Map<String, String> getDynamicHeaders() {
+        load();
+        return mHeaders;
+    }
+
+    @Override
+    public synchronized Map<String, String> getDynamicParams() {
+        load();
+        return mParams;
+    }
+
+    @Override
+    public synchronized Map<String, String> getDynamicQueryParams() {
+        load();
+        return mQueryParams;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.dforsyth.android.lob.queues.LobQueue;
+import org.dforsyth.android.lob.queues.QueueMetrics;
+import org.dforsyth.android.lob.util.BandwidthEstimator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Holds deferrable requests until the radio is awake anyway, so background traffic like analytics
+ * and prefetches doesn't wake it up on its own. Held requests are sent together when a request
+ * that isn't deferrable goes out on the network, when the system reports the default network
+ * active (API 21+), or when the oldest has waited the maximum delay, whichever comes first. A
+ * request with a deadline is sent with room to meet it: at least an estimated round trip before
+ * the deadline, and no later than halfway there.
+ *
+ * The throttle only listens for the network while it holds something.
+ */
+public class DeferralThrottle {
+    private final static String TAG = DeferralThrottle.class.getSimpleName();
+
+    public final static long DEFAULT_MAX_DELAY_MS = 60 * 1000;
+
+    public final static String PENDING = "deferral.pending";
+    public final static String DEFERRED = "deferral.deferred";
+    public final static String FLUSHED = "deferral.flushed";
+    public final static String FLUSHES = "deferral.flushes";
+    public final static String RIDE_ALONG_FLUSHES = "deferral.ride_along_flushes";
+    public final static String TIMEOUT_FLUSHES = "deferral.timeout_flushes";
+    public final static String MANUAL_FLUSHES = "deferral.manual_flushes";
+    public final static String LAST_BATCH_SIZE = "deferral.last_batch_size";
+    public final static String MAX_BATCH_SIZE = "deferral.max_batch_size";
+    public final static String TOTAL_DELAY_MS = "deferral.total_delay_ms";
+
+    private enum Trigger {
+        RIDE_ALONG,
+        TIMEOUT,
+        MANUAL
+    }
+
+    private static class Held {
+        final ObjectRequest<?> request;
+        final long heldAt;
+
+        Held(ObjectRequest<?> request, long heldAt) {
+            this.request = request;
+            this.heldAt = heldAt;
+        }
+    }
+
+    private final Context mContext;
+    private final LobQueue mQueue;
+    private final long mMaxDelayMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // an OnNetworkActiveListener, held as an Object so the class still loads before API 21
+    private Object mActiveListener;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush(Trigger.TIMEOUT);
+        }
+    };
+
+    private final List<Held> mHeld = new ArrayList<>();
+    private long mFlushAt;
+
+    // metrics
+    private long mDeferredCount;
+    private long mFlushedCount;
+    private long mRideAlongFlushCount;
+    private long mTimeoutFlushCount;
+    private long mManualFlushCount;
+    private long mTotalDelayMs;
+    private int mLastBatchSize;
+    private int mMaxBatchSize;
+
+    DeferralThrottle(Context context, LobQueue queue, long maxDelayMs) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mQueue = queue;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Also flush when anything, in any app, wakes the radio. Called when the first request is held.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void startListening() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mActiveListener != null) {
+            return;
+        }
+
+        ConnectivityManager.OnNetworkActiveListener listener = new ConnectivityManager.OnNetworkActiveListener() {
+            @Override
+            public void onNetworkActive() {
+                onRadioActive();
+            }
+        };
+        mActiveListener = listener;
+
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        connectivityManager.addDefaultNetworkActiveListener(listener);
+    }
+
+    /**
+     * Undo {@link #startListening()}, once nothing is held
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopListening() {
+        if (mActiveListener == null) {
+            return;
+        }
+
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        connectivityManager.removeDefaultNetworkActiveListener(
+                (ConnectivityManager.OnNetworkActiveListener) mActiveListener);
+        mActiveListener = null;
+    }
+
+    /**
+     * Hold a request until the radio is in use or its delay is up
+     */
+    synchronized void hold(ObjectRequest<?> request) {
+        long now = SystemClock.elapsedRealtime();
+        if (mHeld.isEmpty()) {
+            startListening();
+        }
+        mHeld.add(new Held(request, now));
+        mDeferredCount++;
+
+        long flushAt = now + mMaxDelayMs;
+        if (request.getDeadline() > 0) {
+            // the request still has to wake the radio and make a round trip once it's sent
+            long remaining = request.getDeadline() - now;
+            long headroom = Math.max(BandwidthEstimator.getDefault().getRttMs(), remaining / 2);
+            flushAt = Math.min(flushAt, request.getDeadline() - headroom);
+        }
+
+        if (mFlushAt == 0 || flushAt < mFlushAt) {
+            mFlushAt = flushAt;
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.postDelayed(mFlushRunnable, Math.max(0, flushAt - now));
+        }
+    }
+
+    /**
+     * Something is using the radio, send everything held along with it
+     */
+    void onRadioActive() {
+        flush(Trigger.RIDE_ALONG);
+    }
+
+    /**
+     * Drop held requests with a tag
+     */
+    synchronized void cancel(Object tag) {
+        Iterator<Held> iterator = mHeld.iterator();
+        while (iterator.hasNext()) {
+            ObjectRequest<?> request = iterator.next().request;
+            if (request.getTag() == tag) {
+                request.cancel();
+                iterator.remove();
+            }
+        }
+
+        if (mHeld.isEmpty()) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushAt = 0;
+            stopListening();
+        }
+    }
+
+    /**
+     * Send everything held now
+     */
+    public void flush() {
+        flush(Trigger.MANUAL);
+    }
+
+    private void flush(Trigger trigger) {
+        List<Held> batch;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushAt = 0;
+            if (mHeld.isEmpty()) {
+                return;
+            }
+
+            batch = new ArrayList<>(mHeld);
+            mHeld.clear();
+            stopListening();
+
+            switch (trigger) {
+                case RIDE_ALONG:
+                    mRideAlongFlushCount++;
+                    break;
+                case TIMEOUT:
+                    mTimeoutFlushCount++;
+                    break;
+                case MANUAL:
+                    mManualFlushCount++;
+                    break;
+            }
+            mFlushedCount += batch.size();
+            for (Held held : batch) {
+                mTotalDelayMs += now - held.heldAt;
+            }
+            mLastBatchSize = batch.size();
+            mMaxBatchSize = Math.max(mMaxBatchSize, batch.size());
+        }
+
+        Log.d(TAG, "flushing " + batch.size() + " deferred requests, " + trigger);
+        for (Held held : batch) {
+            mQueue.submitRequest(held.request);
+        }
+    }
+
+    /**
+     * @return Requests held right now
+     */
+    public synchronized int getPendingCount() {
+        return mHeld.size();
+    }
+
+    /**
+     * @return Batching counters, under this class's keys. Average batch size is
+     *         {@link #FLUSHED} / {@link #FLUSHES}, average delay {@link #TOTAL_DELAY_MS} / {@link #FLUSHED}.
+     */
+    public synchronized QueueMetrics getMetrics() {
+        QueueMetrics metrics = new QueueMetrics();
+        metrics.put(PENDING, mHeld.size());
+        metrics.put(DEFERRED, mDeferredCount);
+        metrics.put(FLUSHED, mFlushedCount);
+        metrics.put(FLUSHES, mRideAlongFlushCount + mTimeoutFlushCount + mManualFlushCount);
+        metrics.put(RIDE_ALONG_FLUSHES, mRideAlongFlushCount);
+        metrics.put(TIMEOUT_FLUSHES, mTimeoutFlushCount);
+        metrics.put(MANUAL_FLUSHES, mManualFlushCount);
+        metrics.put(LAST_BATCH_SIZE, mLastBatchSize);
+        metrics.put(MAX_BATCH_SIZE, mMaxBatchSize);
+        metrics.put(TOTAL_DELAY_MS, mTotalDelayMs);
+        return metrics;
+    }
+}
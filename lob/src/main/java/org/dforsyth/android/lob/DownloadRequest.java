@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.ByteArrayPool;
+
+import org.apache.http.HttpEntity;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * A {@link com.android.volley.Request} that streams its response body into a {@link Sink} instead
+ * of holding it in memory. Only works with {@link org.dforsyth.android.lob.queues.LobNetwork},
+ * which {@link org.dforsyth.android.lob.queues.SimpleQueue} uses.
+ *
+ * If a download fails part way through and the retry policy allows another attempt, the next
+ * attempt asks the server for the rest of the body with a Range header. The range is only asked for
+ * with an If-Range of the validator the sink recorded, so a body that changed on the server comes
+ * back whole instead of being spliced onto the old one. A sink without a validator starts over.
+ */
+public class DownloadRequest extends BaseRequest<DownloadRequest.Sink> {
+    private final static int BUFFER_SIZE = 8192;
+    private final static long PROGRESS_INTERVAL_MS = 100;
+
+    /**
+     * Where a download goes
+     */
+    public interface Sink {
+        /**
+         * @return Bytes already downloaded that a retry can continue from, or 0 to start over
+         */
+        public long getResumeOffset();
+
+        /**
+         * @return The ETag or Last-Modified of the body the downloaded bytes came from, or null
+         */
+        public String getValidator() throws IOException;
+
+        /**
+         * Record which version of the body is being downloaded, before any of it is written
+         *
+         * @param validator The body's strong ETag or Last-Modified, or null if it had neither
+         */
+        public void setValidator(String validator) throws IOException;
+
+        /**
+         * @param append true to add to what {@link #getResumeOffset()} reported, false to start over
+         */
+        public OutputStream open(boolean append) throws IOException;
+    }
+
+    /**
+     * Download callbacks, all called on the main thread
+     */
+    public interface Listener {
+        /**
+         * @param downloaded Bytes downloaded so far
+         * @param total Total size, or -1 if the server didn't say
+         */
+        public void onProgress(long downloaded, long total);
+        public void onSuccess(Sink sink);
+        public void onFailure(VolleyError error);
+    }
+
+    /**
+     * A {@link Sink} that writes to a file, and resumes from however much of the file exists. The
+     * validator is kept next to it, in a file with the same name plus ".validator".
+     */
+    public static class FileSink implements Sink {
+        private final File mFile;
+        private final File mValidatorFile;
+
+        public FileSink(File file) {
+            mFile = file;
+            mValidatorFile = new File(file.getPath() + ".validator");
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        @Override
+        public long getResumeOffset() {
+            return mFile.exists() ? mFile.length() : 0;
+        }
+
+        @Override
+        public String getValidator() throws IOException {
+            if (!mValidatorFile.exists()) {
+                return null;
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mValidatorFile), "UTF-8"));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        }
+
+        @Override
+        public void setValidator(String validator) throws IOException {
+            if (validator == null) {
+                if (mValidatorFile.exists() && !mValidatorFile.delete()) {
+                    throw new IOException("Could not delete " + mValidatorFile);
+                }
+                return;
+            }
+
+            Writer writer = new OutputStreamWriter(new FileOutputStream(mValidatorFile), "UTF-8");
+            try {
+                writer.write(validator);
+            } finally {
+                writer.close();
+            }
+        }
+
+        @Override
+        public OutputStream open(boolean append) throws IOException {
+            return new FileOutputStream(mFile, append);
+        }
+    }
+
+    private final static Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Sink mSink;
+    private final Listener mListener;
+
+    private long mRequestedOffset;
+    private boolean mRestart;
+    private long mLastProgress;
+
+    public DownloadRequest(String url, Sink sink, LobDynamic dynamic, Map<String, String> headers, final Listener listener) {
+        super(Method.GET, url, dynamic, headers, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                listener.onFailure(error);
+            }
+        });
+
+        mSink = sink;
+        mListener = listener;
+
+        setShouldCache(false);
+    }
+
+    public Sink getSink() {
+        return mSink;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = buildHeaders();
+
+        // offsets count bytes in the sink, so the body must arrive as it is stored
+        headers.put(Constants.HEADER_ACCEPT_ENCODING, Constants.ENCODING_IDENTITY);
+
+        // this is called once per attempt, so it is where we decide whether to resume
+        mRequestedOffset = 0;
+        if (!mRestart) {
+            String validator;
+            try {
+                validator = mSink.getValidator();
+            } catch (IOException e) {
+                validator = null;
+            }
+
+            // without a validator there is no telling whether the bytes we have are still current
+            long offset = mSink.getResumeOffset();
+            if (offset > 0 && validator != null) {
+                mRequestedOffset = offset;
+                headers.put(Constants.HEADER_RANGE, "bytes=" + offset + "-");
+                headers.put(Constants.HEADER_IF_RANGE, validator);
+            }
+        }
+
+        return headers;
+    }
+
+    /**
+     * @return The offset the current attempt asked to resume from, or 0 if it asked for everything
+     */
+    public long getRequestedOffset() {
+        return mRequestedOffset;
+    }
+
+    /**
+     * Make the next attempt ask for the whole body, whatever the sink holds
+     */
+    public void restart() {
+        mRestart = true;
+    }
+
+    /**
+     * @return The strong ETag of a response, or its Last-Modified, or null. Weak ETags can't be used
+     * in If-Range.
+     */
+    public static String getValidator(Map<String, String> headers) {
+        String eTag = headers.get(Constants.HEADER_ETAG);
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+
+        return headers.get(Constants.HEADER_LAST_MODIFIED);
+    }
+
+    /**
+     * Copy a response body into the sink. Called by
+     * {@link org.dforsyth.android.lob.queues.LobNetwork} on a network thread.
+     *
+     * @param entity The response body
+     * @param partial true if the server sent the range we asked for
+     * @param validator The response's validator, see {@link #getValidator(Map)}
+     * @param pool Pool to borrow a copy buffer from
+     */
+    public void writeEntity(HttpEntity entity, boolean partial, String validator, ByteArrayPool pool) throws IOException {
+        long downloaded = partial ? mRequestedOffset : 0;
+        long total = entity.getContentLength() >= 0 ? downloaded + entity.getContentLength() : -1;
+
+        if (!partial) {
+            // recorded first, so the bytes about to be written are never left with a stale one
+            mSink.setValidator(validator);
+
+            // from here on the sink holds this body, a broken attempt can resume it again
+            mRestart = false;
+        }
+
+        byte[] buffer = pool.getBuf(BUFFER_SIZE);
+        InputStream in = entity.getContent();
+        OutputStream out = mSink.open(partial);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (isCanceled()) {
+                    throw new IOException("Download cancelled");
+                }
+
+                out.write(buffer, 0, read);
+                downloaded += read;
+                postProgress(downloaded, total, false);
+            }
+            out.flush();
+            postProgress(downloaded, total, true);
+        } finally {
+            pool.returnBuf(buffer);
+            out.close();
+            in.close();
+        }
+    }
+
+    /**
+     * Tell the listener the sink already holds the whole body
+     */
+    public void onAlreadyComplete(long total) {
+        postProgress(total, total, true);
+    }
+
+    private void postProgress(final long downloaded, final long total, boolean force) {
+        long now = SystemClock.uptimeMillis();
+        if (!force && now - mLastProgress < PROGRESS_INTERVAL_MS) {
+            return;
+        }
+        mLastProgress = now;
+
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCanceled()) {
+                    mListener.onProgress(downloaded, total);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected Response<Sink> parseNetworkResponse(NetworkResponse response) {
+        // the body already went to the sink
+        return Response.success(mSink, null);
+    }
+
+    @Override
+    protected void deliverResponse(Sink response) {
+        mListener.onSuccess(response);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of equivalent base URIs. Requests go to the one with the best recent record, judged by an
+ * exponentially weighted moving average of latency and error rate, and move to another when they
+ * can't reach the one they were sent to.
+ */
+public class EndpointPool {
+    public final static double DEFAULT_ALPHA = 0.2;
+
+    // a failure counts as a very slow response, so one bad endpoint quickly falls behind
+    private final static long FAILURE_LATENCY_MS = 10000;
+
+    // how long a failing endpoint is avoided before a request is allowed to probe it again
+    private final static long PROBE_INTERVAL_MS = 30000;
+
+    /**
+     * One base URI and its record
+     */
+    public static class Endpoint {
+        private final Uri mBaseUri;
+
+        private double mLatencyMs = -1;
+        private double mErrorRate;
+        private long mLastFailure;
+
+        Endpoint(Uri baseUri) {
+            mBaseUri = baseUri;
+        }
+
+        public Uri getBaseUri() {
+            return mBaseUri;
+        }
+
+        private double score() {
+            // unmeasured endpoints sort first so each gets tried
+            double latency = mLatencyMs < 0 ? 0 : mLatencyMs;
+            return (latency + 1) * (1 + 4 * mErrorRate);
+        }
+
+        @Override
+        public String toString() {
+            return mBaseUri.toString();
+        }
+    }
+
+    private final String mPrimary;
+    private final List<Endpoint> mEndpoints;
+    private final double mAlpha;
+
+    /**
+     * @param baseUris Equivalent base URIs. Request URLs are built against the first.
+     */
+    public EndpointPool(List<Uri> baseUris) {
+        this(baseUris, DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param baseUris Equivalent base URIs. Request URLs are built against the first.
+     * @param alpha Weight of the newest sample in the averages, between 0 and 1
+     */
+    public EndpointPool(List<Uri> baseUris, double alpha) {
+        if (baseUris.isEmpty()) {
+            throw new IllegalArgumentException("No base URIs");
+        }
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        }
+
+        mPrimary = baseUris.get(0).toString();
+        mAlpha = alpha;
+
+        mEndpoints = new ArrayList<>();
+        for (Uri baseUri : baseUris) {
+            mEndpoints.add(new Endpoint(baseUri));
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(mEndpoints);
+    }
+
+    /**
+     * @return The endpoint with the best record
+     */
+    public Endpoint select() {
+        return select(Collections.<Endpoint>emptySet());
+    }
+
+    /**
+     * @param exclude Endpoints not to pick, e.g. ones a request has already failed on
+     * @return The endpoint with the best record, or null if every endpoint is excluded
+     */
+    public synchronized Endpoint select(Collection<Endpoint> exclude) {
+        long now = SystemClock.elapsedRealtime();
+
+        Endpoint best = null;
+        for (Endpoint endpoint : mEndpoints) {
+            if (exclude.contains(endpoint)) {
+                continue;
+            }
+
+            // forget enough of an old failure to give the endpoint another chance
+            if (endpoint.mLastFailure > 0 && now - endpoint.mLastFailure > PROBE_INTERVAL_MS) {
+                endpoint.mLastFailure = 0;
+                endpoint.mLatencyMs = -1;
+                endpoint.mErrorRate /= 2;
+            }
+
+            if (best == null || endpoint.score() < best.score()) {
+                best = endpoint;
+            }
+        }
+
+        return best;
+    }
+
+    public synchronized void reportSuccess(Endpoint endpoint, long latencyMs) {
+        endpoint.mLatencyMs = average(endpoint.mLatencyMs, latencyMs);
+        endpoint.mErrorRate = (1 - mAlpha) * endpoint.mErrorRate;
+    }
+
+    public synchronized void reportFailure(Endpoint endpoint) {
+        endpoint.mLatencyMs = average(endpoint.mLatencyMs, FAILURE_LATENCY_MS);
+        endpoint.mErrorRate = (1 - mAlpha) * endpoint.mErrorRate + mAlpha;
+        endpoint.mLastFailure = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized double getLatencyMs(Endpoint endpoint) {
+        return endpoint.mLatencyMs;
+    }
+
+    public synchronized double getErrorRate(Endpoint endpoint) {
+        return endpoint.mErrorRate;
+    }
+
+    private double average(double current, long sample) {
+        return current < 0 ? sample : (1 - mAlpha) * current + mAlpha * sample;
+    }
+
+    /**
+     * Point a URL built against the first base URI at another endpoint
+     *
+     * @return The rewritten URL, or the URL unchanged if it wasn't built against the first base URI
+     */
+    public String rewrite(String url, Endpoint endpoint) {
+        if (endpoint == null || !url.startsWith(mPrimary)) {
+            return url;
+        }
+
+        return endpoint.mBaseUri.toString() + url.substring(mPrimary.length());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.net.Uri;
+
+import org.dforsyth.android.lob.util.LatencyTracker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * When to send a second copy of a slow request. A request that hasn't finished by a percentile of
+ * recent latency to its endpoint is sent again, to another base URI if the client has one, and
+ * whichever copy finishes first wins. Share one policy between requests so they share latency
+ * history.
+ */
+public class HedgePolicy {
+    public final static double DEFAULT_PERCENTILE = 0.95;
+    public final static long DEFAULT_INITIAL_DELAY_MS = 1000;
+
+    private final static int SAMPLES = 100;
+
+    // below this many samples the percentile is noise, use the initial delay instead
+    private final static int MIN_SAMPLES = 20;
+
+    private final double mPercentile;
+    private final long mInitialDelayMs;
+    private long mMinDelayMs = 10;
+    private long mMaxDelayMs = Long.MAX_VALUE;
+
+    private final Map<String, LatencyTracker> mTrackers = new HashMap<>();
+    private int mHedged;
+    private int mHedgeWins;
+
+    public HedgePolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_INITIAL_DELAY_MS);
+    }
+
+    /**
+     * @param percentile Percentile of recent latency to wait before hedging, between 0 and 1
+     * @param initialDelayMs Wait before hedging while there is too little history to go on
+     */
+    public HedgePolicy(double percentile, long initialDelayMs) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1]");
+        }
+
+        mPercentile = percentile;
+        mInitialDelayMs = initialDelayMs;
+    }
+
+    /**
+     * Keep the wait before hedging within bounds, whatever recent latency says
+     */
+    public HedgePolicy setDelayBounds(long minDelayMs, long maxDelayMs) {
+        if (minDelayMs < 0 || maxDelayMs < minDelayMs) {
+            throw new IllegalArgumentException("Bad delay bounds");
+        }
+
+        mMinDelayMs = minDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        return this;
+    }
+
+    private static String key(ObjectRequest<?> request) {
+        EndpointPool.Endpoint endpoint = request.getEndpoint();
+        Uri uri = endpoint != null ? endpoint.getBaseUri() : Uri.parse(request.getOriginUrl());
+        return uri.getHost();
+    }
+
+    private synchronized LatencyTracker tracker(String key) {
+        LatencyTracker tracker = mTrackers.get(key);
+        if (tracker == null) {
+            tracker = new LatencyTracker(SAMPLES);
+            mTrackers.put(key, tracker);
+        }
+        return tracker;
+    }
+
+    /**
+     * @return How long to wait for a request before sending a second copy
+     */
+    public long getDelayMs(ObjectRequest<?> request) {
+        LatencyTracker tracker = tracker(key(request));
+
+        long delay = tracker.getCount() < MIN_SAMPLES
+                ? mInitialDelayMs
+                : tracker.percentile(mPercentile);
+
+        return Math.max(mMinDelayMs, Math.min(mMaxDelayMs, delay));
+    }
+
+    void record(ObjectRequest<?> request, long latencyMs) {
+        tracker(key(request)).record(latencyMs);
+    }
+
+    synchronized void onHedged() {
+        mHedged++;
+    }
+
+    synchronized void onHedgeWon() {
+        mHedgeWins++;
+    }
+
+    /**
+     * @return Number of requests a second copy was sent for
+     */
+    public synchronized int getHedgedCount() {
+        return mHedged;
+    }
+
+    /**
+     * @return Number of hedged requests where the second copy finished first
+     */
+    public synchronized int getHedgeWinCount() {
+        return mHedgeWins;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+/**
+ * One {@link LobRequest} sent under a {@link HedgePolicy}: the request, and a second copy if the
+ * first is slow. Only the first copy to finish is delivered. The call may be started on any thread;
+ * Volley delivers on the main thread, and the call's state is guarded by its own lock.
+ *
+ * Every copy's latency goes to the policy, including a loser's time up to when it was cancelled,
+ * so the history isn't made up of winners only.
+ */
+class HedgedCall<T> {
+    private final static Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private final LobRequest<T> mRequest;
+    private final HedgePolicy mPolicy;
+    private final Object mTag;
+    private final Response.Listener<LobResponse<T>> mListener;
+    private final Response.ErrorListener mErrorListener;
+
+    // guarded by this
+    private Copy mPrimary;
+    private Copy mHedge;
+    private int mOutstanding;
+    private boolean mDone;
+
+    private final Runnable mSendHedge = new Runnable() {
+        @Override
+        public void run() {
+            sendHedge();
+        }
+    };
+
+    /**
+     * One copy of the request on the wire
+     */
+    private class Copy implements Response.Listener<LobResponse<T>>, Response.ErrorListener {
+        final ObjectRequest<T> mObjectRequest;
+        long mStart;
+
+        Copy() {
+            mObjectRequest = mRequest.createRequest(mTag, this, this);
+        }
+
+        long elapsed() {
+            return SystemClock.elapsedRealtime() - mStart;
+        }
+
+        @Override
+        public void onResponse(LobResponse<T> response) {
+            onSuccess(this, response);
+        }
+
+        @Override
+        public void onErrorResponse(VolleyError error) {
+            onFailure(this, error);
+        }
+    }
+
+    HedgedCall(
+            LobRequest<T> request,
+            HedgePolicy policy,
+            Object tag,
+            Response.Listener<LobResponse<T>> listener,
+            Response.ErrorListener errorListener) {
+        mRequest = request;
+        mPolicy = policy;
+        mTag = tag;
+        mListener = listener;
+        mErrorListener = errorListener;
+    }
+
+    void start() {
+        Copy primary = new Copy();
+        synchronized (this) {
+            mPrimary = primary;
+            mPrimary.mStart = SystemClock.elapsedRealtime();
+            mOutstanding++;
+        }
+        mRequest.getClient().submitRequest(primary.mObjectRequest);
+
+        sHandler.postDelayed(mSendHedge, mPolicy.getDelayMs(primary.mObjectRequest));
+    }
+
+    private void sendHedge() {
+        Copy hedge;
+        synchronized (this) {
+            if (mDone || mPrimary.mObjectRequest.isCanceled() || mPrimary.mObjectRequest.isExpired()) {
+                return;
+            }
+
+            hedge = new Copy();
+
+            // the deadline covers the whole call, the hedge doesn't get a fresh one
+            hedge.mObjectRequest.setDeadline(mPrimary.mObjectRequest.getDeadline());
+
+            // an identical cacheable request would be parked behind the first instead of sent
+            hedge.mObjectRequest.setShouldCache(false);
+            hedge.mObjectRequest.routeAwayFrom(mPrimary.mObjectRequest.getEndpoint());
+
+            mHedge = hedge;
+            mHedge.mStart = SystemClock.elapsedRealtime();
+            mOutstanding++;
+        }
+
+        mPolicy.onHedged();
+        mRequest.getClient().submitRequest(hedge.mObjectRequest);
+    }
+
+    private void onSuccess(Copy winner, LobResponse<T> response) {
+        Copy loser;
+        synchronized (this) {
+            mOutstanding--;
+            mPolicy.record(winner.mObjectRequest, winner.elapsed());
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+
+            loser = winner == mPrimary ? mHedge : mPrimary;
+        }
+        sHandler.removeCallbacks(mSendHedge);
+
+        if (loser != null && !loser.mObjectRequest.hasHadResponseDelivered()) {
+            // it took at least this long, leaving it out would only remember the fast copies
+            mPolicy.record(loser.mObjectRequest, loser.elapsed());
+            loser.mObjectRequest.cancel();
+        }
+        if (winner == mHedge) {
+            mPolicy.onHedgeWon();
+        }
+
+        mListener.onResponse(response);
+    }
+
+    private void onFailure(Copy copy, VolleyError error) {
+        synchronized (this) {
+            mOutstanding--;
+            mPolicy.record(copy.mObjectRequest, copy.elapsed());
+            if (mDone) {
+                return;
+            }
+
+            // the other copy may still succeed
+            if (mOutstanding > 0) {
+                return;
+            }
+
+            mDone = true;
+        }
+        sHandler.removeCallbacks(mSendHedge);
+
+        if (mErrorListener != null) {
+            mErrorListener.onErrorResponse(error);
+        }
+    }
+}
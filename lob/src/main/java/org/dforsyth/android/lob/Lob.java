@@ -32,20 +32,27 @@ package org.dforsyth.android.lob;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.util.Log;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.Request;
 import com.android.volley.RetryPolicy;
+import com.android.volley.toolbox.HttpStack;
 
 import org.dforsyth.android.lob.encoders.Encoder;
 import org.dforsyth.android.lob.encoders.GsonEncoder;
 import org.dforsyth.android.lob.queues.LobQueue;
 import org.dforsyth.android.lob.queues.SimpleQueue;
+import org.dforsyth.android.lob.stacks.LobStack;
 import org.dforsyth.android.lob.util.Constants;
 
+import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A general http client that wraps Volley
@@ -56,6 +63,10 @@ public class Lob {
     private final Map<String, String> mHeaders;
     private final RetryPolicy mRetryPolicy;
     private final LobDynamic mDynamic;
+    private final AuthRefresher mAuthRefresher;
+    private final Warmer mWarmer;
+    private final EndpointPool mEndpointPool;
+    private final DeferralThrottle mDeferralThrottle;
 
     protected final Encoder mEncoder;
     protected final LobQueue mQueue;
@@ -66,6 +77,13 @@ public class Lob {
         return mBaseUri;
     }
 
+    /**
+     * @return The pool of base URIs requests are balanced across, or null if there is only one
+     */
+    public EndpointPool getEndpointPool() {
+        return mEndpointPool;
+    }
+
     public Map<String, String> getHeaders() {
         return mHeaders;
     }
@@ -78,23 +96,111 @@ public class Lob {
         return mDynamic;
     }
 
+    public Encoder getEncoder() {
+        return mEncoder;
+    }
+
     public LobQueue getQueue() {
         return mQueue;
     }
 
+    AuthRefresher getAuthRefresher() {
+        return mAuthRefresher;
+    }
+
+    /**
+     * Drop cached {@link LobDynamic} values, e.g. after logging out. Only needed when an
+     * {@link LobAuthenticator} is set; without one, dynamic values are read for every request.
+     */
+    public void invalidateDynamic() {
+        if (mAuthRefresher != null) {
+            mAuthRefresher.invalidate();
+        }
+    }
+
     private Lob(Builder builder) {
         mContext = builder.mContext;
         mHeaders = builder.mHeaders;
         mRetryPolicy = builder.mRetryPolicy;
-        mDynamic = builder.mDynamic;
+
+        // with an authenticator, dynamic values only change when credentials are refreshed
+        CachingDynamic cachingDynamic = null;
+        if (builder.mAuthenticator != null && builder.mDynamic != null) {
+            cachingDynamic = new CachingDynamic(builder.mDynamic);
+            mDynamic = cachingDynamic;
+        } else {
+            mDynamic = builder.mDynamic;
+        }
+
+        mAuthRefresher = builder.mAuthenticator != null
+                ? new AuthRefresher(builder.mAuthenticator, cachingDynamic)
+                : null;
 
         mEncoder = builder.mEncoder == null ? new GsonEncoder() : builder.mEncoder;
 
+        if (builder.mPrewarmTypes != null && mEncoder instanceof GsonEncoder) {
+            final GsonEncoder gsonEncoder = (GsonEncoder) mEncoder;
+            final Type[] types = builder.mPrewarmTypes;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    gsonEncoder.prewarm(types);
+                }
+            });
+        }
+
         mBaseUri = builder.mBaseUri;
 
+        if (builder.mAlternateBaseUris.isEmpty()) {
+            mEndpointPool = null;
+        } else {
+            List<Uri> baseUris = new ArrayList<>();
+            baseUris.add(mBaseUri);
+            baseUris.addAll(builder.mAlternateBaseUris);
+            mEndpointPool = new EndpointPool(baseUris);
+        }
+
         mQueue = builder.mQueue == null ? new SimpleQueue() : builder.mQueue;
 
         mQueue.prepare(mContext);
+
+        mDeferralThrottle = new DeferralThrottle(mContext, mQueue, builder.mMaxDeferralMs);
+
+        // addresses cached for OkHttpStack go stale on a network change whether or not we prewarm,
+        // without either there's nothing to watch for
+        mWarmer = new Warmer(mContext, mQueue, mBaseUri);
+        if (builder.mPrewarm || usesDnsCache(mQueue)) {
+            mWarmer.start(builder.mPrewarm);
+        }
+    }
+
+    private static boolean usesDnsCache(LobQueue queue) {
+        if (!(queue instanceof SimpleQueue)) {
+            return false;
+        }
+        HttpStack stack = ((SimpleQueue) queue).getHttpStack();
+        // LobStack rather than OkHttpStack, which can't be loaded without OkHttp
+        return stack instanceof LobStack && ((LobStack) stack).usesDnsCache();
+    }
+
+    /**
+     * Stop listening for network changes, and send any deferred requests now. Only needed for a
+     * client built with {@link Builder#setPrewarm(boolean)} or on an
+     * {@link org.dforsyth.android.lob.stacks.OkHttpStack}; other clients only watch the network
+     * while they hold deferred requests. Requests already submitted still complete.
+     */
+    public void close() {
+        mWarmer.close();
+        mDeferralThrottle.flush();
+    }
+
+    /**
+     * Resolve the base URI's host and open a connection to it in the background, so the next
+     * request doesn't wait on DNS, TCP and TLS setup. {@link Builder#setPrewarm(boolean)} does this
+     * automatically.
+     */
+    public void prewarm() {
+        mWarmer.warm();
     }
 
     protected void submitRequest(ObjectRequest request) {
@@ -114,10 +220,43 @@ public class Lob {
             }
         }
 
+        if (request.isDeferrable()) {
+            mDeferralThrottle.hold(request);
+            return;
+        }
+
+        // held requests go along with it, but only if it isn't answered from the cache
+        request.setRideAlong(mDeferralThrottle);
+        mQueue.submitRequest(request);
+    }
+
+    protected void submitRequest(DownloadRequest request) {
+        Log.d("Lob", "download submitted: " + request.getUrl());
+
         mQueue.submitRequest(request);
+        mDeferralThrottle.onRadioActive();
+    }
+
+    /**
+     * @return What holds deferrable requests, and its batching metrics
+     */
+    public DeferralThrottle getDeferralThrottle() {
+        return mDeferralThrottle;
     }
 
+    /**
+     * Cancel requests by tag. A {@link LobScope} tag cancels just the requests in that scope without
+     * searching the queue.
+     *
+     * @param tag Tag the requests were made with
+     */
     public void cancel(Object tag) {
+        if (tag instanceof LobScope) {
+            ((LobScope) tag).cancel();
+            return;
+        }
+
+        mDeferralThrottle.cancel(tag);
         mQueue.cancel(tag);
     }
 
@@ -129,10 +268,15 @@ public class Lob {
         private Encoder mEncoder;
         private LobQueue mQueue;
         private Uri mBaseUri;
+        private List<Uri> mAlternateBaseUris;
 
         private Map<String, String> mHeaders;
         private RetryPolicy mRetryPolicy;
         private LobDynamic mDynamic;
+        private LobAuthenticator mAuthenticator;
+        private boolean mPrewarm;
+        private Type[] mPrewarmTypes;
+        private long mMaxDeferralMs = DeferralThrottle.DEFAULT_MAX_DELAY_MS;
 
 
         // TODO: null check on context
@@ -145,10 +289,21 @@ public class Lob {
         public Builder(Context context, Uri baseUri) {
             mContext = context;
             mBaseUri = baseUri;
+            mAlternateBaseUris = new ArrayList<>();
             mHeaders = new HashMap<String, String>();
             mHeaders.put(Constants.HEADER_USER_AGENT, Constants.DEFAULT_USER_AGENT);
         }
 
+        /**
+         * Add a base URI that serves the same API as the one the builder was created with. Requests
+         * are balanced across all of them by recent latency and error rate, and fail over between
+         * them when a host can't be reached. Paths are resolved the same way against each.
+         */
+        public Builder addBaseUri(Uri baseUri) {
+            mAlternateBaseUris.add(baseUri);
+            return this;
+        }
+
         public Builder setHeader(String name, String value) {
             mHeaders.put(name, value);
             return this;
@@ -174,6 +329,46 @@ public class Lob {
             return this;
         }
 
+        /**
+         * Refresh credentials once when requests start failing authentication, then replay the
+         * requests that failed
+         */
+        public Builder setAuthenticator(LobAuthenticator authenticator) {
+            mAuthenticator = authenticator;
+            return this;
+        }
+
+        /**
+         * Warm up a connection to the base URI as soon as the client is built, and again whenever
+         * the device changes networks
+         */
+        public Builder setPrewarm(boolean prewarm) {
+            mPrewarm = prewarm;
+            return this;
+        }
+
+        /**
+         * Build the encoder's adapters for some response types in the background as soon as the
+         * client is built, so the first response of each type decodes without that cost. Only
+         * applies to a {@link GsonEncoder}.
+         */
+        public Builder setPrewarmTypes(Type... types) {
+            mPrewarmTypes = types;
+            return this;
+        }
+
+        /**
+         * Set the longest a deferrable request is held waiting for other traffic
+         */
+        public Builder setMaxDeferral(long duration, TimeUnit unit) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("Negative deferral");
+            }
+
+            mMaxDeferralMs = unit.toMillis(duration);
+            return this;
+        }
+
         /**
          * Build a Lob client
          *
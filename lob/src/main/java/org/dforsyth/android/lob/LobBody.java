@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import org.dforsyth.android.lob.encoders.Encoder;
+import org.dforsyth.android.lob.encoders.StreamingEncoder;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * A request body that is written to the connection as it is sent, instead of being held in memory.
+ * {@link org.dforsyth.android.lob.stacks.LobStack} streams these; other stacks get them as a byte
+ * array.
+ */
+public abstract class LobBody {
+    private final static int BUFFER_SIZE = 8192;
+
+    /**
+     * Largest encoded object body kept in memory to send with a Content-Length
+     */
+    public final static int MAX_BUFFERED_SIZE = 64 * 1024;
+
+    /**
+     * Opens a fresh stream over the body's content. Called again for every retry.
+     */
+    public interface StreamSource {
+        public InputStream open() throws IOException;
+    }
+
+    /**
+     * Writes the body's content. Called again for every retry.
+     */
+    public interface BodyWriter {
+        public void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @return The Content-Type of the body, or null to use the request's default
+     */
+    public abstract String getContentType();
+
+    /**
+     * @return The length of the body in bytes, or -1 if unknown. Bodies of unknown length are sent
+     * with chunked transfer encoding.
+     */
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Write the body
+     *
+     * @param out Stream to write to. Implementations should not close it.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Read the whole body into memory, for stacks that can't stream
+     */
+    public byte[] toByteArray() throws IOException {
+        long length = getContentLength();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? (int) length : BUFFER_SIZE);
+        writeTo(out);
+        return out.toByteArray();
+    }
+
+    protected static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    public static LobBody create(final String contentType, final byte[] bytes) {
+        return new LobBody() {
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+
+            @Override
+            public long getContentLength() {
+                return bytes.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+
+            @Override
+            public byte[] toByteArray() {
+                return bytes;
+            }
+        };
+    }
+
+    public static LobBody create(final String contentType, final File file) {
+        return create(contentType, file.length(), new StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        });
+    }
+
+    /**
+     * Create a body from part of a file
+     *
+     * @param contentType Content-Type of the body
+     * @param file File to read
+     * @param offset Where in the file the body starts
+     * @param length Length of the body
+     */
+    public static LobBody create(final String contentType, final File file, final long offset, final long length) {
+        return create(contentType, length, new BodyWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                RandomAccessFile in = new RandomAccessFile(file, "r");
+                try {
+                    in.seek(offset);
+
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    long remaining = length;
+                    while (remaining > 0) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new IOException("File ended before the body did");
+                        }
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param contentType Content-Type of the body
+     * @param length Length of the body, or -1 if unknown
+     * @param source Opens the body's content
+     */
+    public static LobBody create(final String contentType, final long length, final StreamSource source) {
+        return create(contentType, length, new BodyWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                InputStream in = source.open();
+                try {
+                    copy(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param contentType Content-Type of the body
+     * @param length Length of the body, or -1 if unknown
+     * @param writer Writes the body's content
+     */
+    public static LobBody create(final String contentType, final long length, final BodyWriter writer) {
+        return new LobBody() {
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+
+            @Override
+            public long getContentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                writer.writeTo(out);
+            }
+        };
+    }
+
+    /**
+     * Create a body that encodes an object when it is sent. A {@link StreamingEncoder} writes
+     * straight to the connection; any other {@link Encoder} is assumed to produce JSON.
+     *
+     * The first encoding is kept if it is small, so the body goes out with a Content-Length and
+     * isn't encoded again on a retry. Only a streamed body larger than {@link #MAX_BUFFERED_SIZE} is
+     * sent chunked.
+     *
+     * @param object Object to encode
+     * @param encoder Encoder to use
+     */
+    public static LobBody create(final Object object, final Encoder encoder) {
+        if (encoder instanceof StreamingEncoder) {
+            final StreamingEncoder streamingEncoder = (StreamingEncoder) encoder;
+            return new EncodedBody(streamingEncoder.getContentType(), MAX_BUFFERED_SIZE, new BodyWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    streamingEncoder.encode(object, out);
+                }
+            });
+        }
+
+        // the encoding is a String in memory whatever its size, so it is always kept
+        return new EncodedBody(Constants.CONTENT_TYPE_JSON, Integer.MAX_VALUE, new BodyWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(encoder.encode(object).getBytes("UTF-8"));
+            }
+        });
+    }
+
+    /**
+     * Thrown by {@link BoundedBuffer} to stop an encoding that has outgrown it
+     */
+    private static class LimitExceededException extends IOException {
+    }
+
+    /**
+     * Collects bytes up to a limit
+     */
+    private static class BoundedBuffer extends OutputStream {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final int mLimit;
+        private boolean mExceeded;
+
+        BoundedBuffer(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mBytes.size() + 1 > mLimit) {
+                mExceeded = true;
+                throw new LimitExceededException();
+            }
+            mBytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mBytes.size() + count > mLimit) {
+                mExceeded = true;
+                throw new LimitExceededException();
+            }
+            mBytes.write(buffer, offset, count);
+        }
+
+        /**
+         * @return True if a write went past the limit, however the encoder reported it
+         */
+        boolean isExceeded() {
+            return mExceeded;
+        }
+
+        byte[] toByteArray() {
+            return mBytes.toByteArray();
+        }
+    }
+
+    /**
+     * A body encoded on demand, and buffered when the encoding fits
+     */
+    private static class EncodedBody extends LobBody {
+        private final String mContentType;
+        private final int mMaxBufferedSize;
+        private final BodyWriter mWriter;
+
+        // guarded by this
+        private byte[] mBuffered;
+        private boolean mTooLarge;
+
+        EncodedBody(String contentType, int maxBufferedSize, BodyWriter writer) {
+            mContentType = contentType;
+            mMaxBufferedSize = maxBufferedSize;
+            mWriter = writer;
+        }
+
+        @Override
+        public String getContentType() {
+            return mContentType;
+        }
+
+        /**
+         * @return The buffered encoding, or null if it is too large to hold
+         */
+        private synchronized byte[] buffer() throws IOException {
+            if (mBuffered != null || mTooLarge) {
+                return mBuffered;
+            }
+
+            BoundedBuffer out = new BoundedBuffer(mMaxBufferedSize);
+            try {
+                mWriter.writeTo(out);
+            } catch (IOException | RuntimeException e) {
+                // encoders may wrap the exception, so ask the buffer
+                if (!out.isExceeded()) {
+                    throw e;
+                }
+                mTooLarge = true;
+                return null;
+            }
+
+            mBuffered = out.toByteArray();
+            return mBuffered;
+        }
+
+        @Override
+        public long getContentLength() {
+            try {
+                byte[] buffered = buffer();
+                return buffered != null ? buffered.length : -1;
+            } catch (IOException e) {
+                // writeTo will run into the same failure and report it
+                return -1;
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] buffered = buffer();
+            if (buffered != null) {
+                out.write(buffered);
+                return;
+            }
+
+            mWriter.writeTo(out);
+        }
+
+        @Override
+        public byte[] toByteArray() throws IOException {
+            byte[] buffered = buffer();
+            return buffered != null ? buffered : super.toByteArray();
+        }
+    }
+}
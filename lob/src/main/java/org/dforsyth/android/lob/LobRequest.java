@@ -31,18 +31,36 @@
 package org.dforsyth.android.lob;
 
 import android.net.Uri;
+import android.os.SystemClock;
 
+import com.android.volley.NetworkResponse;
 import com.android.volley.Request.Method;
 import com.android.volley.Response;
 import com.android.volley.RetryPolicy;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.RequestFuture;
+import com.google.gson.Gson;
+
+import org.dforsyth.android.lob.delta.DeltaCache;
+import org.dforsyth.android.lob.delta.DeltaDecoder;
+import org.dforsyth.android.lob.delta.PatchError;
+import org.dforsyth.android.lob.encoders.DecodeError;
+import org.dforsyth.android.lob.encoders.Encoder;
+import org.dforsyth.android.lob.encoders.GsonEncoder;
+import org.dforsyth.android.lob.encoders.MergingDecoder;
+import org.dforsyth.android.lob.encoders.MultiEncoder;
+import org.dforsyth.android.lob.encoders.NegotiatingEncoder;
+import org.dforsyth.android.lob.encoders.NormalizingEncoder;
+import org.dforsyth.android.lob.encoders.ProjectedDecoder;
+import org.dforsyth.android.lob.encoders.Projection;
+import org.dforsyth.android.lob.util.Constants;
 
 import java.lang.reflect.Type;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A builder for decodable volley requests
@@ -56,9 +74,18 @@ public class LobRequest<T> {
     private Uri mUri;
     private Map<String, String> mHeaders;
     private Map<String, String> mParams;
-    private byte[] mBody;
+    private LobBody mBody;
     private RetryPolicy mRetryPolicy;
     private LobDynamic mDynamic;
+    private long mResponseSizeHint;
+    private long mDeadlineMs;
+    private boolean mCompressBody;
+    private boolean mShouldCache;
+    private boolean mDeferrable;
+    private HedgePolicy mHedgePolicy;
+    private ResponseDecoder<T> mResponseDecoder;
+    private DeltaCache mDeltaCache;
+    private Gson mDeltaGson;
 
     private Type mType;
 
@@ -70,6 +97,15 @@ public class LobRequest<T> {
         mParams = builder.mPostParams;
         mBody = builder.mBody;
         mType = builder.mType;
+        mResponseSizeHint = builder.mResponseSizeHint;
+        mDeadlineMs = builder.mDeadlineMs;
+        mCompressBody = builder.mCompressBody;
+        mHedgePolicy = builder.mHedgePolicy;
+        mResponseDecoder = builder.mResponseDecoder;
+        mShouldCache = builder.mShouldCache;
+        mDeferrable = builder.mDeferrable;
+        mDeltaCache = builder.mDeltaCache;
+        mDeltaGson = builder.mDeltaCache != null ? builder.getGson() : null;
 
         // TODO: make it possible to set dynamics on individual requests
         mDynamic = mClient.getDynamic();
@@ -78,6 +114,10 @@ public class LobRequest<T> {
         mRetryPolicy = builder.mRetryPolicy != null ? builder.mRetryPolicy : mClient.getRetryPolicy();
     }
 
+    public Lob getClient() {
+        return mClient;
+    }
+
     public int getMethod() {
         return mMethod;
     }
@@ -94,6 +134,45 @@ public class LobRequest<T> {
         return mParams;
     }
 
+    public LobBody getBody() {
+        return mBody;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    public long getDeadlineMs() {
+        return mDeadlineMs;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return mHedgePolicy;
+    }
+
+    public boolean isDeferrable() {
+        return mDeferrable;
+    }
+
+    public DeltaCache getDeltaCache() {
+        return mDeltaCache;
+    }
+
+    /**
+     * Decode a response the way this request's own response would be: with its
+     * {@link ResponseDecoder}, projection or reused result if it has one, otherwise with the
+     * client's encoder
+     *
+     * @return The decoded body, or null if the request has no type
+     */
+    public T decode(NetworkResponse response) throws DecodeError {
+        return ObjectRequest.decode(response, mResponseDecoder, mClient.getEncoder(), mType);
+    }
+
     public interface Callbacks<T> {
         public void onSuccess(LobResponse<T> response);
         public void onFailure(VolleyError error);
@@ -106,9 +185,7 @@ public class LobRequest<T> {
     public LobResponse<T> request(Object tag) throws ExecutionException, InterruptedException {
         RequestFuture<LobResponse<T>> future = RequestFuture.newFuture();
 
-        ObjectRequest<T> request = createRequest(tag, future, future);
-
-        mClient.submitRequest(request);
+        submit(tag, future, future, true);
 
         return future.get();
     }
@@ -133,31 +210,159 @@ public class LobRequest<T> {
             }
         };
 
+        submit(tag, listener, errorListener, true);
+    }
+
+    private void submit(final Object tag, final Response.Listener<LobResponse<T>> listener,
+                        Response.ErrorListener errorListener, boolean refetch) {
+        if (mDeltaCache != null && refetch) {
+            // the patch didn't fit the cached version, which is gone now. start over with a full body, once.
+            final Response.ErrorListener deltaListener = errorListener;
+            errorListener = new Response.ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                    if (isPatchError(error)) {
+                        submit(tag, listener, deltaListener, false);
+                    } else {
+                        deltaListener.onErrorResponse(error);
+                    }
+                }
+            };
+        }
+
+        if (mHedgePolicy != null) {
+            new HedgedCall<T>(this, mHedgePolicy, tag, listener, errorListener).start();
+            return;
+        }
+
         ObjectRequest<T> request = createRequest(tag, listener, errorListener);
 
         mClient.submitRequest(request);
     }
 
+    private static boolean isPatchError(VolleyError error) {
+        for (Throwable cause = error.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof PatchError) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stream the response body into a sink instead of decoding it
+     *
+     * @param tag Tag for the request, may be a {@link LobScope}
+     * @param sink Where the body goes, e.g. a {@link DownloadRequest.FileSink}
+     * @param listener Progress and completion callbacks
+     */
+    public void downloadAsync(Object tag, DownloadRequest.Sink sink, DownloadRequest.Listener listener) {
+        if (mMethod != Method.GET) {
+            throw new IllegalStateException("Downloads must be GET requests");
+        }
+
+        DownloadRequest request = new DownloadRequest(
+                mUri.toString(),
+                sink,
+                mDynamic,
+                mHeaders,
+                listener
+        );
+
+        prepare(mClient, request, mRetryPolicy, mDeadlineMs, tag);
+
+        mClient.submitRequest(request);
+    }
+
+    /**
+     * Wire a request up to a client: its credentials and endpoint pool, a retry policy that knows
+     * about them and the deadline, and the tag
+     *
+     * @param retryPolicy Policy to retry with, or null for Volley's default
+     * @param deadlineMs How long the request has from now, or 0 for no deadline
+     * @param tag Tag for the request, may be a {@link LobScope}, or null
+     */
+    static void prepare(Lob client, BaseRequest<?> request, RetryPolicy retryPolicy, long deadlineMs, Object tag) {
+        if (retryPolicy != null) {
+            request.setRetryPolicy(retryPolicy);
+        }
+
+        if (deadlineMs > 0) {
+            request.setDeadline(SystemClock.elapsedRealtime() + deadlineMs);
+        }
+
+        AuthRefresher authRefresher = client.getAuthRefresher();
+        if (authRefresher != null) {
+            request.setAuthRefresher(authRefresher);
+        }
+
+        EndpointPool endpointPool = client.getEndpointPool();
+        if (endpointPool != null) {
+            request.setEndpointPool(endpointPool);
+        }
+
+        if (deadlineMs > 0 || authRefresher != null || endpointPool != null) {
+            request.setRetryPolicy(new LobRetryPolicy(request.getRetryPolicy(), request));
+        }
+
+        if (tag != null) {
+            request.setTag(tag);
+        }
+
+        if (tag instanceof LobScope) {
+            request.setScope((LobScope) tag);
+        }
+    }
+
     public ObjectRequest<T> createRequest(Object tag, Response.Listener<LobResponse<T>> listener, Response.ErrorListener errorListener) {
+        Map<String, String> headers = mHeaders;
+        ResponseDecoder<T> responseDecoder = mResponseDecoder;
+
+        if (mDeltaCache != null) {
+            // ask for a patch against whatever is cached now, the request may be reused across syncs
+            String key = mUri.toString();
+            DeltaCache.Entry cached = mDeltaCache.get(key);
+            String baseEtag = cached != null ? cached.etag : null;
+
+            headers = new HashMap<>(mHeaders);
+            if (baseEtag != null) {
+                headers.put(Constants.HEADER_IF_NONE_MATCH, baseEtag);
+            }
+            headers.put(Constants.HEADER_A_IM, DeltaDecoder.ACCEPTED_IM);
+            responseDecoder = new DeltaDecoder<>(mDeltaGson, mType, mDeltaCache, key, baseEtag);
+        }
+
         ObjectRequest<T> request = new ObjectRequest<T>(
                 mMethod,
                 mUri.toString(),
                 mClient.mEncoder,
                 mDynamic,
                 mType,
-                mHeaders,
+                headers,
                 mParams,
-                mBody,
+                null,
                 listener,
                 errorListener
         );
 
-        if (mRetryPolicy != null) {
-            request.setRetryPolicy(mRetryPolicy);
+        if (mBody != null) {
+            request.setBody(mBody);
+            request.setCompressBody(mCompressBody);
         }
 
-        if (tag != null) {
-            request.setTag(tag);
+        prepare(mClient, request, mRetryPolicy, mDeadlineMs, tag);
+
+        request.setResponseSizeHint(mResponseSizeHint);
+        if (!mShouldCache) {
+            request.setShouldCache(false);
+        }
+
+        if (mDeferrable) {
+            request.setDeferrable(true);
+        }
+
+        if (responseDecoder != null) {
+            request.setResponseDecoder(responseDecoder);
         }
 
         return request;
@@ -176,10 +381,21 @@ public class LobRequest<T> {
         private int mMethod = DEFAULT_METHOD;
 
         private Map<String, String> mPostParams;
-        private byte[] mBody;
+        private LobBody mBody;
         private Map<String, String> mHeaders;
 
         private RetryPolicy mRetryPolicy;
+        private long mResponseSizeHint = -1;
+        private long mDeadlineMs;
+        private boolean mCompressBody;
+        private HedgePolicy mHedgePolicy;
+        private ResponseDecoder<T> mResponseDecoder;
+        private Projection mProjection;
+        private boolean mTypeProjection;
+        private T mReuse;
+        private DeltaCache mDeltaCache;
+        private boolean mShouldCache = true;
+        private boolean mDeferrable;
 
         public Builder(Lob client, Type type) {
             mClient = client;
@@ -236,11 +452,186 @@ public class LobRequest<T> {
             return this;
         }
 
+        /**
+         * Tell admission control how large the response is expected to be
+         *
+         * @param bytes Expected response size in bytes
+         */
+        public Builder<T> setResponseSizeHint(long bytes) {
+            mResponseSizeHint = bytes;
+            return this;
+        }
+
+        /**
+         * Give up on the request if it hasn't completed within a time limit. The limit covers time
+         * spent waiting in the queue and every retry, and starts when the request is submitted.
+         *
+         * @param duration Time limit
+         * @param unit Unit of duration
+         */
+        public Builder<T> setDeadline(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("Deadline must be positive");
+            }
+
+            mDeadlineMs = unit.toMillis(duration);
+            return this;
+        }
+
         public Builder<T> setBody(byte[] body) {
+            mBody = body != null ? LobBody.create(null, body) : null;
+            return this;
+        }
+
+        /**
+         * Set a body that is streamed to the connection as it is sent. Use this for uploads too large
+         * to hold in memory.
+         */
+        public Builder<T> setBody(LobBody body) {
             mBody = body;
             return this;
         }
 
+        /**
+         * Send an object, encoded by the client's {@link org.dforsyth.android.lob.encoders.Encoder}.
+         * Encoding happens when the request is sent. Small bodies are buffered and sent with a
+         * Content-Length; larger ones go straight to the connection if the encoder supports it.
+         */
+        public Builder<T> setEncodedBody(Object object) {
+            mBody = LobBody.create(object, mClient.mEncoder);
+            return this;
+        }
+
+        /**
+         * Gzip the request body on the way out. The server must accept a Content-Encoding of gzip.
+         */
+        public Builder<T> setCompressBody(boolean compressBody) {
+            mCompressBody = compressBody;
+            return this;
+        }
+
+        /**
+         * Send a second copy of the request if the first is slow, and take whichever finishes
+         * first. Only idempotent methods can be hedged, and not along with {@link #setReuse} or
+         * {@link #setDeltaCache}. A deadline covers both copies.
+         *
+         * @param hedgePolicy When to hedge. Share one between requests to share latency history.
+         */
+        public Builder<T> setHedgePolicy(HedgePolicy hedgePolicy) {
+            mHedgePolicy = hedgePolicy;
+            return this;
+        }
+
+        /**
+         * Decode the response with a {@link ResponseDecoder} instead of the client's encoder
+         */
+        public Builder<T> setResponseDecoder(ResponseDecoder<T> responseDecoder) {
+            mResponseDecoder = responseDecoder;
+            return this;
+        }
+
+        /**
+         * Decode only part of the response, skipping everything else without building it. Use
+         * {@link #setTypeProjection()} to keep just what the response type has fields for.
+         * Replaces any {@link ResponseDecoder}.
+         */
+        public Builder<T> setProjection(Projection projection) {
+            mProjection = projection;
+            return this;
+        }
+
+        /**
+         * Decode only what the response type has fields for, named the way the client's
+         * {@link GsonEncoder} names them. See {@link Projection#of(Type, com.google.gson.FieldNamingStrategy)}.
+         */
+        public Builder<T> setTypeProjection() {
+            mTypeProjection = true;
+            return this;
+        }
+
+        /**
+         * Decode the response into the result of an earlier request, reusing its objects wherever
+         * the response has the same shape. See {@link MergingDecoder} for what that means for the
+         * earlier result.
+         *
+         * @param previous Result to decode into, or null to decode a new one
+         */
+        public Builder<T> setReuse(T previous) {
+            mReuse = previous;
+            return this;
+        }
+
+        /**
+         * Sync the response incrementally. The request says which version of the resource is
+         * cached, and the server can answer with a full body, a JSON Patch or merge patch against
+         * that version, or 304. Patches are applied to the cached version, and the request always
+         * delivers the whole, current object. Only GETs can be delta synced.
+         *
+         * @param deltaCache Where versions are kept. Share one between requests.
+         */
+        public Builder<T> setDeltaCache(DeltaCache deltaCache) {
+            mDeltaCache = deltaCache;
+            return this;
+        }
+
+        /**
+         * Let the client hold the request until the radio is awake for other traffic, for
+         * background work like analytics and prefetches. See {@link DeferralThrottle}.
+         */
+        public Builder<T> setDeferrable(boolean deferrable) {
+            mDeferrable = deferrable;
+            return this;
+        }
+
+        /**
+         * @return The Gson the client's encoder decodes JSON with, so its adapters apply, or null
+         */
+        private Gson getGson() {
+            GsonEncoder encoder = getGsonEncoder();
+            return encoder != null ? encoder.getGson() : null;
+        }
+
+        private GsonEncoder getGsonEncoder() {
+            Encoder encoder = mClient.getEncoder();
+            while (true) {
+                if (encoder instanceof GsonEncoder) {
+                    return (GsonEncoder) encoder;
+                } else if (encoder instanceof MultiEncoder) {
+                    encoder = ((MultiEncoder) encoder).getJsonEncoder();
+                } else if (encoder instanceof NormalizingEncoder) {
+                    encoder = ((NormalizingEncoder) encoder).getEncoder();
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        private static boolean containsHeader(Map<String, String> headers, String name) {
+            for (String key : headers.keySet()) {
+                if (name.equalsIgnoreCase(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private final static int[] IDEMPOTENT_METHODS = {
+                Method.GET,
+                Method.HEAD,
+                Method.OPTIONS,
+                Method.TRACE,
+                Method.PUT,
+                Method.DELETE
+        };
+        private boolean isIdempotentMethod(int method) {
+            for (int imethod : IDEMPOTENT_METHODS) {
+                if (imethod == method) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         private final static int[] PARAM_METHODS = {
                 Method.POST,
                 Method.PUT,
@@ -264,6 +655,63 @@ public class LobRequest<T> {
                 throw new IllegalArgumentException("Cannot have post params and explicit body");
             }
 
+            if (mHedgePolicy != null && !isIdempotentMethod(mMethod)) {
+                throw new IllegalArgumentException("Cannot hedge a non-idempotent request");
+            }
+
+            // both copies would decode into the same result, or race on the same cached version
+            if (mHedgePolicy != null && (mReuse != null || mDeltaCache != null)) {
+                throw new IllegalArgumentException("Cannot hedge a reused or delta synced request");
+            }
+
+            if (mTypeProjection) {
+                if (mType == null || getGsonEncoder() == null) {
+                    throw new IllegalArgumentException("Projecting to the response type needs a type and a Gson based encoder");
+                }
+                mProjection = Projection.of(mType, getGsonEncoder().getFieldNamingStrategy());
+            }
+
+            if ((mProjection != null || mReuse != null) && mType == null) {
+                throw new IllegalArgumentException("Cannot project or reuse without a type");
+            }
+
+            if (mProjection != null && mReuse != null) {
+                throw new IllegalArgumentException("Cannot project a request and reuse its result");
+            }
+
+            if (mProjection != null || mReuse != null || mDeltaCache != null) {
+                if (getGson() == null) {
+                    throw new IllegalArgumentException("Projected, reused and delta synced requests need a Gson based encoder");
+                }
+
+                // these decode JSON themselves, so don't let a negotiating encoder ask for anything else
+                if (mClient.getEncoder() instanceof NegotiatingEncoder
+                        && !containsHeader(mHeaders, Constants.HEADER_ACCEPT)) {
+                    mHeaders.put(Constants.HEADER_ACCEPT, Constants.MEDIA_TYPE_JSON);
+                }
+            }
+
+            if (mDeltaCache != null) {
+                if (mType == null || mMethod != Method.GET) {
+                    throw new IllegalArgumentException("Only typed GETs can be delta synced");
+                }
+
+                if (mProjection != null || mReuse != null || mResponseDecoder != null) {
+                    throw new IllegalArgumentException("Cannot delta sync a request with its own decoder");
+                }
+
+                // versions live in the delta cache, and volley's cache would answer 304s itself.
+                // conditional headers and the decoder are set up per send, in createRequest.
+                mShouldCache = false;
+            }
+
+            if (mProjection != null) {
+                mResponseDecoder = new ProjectedDecoder<>(getGson(), mType, mProjection);
+            } else if (mReuse != null) {
+                GsonEncoder encoder = getGsonEncoder();
+                mResponseDecoder = new MergingDecoder<>(encoder.getGson(), encoder.getFieldNamingStrategy(), mType, mReuse);
+            }
+
             return new LobRequest<T>(this);
         }
     }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.RetryPolicy;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+
+/**
+ * Wraps the {@link RetryPolicy} of an {@link ObjectRequest} or {@link DownloadRequest} so that its timeouts and retries never
+ * run past the request's deadline, and so that an authentication failure waits for a credential
+ * refresh and replays the request once, without using up one of its retries. A request with an
+ * {@link EndpointPool} moves to another endpoint before retrying a timeout.
+ */
+public class LobRetryPolicy implements RetryPolicy {
+    private final RetryPolicy mDelegate;
+    private final Retryable mRequest;
+
+    private boolean mAuthReplayed;
+
+    public LobRetryPolicy(RetryPolicy delegate, BaseRequest<?> request) {
+        mDelegate = delegate;
+        mRequest = request;
+    }
+
+    public RetryPolicy getDelegate() {
+        return mDelegate;
+    }
+
+    @Override
+    public int getCurrentTimeout() {
+        int timeout = mDelegate.getCurrentTimeout();
+
+        long remaining = mRequest.getRemainingMs();
+        if (remaining < timeout) {
+            // a zero timeout means "forever" to HttpURLConnection
+            return (int) Math.max(1, remaining);
+        }
+
+        return timeout;
+    }
+
+    @Override
+    public int getCurrentRetryCount() {
+        return mDelegate.getCurrentRetryCount();
+    }
+
+    @Override
+    public void retry(VolleyError error) throws VolleyError {
+        if (mRequest.isExpired()) {
+            throw new DeadlineExceededError();
+        }
+
+        AuthRefresher authRefresher = mRequest.getAuthRefresher();
+        if (error instanceof AuthFailureError && authRefresher != null) {
+            if (mAuthReplayed) {
+                throw error;
+            }
+            mAuthReplayed = true;
+
+            try {
+                if (authRefresher.refresh(mRequest.getAuthGeneration(), error, mRequest.getAuthWaitMs())) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw error;
+        }
+
+        if (error instanceof TimeoutError) {
+            mRequest.failover();
+        }
+
+        mDelegate.retry(error);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+import com.android.volley.Request;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A group of requests that are cancelled together, usually because the screen that made them went
+ * away. Pass a scope as the tag of a request to add it. Cancelling a scope only touches the requests
+ * in it, and closes their connections if they are already on the network.
+ */
+public class LobScope {
+    private final Set<Request<?>> mRequests;
+    private boolean mClosed;
+
+    public LobScope() {
+        mRequests = new HashSet<>();
+    }
+
+    /**
+     * Create a scope that is closed when an activity is destroyed
+     *
+     * @param activity Activity that owns the requests in this scope
+     * @return A new {@link LobScope}
+     */
+    public static LobScope forActivity(final Activity activity) {
+        final LobScope scope = new LobScope();
+        final Application application = activity.getApplication();
+
+        application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityDestroyed(Activity destroyed) {
+                if (destroyed == activity) {
+                    application.unregisterActivityLifecycleCallbacks(this);
+                    scope.close();
+                }
+            }
+
+            @Override
+            public void onActivityCreated(Activity a, Bundle savedInstanceState) {}
+
+            @Override
+            public void onActivityStarted(Activity a) {}
+
+            @Override
+            public void onActivityResumed(Activity a) {}
+
+            @Override
+            public void onActivityPaused(Activity a) {}
+
+            @Override
+            public void onActivityStopped(Activity a) {}
+
+            @Override
+            public void onActivitySaveInstanceState(Activity a, Bundle outState) {}
+        });
+
+        return scope;
+    }
+
+    void add(Request<?> request) {
+        synchronized (this) {
+            if (!mClosed) {
+                mRequests.add(request);
+                return;
+            }
+        }
+
+        request.cancel();
+    }
+
+    synchronized void remove(Request<?> request) {
+        mRequests.remove(request);
+    }
+
+    /**
+     * @return The number of unfinished requests in this scope
+     */
+    public synchronized int size() {
+        return mRequests.size();
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Cancel every unfinished request in this scope. Requests added later run as usual.
+     */
+    public void cancel() {
+        List<Request<?>> requests;
+        synchronized (this) {
+            requests = new ArrayList<Request<?>>(mRequests);
+            mRequests.clear();
+        }
+
+        for (Request<?> request : requests) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Cancel every unfinished request in this scope, and any request added to it from now on
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+
+        cancel();
+    }
+}
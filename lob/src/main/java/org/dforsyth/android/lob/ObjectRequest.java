@@ -30,37 +30,50 @@
 
 package org.dforsyth.android.lob;
 
-import android.net.Uri;
 import android.util.Log;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
-import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
 
 import org.dforsyth.android.lob.encoders.DecodeError;
 import org.dforsyth.android.lob.encoders.Encoder;
+import org.dforsyth.android.lob.encoders.NegotiatingEncoder;
+import org.dforsyth.android.lob.util.BandwidthEstimator;
+import org.dforsyth.android.lob.util.Constants;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Decodable {@link com.android.volley.Request }
  */
-public class ObjectRequest<T> extends Request<LobResponse<T>> {
+public class ObjectRequest<T> extends BaseRequest<LobResponse<T>> {
+    // the marker Volley's NetworkDispatcher adds when it takes a request
+    private final static String NETWORK_QUEUE_TAKE = "network-queue-take";
+
     private final Type mType;
-    private final Map<String, String> mHeaders;
     private final Response.Listener<LobResponse<T>> mListener;
     private final Encoder mEncoder;
     private final Map<String, String> mPostParams;
-    private final LobDynamic mDynamic;
     private final byte[] mBody;
-    private String mBodyContentType;
+    private LobBody mLobBody;
+    private boolean mCompressBody;
+    private long mResponseSizeHint = -1;
+    private volatile long mResponseBytes = -1;
+    private volatile long mWireBytes = -1;
+    private ResponseDecoder<T> mResponseDecoder;
+    private boolean mDeferrable;
+    private DeferralThrottle mRideAlong;
 
     /**
      * Make a request and parse an object out of the response body
@@ -86,17 +99,14 @@ public class ObjectRequest<T> extends Request<LobResponse<T>> {
             Response.Listener<LobResponse<T>> listener,
             Response.ErrorListener errorListener) {
 
-        super(method, url, errorListener);
+        super(method, url, dynamic, headers, errorListener);
 
         // TODO: if clazz is null, then we actually dont want a decodable request, we just want a normal request
         mType = type;
-        mHeaders = headers;
         mListener = listener;
         mPostParams = postParams;
         mBody = body;
 
-        mDynamic = dynamic;
-
         mEncoder = encoder;
     }
 
@@ -104,32 +114,38 @@ public class ObjectRequest<T> extends Request<LobResponse<T>> {
 
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
-        Map<String, String> headers = new HashMap<String, String>(mHeaders);
-        if (mDynamic != null) {
-            Map<String, String> dynamicHeaders = mDynamic.getDynamicHeaders();
-            if (dynamicHeaders != null) {
-                headers.putAll(dynamicHeaders);
-            }
+        Map<String, String> headers = buildHeaders();
 
+        if (mEncoder instanceof NegotiatingEncoder && !hasHeader(headers, Constants.HEADER_ACCEPT)) {
+            headers.put(Constants.HEADER_ACCEPT, ((NegotiatingEncoder) mEncoder).getAccept(mType));
         }
 
-        for (String k : headers.keySet()) {
-            Log.d("headers", k + ": " + headers.get(k));
+        if (isCompressed()) {
+            headers.put(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
         }
 
-        // here's a fun way to override something...
-        if (headers.containsKey("Content-Type")) {
-            mBodyContentType = headers.get("Content-Type");
+        for (String k : headers.keySet()) {
+            Log.d("headers", k + ": " + headers.get(k));
         }
 
         return headers.size() > 0 ? headers : super.getHeaders();
     }
 
+    private static boolean hasHeader(Map<String, String> headers, String name) {
+        for (String k : headers.keySet()) {
+            if (k.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Map<String, String> getParams() throws AuthFailureError {
         Map<String, String> params = new HashMap<String, String>(mPostParams);
-        if (mDynamic != null) {
-            Map<String, String> dynamicParams = mDynamic.getDynamicParams();
+        LobDynamic dynamic = getDynamic();
+        if (dynamic != null) {
+            Map<String, String> dynamicParams = dynamic.getDynamicParams();
             if (dynamicParams != null) {
                 params.putAll(dynamicParams);
             }
@@ -138,41 +154,190 @@ public class ObjectRequest<T> extends Request<LobResponse<T>> {
         return params.size() > 0 ? params : super.getParams();
     }
 
+    /**
+     * Decode responses with a {@link ResponseDecoder} instead of the request's encoder and type
+     */
+    public ObjectRequest<T> setResponseDecoder(ResponseDecoder<T> responseDecoder) {
+        mResponseDecoder = responseDecoder;
+        return this;
+    }
+
+    public ResponseDecoder<T> getResponseDecoder() {
+        return mResponseDecoder;
+    }
+
+    /**
+     * Send a body that {@link org.dforsyth.android.lob.stacks.LobStack} can stream to the connection
+     */
+    public ObjectRequest<T> setBody(LobBody body) {
+        mLobBody = body;
+        return this;
+    }
+
+    public LobBody getLobBody() {
+        return mLobBody;
+    }
+
+    /**
+     * Gzip the body on the way out. {@link org.dforsyth.android.lob.stacks.LobStack} compresses a
+     * {@link LobBody} as it streams it; any other stack gets the compressed bytes from
+     * {@link #getBody()}, along with the Content-Encoding header. Form parameters are never
+     * compressed.
+     */
+    public ObjectRequest<T> setCompressBody(boolean compressBody) {
+        mCompressBody = compressBody;
+        return this;
+    }
+
+    public boolean isCompressBody() {
+        return mCompressBody;
+    }
+
+    private boolean isCompressed() {
+        return mCompressBody && (mBody != null || mLobBody != null);
+    }
+
     @Override
     public byte[] getBody() throws AuthFailureError {
-        if (mBody != null) {
-            return mBody;
+        byte[] body = mBody;
+
+        if (body == null && mLobBody != null) {
+            // only stacks that can't stream end up here
+            try {
+                body = mLobBody.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read request body", e);
+            }
+        }
+
+        if (body == null) {
+            return super.getBody();
         }
 
-        return super.getBody();
+        return isCompressed() ? gzip(body) : body;
     }
 
-    @Override
-    public String getUrl() {
-        if (mDynamic != null) {
-            Map<String, String> dynamicQueryParams = mDynamic.getDynamicQueryParams();
-            if (dynamicQueryParams != null) {
-                Uri.Builder builder = Uri.parse(super.getUrl()).buildUpon();
-                for (String key : dynamicQueryParams.keySet()) {
-                    builder.appendQueryParameter(key, dynamicQueryParams.get(key));
-                }
-                return builder.build().toString();
-            }
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            GZIPOutputStream out = new GZIPOutputStream(bytes);
+            out.write(body);
+            out.close();
+        } catch (IOException e) {
+            // nothing here does I/O
+            throw new IllegalStateException("Unable to compress request body", e);
         }
+        return bytes.toByteArray();
+    }
 
-        return super.getUrl();
+    /**
+     * The same request to another base URI is the same resource, so it is cached under the URL
+     * built against the client's first base URI
+     */
+    @Override
+    public String getCacheKey() {
+        return getUnroutedUrl();
     }
 
     @Override
     public String getBodyContentType() {
-        // return super.getBodyContentType();
-        if (mBodyContentType != null) {
-            return mBodyContentType;
+        // an explicit header wins over whatever the body says it is
+        String contentType = getHeaderValue(Constants.HEADER_CONTENT_TYPE);
+
+        if (contentType != null) {
+            return contentType;
+        }
+
+        if (mLobBody != null && mLobBody.getContentType() != null) {
+            return mLobBody.getContentType();
         }
 
         return super.getBodyContentType();
     }
 
+    /**
+     * Set the expected size of the response body, for admission control
+     *
+     * @param bytes Expected size in bytes, or -1 if unknown
+     */
+    public ObjectRequest<T> setResponseSizeHint(long bytes) {
+        mResponseSizeHint = bytes;
+        return this;
+    }
+
+    public long getResponseSizeHint() {
+        return mResponseSizeHint;
+    }
+
+    /**
+     * Let the client hold this request until the radio is awake for something else
+     */
+    public ObjectRequest<T> setDeferrable(boolean deferrable) {
+        mDeferrable = deferrable;
+        return this;
+    }
+
+    public boolean isDeferrable() {
+        return mDeferrable;
+    }
+
+    /**
+     * Flush the throttle's held requests when this one goes out on the network
+     */
+    void setRideAlong(DeferralThrottle throttle) {
+        mRideAlong = throttle;
+    }
+
+    @Override
+    public void addMarker(String tag) {
+        super.addMarker(tag);
+
+        // the network dispatcher has taken us, cache hits never get here
+        if (mRideAlong != null && NETWORK_QUEUE_TAKE.equals(tag)) {
+            mRideAlong.onRadioActive();
+        }
+    }
+
+    /**
+     * @return Size of the response body held in memory, or -1 if no response has been parsed
+     */
+    public long getResponseBytes() {
+        return mResponseBytes;
+    }
+
+    /**
+     * Called by a stack that decompresses responses itself, with the size of the body as it
+     * arrived, or -1 at the start of an attempt
+     */
+    public void setWireBytes(long wireBytes) {
+        mWireBytes = wireBytes;
+    }
+
+    /**
+     * @return Size of the response body as it arrived, compressed, or -1 if the stack didn't say
+     */
+    public long getWireBytes() {
+        return mWireBytes;
+    }
+
+    @Override
+    public ObjectRequest<T> setDeadline(long deadline) {
+        super.setDeadline(deadline);
+        return this;
+    }
+
+    @Override
+    public ObjectRequest<T> setScope(LobScope scope) {
+        super.setScope(scope);
+        return this;
+    }
+
+    @Override
+    public ObjectRequest<T> setEndpointPool(EndpointPool pool) {
+        super.setEndpointPool(pool);
+        return this;
+    }
+
     public Response.Listener<LobResponse<T>> getListener() {
         return mListener;
     }
@@ -182,29 +347,57 @@ public class ObjectRequest<T> extends Request<LobResponse<T>> {
         mListener.onResponse(response);
     }
 
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        // unreachable endpoints are reported as they fail over, server errors are reported here
+        NetworkResponse response = volleyError.networkResponse;
+        if (response != null && response.statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            reportEndpoint(-1);
+        }
+
+        return super.parseNetworkError(volleyError);
+    }
+
     @Override
     protected Response<LobResponse<T>> parseNetworkResponse(NetworkResponse response) {
         // TODO: check status code for errors and send loberrors
 
-        String data;
-        try {
-            data = new String(
-                    response.data,
-                    HttpHeaderParser.parseCharset(response.headers));
-        } catch (UnsupportedEncodingException e) {
-            return Response.error(new ParseError(e));
+        // nobody is waiting for this anymore, don't bother decoding it. cancelled requests aren't
+        // delivered, so the error only matters for expired ones.
+        if (isCanceled()) {
+            return Response.error(new LobError());
         }
 
-        Log.d("ObjectRequest", "url = " + getUrl() + " response = " + data);
+        if (isExpired()) {
+            return Response.error(new DeadlineExceededError());
+        }
 
-        T decoded = null;
-        if (mEncoder != null && mType != null) {
+        long contentLength = -1;
+        String contentLengthHeader = response.headers != null ? response.headers.get("Content-Length") : null;
+        if (contentLengthHeader != null) {
             try {
-                decoded = mEncoder.decode(data, mType);
-            } catch (DecodeError e) {
-                return Response.error(new ParseError(e));
+                contentLength = Long.parseLong(contentLengthHeader);
+            } catch (NumberFormatException e) {
+                // fall back to what we actually buffered
             }
         }
+        mResponseBytes = Math.max(contentLength, response.data != null ? response.data.length : 0);
+
+        // cache hits never touched the network, and would report a 0ms endpoint
+        if (!response.notModified && response.networkTimeMs > 0) {
+            // the network carried the compressed body, when the stack can say how big it was
+            long wireBytes = mWireBytes >= 0 ? mWireBytes : mResponseBytes;
+            BandwidthEstimator.getDefault().addSample(wireBytes, response.networkTimeMs);
+
+            reportEndpoint(response.networkTimeMs);
+        }
+
+        T decoded;
+        try {
+            decoded = decode(response, mResponseDecoder, mEncoder, mType);
+        } catch (DecodeError e) {
+            return Response.error(new ParseError(e));
+        }
 
         LobResponse<T> lobResponse = new LobResponse<>(response, decoded);
 
@@ -213,4 +406,37 @@ public class ObjectRequest<T> extends Request<LobResponse<T>> {
                 HttpHeaderParser.parseCacheHeaders(response)
         );
     }
+
+    /**
+     * Decode a response body with a request's decoder if it has one, otherwise with the encoder
+     *
+     * @return The decoded body, or null if there's no type to decode to
+     */
+    static <T> T decode(NetworkResponse response, ResponseDecoder<T> responseDecoder, Encoder encoder, Type type)
+            throws DecodeError {
+        if (responseDecoder != null) {
+            return responseDecoder.decode(response);
+        }
+
+        if (encoder instanceof NegotiatingEncoder && type != null) {
+            // the encoder picks a format from the Content-Type and reads the bytes directly
+            return ((NegotiatingEncoder) encoder).decode(response, type);
+        }
+
+        String data;
+        try {
+            data = new String(
+                    response.data,
+                    HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            throw new DecodeError(e);
+        }
+
+        Log.d("ObjectRequest", "response = " + data);
+
+        if (encoder != null && type != null) {
+            return encoder.decode(data, type);
+        }
+        return null;
+    }
 }
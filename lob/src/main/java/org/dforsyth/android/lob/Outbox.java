@@ -0,0 +1,479 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.volley.NetworkError;
+import com.android.volley.Request.Method;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A durable queue for mutations. {@link #enqueue} returns once the request is written to a log on
+ * disk; it is then sent in the background, one at a time and in the order enqueued. Requests that
+ * fail for want of a network are retried with exponential backoff, and straight away when
+ * connectivity returns. Server errors are retried the same way, but only a few times, so one
+ * request the server can't handle doesn't hold up the queue forever. Requests still pending when
+ * the process dies are sent the next time an outbox is opened on the same log.
+ *
+ * Every request carries an Idempotency-Key header that stays the same across retries, so a
+ * server that honours it applies a request only once even if a response is lost.
+ *
+ * Open one outbox per log, early, e.g. in Application.onCreate(), so a listener is in place
+ * before replayed requests complete.
+ */
+public class Outbox {
+    private final static String TAG = Outbox.class.getSimpleName();
+
+    public final static String DEFAULT_LOG_NAME = "lob-outbox.log";
+
+    public final static long INITIAL_BACKOFF_MS = 1000;
+    public final static long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    public final static int DEFAULT_MAX_SERVER_ERROR_RETRIES = 5;
+
+    /**
+     * Outcomes of queued requests, called on the main thread
+     */
+    public interface Listener {
+        /**
+         * The server accepted a request
+         */
+        public void onSent(String idempotencyKey, LobResponse<Object> response);
+
+        /**
+         * The server rejected a request, e.g. with a 4xx, kept failing with server errors, or the
+         * request couldn't be written to the log. It won't be retried.
+         */
+        public void onDropped(String idempotencyKey, VolleyError error);
+    }
+
+    private final Context mContext;
+    private final Lob mClient;
+    private final File mFile;
+
+    // the log, and everything below, is only touched on this thread
+    private final ScheduledExecutorService mExecutor;
+    private OutboxLog mLog;
+    private final LinkedList<OutboxLog.Entry> mPending = new LinkedList<>();
+    private boolean mInFlight;
+    private int mAttempts;
+    private int mServerErrors;
+    private ScheduledFuture<?> mRetry;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile int mMaxServerErrorRetries = DEFAULT_MAX_SERVER_ERROR_RETRIES;
+    private volatile Listener mListener;
+    private volatile int mLoggedCount;
+    private volatile boolean mClosed;
+    private BroadcastReceiver mReceiver;
+
+    public Outbox(Context context, Lob client) {
+        this(context, client, new File(context.getFilesDir(), DEFAULT_LOG_NAME));
+    }
+
+    /**
+     * @param file Log to keep requests in. Requests already in it are sent.
+     */
+    public Outbox(Context context, Lob client, File file) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mClient = client;
+        mFile = file;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        // a backoff still waiting when we close must not send
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor = executor;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+
+        registerReceiver();
+    }
+
+    public Outbox setListener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * @param retries How many times to retry a request that fails with a 5xx, 408 or 429 before
+     *                dropping it
+     */
+    public Outbox setMaxServerErrorRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("retries must not be negative");
+        }
+        mMaxServerErrorRetries = retries;
+        return this;
+    }
+
+    /**
+     * @return How many requests haven't been sent yet
+     */
+    public int getPendingCount() {
+        return mLoggedCount;
+    }
+
+    /**
+     * Queue a request to be sent once, durably. Blocks until the request is written and synced to
+     * disk, so call it off the main thread. If it can't be written, the request is reported to
+     * {@link Listener#onDropped} and never sent.
+     *
+     * @param request A POST, PUT, PATCH or DELETE
+     * @return The request's idempotency key
+     */
+    public String enqueue(LobRequest<?> request) {
+        final int method = request.getMethod();
+        if (method != Method.POST && method != Method.PUT && method != Method.PATCH
+                && method != Method.DELETE) {
+            throw new IllegalArgumentException("Only mutations can be queued");
+        }
+
+        // capture the body now, the caller is free to change it once we return
+        final byte[] body;
+        final String contentType;
+        LobBody lobBody = request.getBody();
+        if (lobBody != null) {
+            try {
+                body = lobBody.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to read request body", e);
+            }
+            contentType = lobBody.getContentType();
+        } else {
+            body = null;
+            contentType = null;
+        }
+
+        final String idempotencyKey = UUID.randomUUID().toString();
+        final String url = request.getUri().toString();
+        final Map<String, String> headers = new HashMap<>(request.getHeaders());
+        headers.put(Constants.HEADER_IDEMPOTENCY_KEY, idempotencyKey);
+        final Map<String, String> params = request.getParams() != null
+                ? new HashMap<>(request.getParams())
+                : null;
+
+        Future<?> logged;
+        try {
+            logged = mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (mLog == null) {
+                        throw new IOException("Log " + mFile + " isn't open");
+                    }
+
+                    mPending.add(mLog.append(idempotencyKey, method, url, headers, params, contentType, body));
+                    pump();
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Outbox is closed, dropping " + idempotencyKey);
+            dropped(idempotencyKey, new VolleyError(e));
+            return idempotencyKey;
+        }
+
+        try {
+            logged.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to log " + idempotencyKey, e.getCause());
+            dropped(idempotencyKey, new VolleyError(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // it may still be logged and sent, the caller just didn't wait to find out
+            Log.w(TAG, "Interrupted logging " + idempotencyKey);
+        }
+
+        return idempotencyKey;
+    }
+
+    /**
+     * Stop listening for connectivity changes and sending requests. Pending requests stay in the
+     * log, including one that is on the network: its outcome is ignored and it is sent again, with
+     * the same idempotency key, the next time the log is opened.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mReceiver != null) {
+            mContext.unregisterReceiver(mReceiver);
+            mReceiver = null;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mRetry != null) {
+                    mRetry.cancel(false);
+                    mRetry = null;
+                }
+
+                if (mLog != null) {
+                    try {
+                        mLog.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to close log", e);
+                    }
+                    mLog = null;
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private void registerReceiver() {
+        mReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isInitialStickyBroadcast()
+                        || intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                    return;
+                }
+
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // back online, don't sit out the rest of the backoff
+                        if (mRetry != null) {
+                            mRetry.cancel(false);
+                            mRetry = null;
+                        }
+                        mAttempts = 0;
+                        pump();
+                    }
+                });
+            }
+        };
+        mContext.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    private void open() {
+        try {
+            mLog = new OutboxLog(mFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + mFile, e);
+            return;
+        }
+
+        mPending.addAll(mLog.getPending());
+        pump();
+    }
+
+    /**
+     * Run a task on the log's thread, unless the outbox is closed
+     */
+    private void execute(Runnable task) {
+        if (mClosed) {
+            return;
+        }
+
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed on another thread since we checked
+            Log.d(TAG, "Outbox is closed, ignoring task");
+        }
+    }
+
+    private void pump() {
+        mLoggedCount = mPending.size();
+        if (mClosed || mLog == null || mInFlight || mRetry != null || mPending.isEmpty()) {
+            return;
+        }
+
+        mInFlight = true;
+        send(mPending.getFirst());
+    }
+
+    private void send(final OutboxLog.Entry entry) {
+        ObjectRequest<Object> request = new ObjectRequest<>(
+                entry.method,
+                entry.url,
+                mClient.getEncoder(),
+                mClient.getDynamic(),
+                null,
+                entry.headers,
+                entry.params,
+                null,
+                new Response.Listener<LobResponse<Object>>() {
+                    @Override
+                    public void onResponse(LobResponse<Object> response) {
+                        Listener listener = mListener;
+                        if (listener != null) {
+                            listener.onSent(entry.idempotencyKey, response);
+                        }
+                        done(entry, null);
+                    }
+                },
+                new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        done(entry, error);
+                    }
+                }
+        );
+
+        if (entry.body != null) {
+            request.setBody(LobBody.create(entry.contentType, entry.body));
+        }
+        request.setShouldCache(false);
+
+        LobRequest.prepare(mClient, request, mClient.getRetryPolicy(), 0, null);
+
+        mClient.submitRequest(request);
+    }
+
+    private static boolean isServerError(VolleyError error) {
+        if (error.networkResponse == null) {
+            return false;
+        }
+        int status = error.networkResponse.statusCode;
+        return status >= 500 || status == 408 || status == 429;
+    }
+
+    private static boolean isNetworkError(VolleyError error) {
+        // NoConnectionError is a NetworkError
+        return error.networkResponse == null
+                && (error instanceof NetworkError || error instanceof TimeoutError);
+    }
+
+    private void dropped(final String idempotencyKey, final VolleyError error) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onDropped(idempotencyKey, error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the main thread when a send finishes
+     *
+     * @param error Why it failed, or null if it was sent
+     */
+    private void done(final OutboxLog.Entry entry, final VolleyError error) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mInFlight = false;
+                if (mClosed) {
+                    // still in the log, it goes out again with the same key
+                    return;
+                }
+
+                // network errors are retried for as long as it takes, the server gets a few tries
+                boolean retry = false;
+                if (error != null) {
+                    if (isNetworkError(error)) {
+                        retry = true;
+                    } else if (isServerError(error)) {
+                        retry = mServerErrors++ < mMaxServerErrorRetries;
+                    }
+
+                    if (!retry) {
+                        dropped(entry.idempotencyKey, error);
+                    }
+                }
+
+                if (retry) {
+                    long delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(mAttempts, 16));
+                    mAttempts++;
+                    Log.d(TAG, "Retrying " + entry.idempotencyKey + " in " + delay + "ms");
+
+                    try {
+                        mRetry = mExecutor.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                mRetry = null;
+                                pump();
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // closed while we were deciding
+                        Log.d(TAG, "Outbox is closed, not retrying " + entry.idempotencyKey);
+                    }
+                    return;
+                }
+
+                mAttempts = 0;
+                mServerErrors = 0;
+                mPending.remove(entry);
+                if (mLog != null) {
+                    try {
+                        mLog.ack(entry.seq);
+                    } catch (IOException e) {
+                        // it will be sent again after a restart, the idempotency key covers that
+                        Log.e(TAG, "Failed to acknowledge " + entry.idempotencyKey, e);
+                    }
+                }
+                pump();
+            }
+        });
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The write-ahead log behind {@link Outbox}. Each queued request is an ADD record, and each one
+ * that is done is an ACK record, so the requests still pending are the ADDs without an ACK. Every
+ * record is synced to disk before the call that wrote it returns.
+ *
+ * Records are framed as [length][crc32][payload]. A record torn by process death fails its
+ * checksum and is cut off, along with anything after it. Once enough requests are acknowledged,
+ * the log is rewritten with only the pending ones.
+ *
+ * Not thread safe.
+ */
+class OutboxLog {
+    final static int COMPACT_ACKS = 64;
+
+    private final static byte RECORD_ADD = 1;
+    private final static byte RECORD_ACK = 2;
+
+    /**
+     * A queued request
+     */
+    static class Entry {
+        final long seq;
+        final String idempotencyKey;
+        final int method;
+        final String url;
+        final Map<String, String> headers;
+        final Map<String, String> params;
+        final String contentType;
+        final byte[] body;
+
+        Entry(long seq, String idempotencyKey, int method, String url, Map<String, String> headers,
+              Map<String, String> params, String contentType, byte[] body) {
+            this.seq = seq;
+            this.idempotencyKey = idempotencyKey;
+            this.method = method;
+            this.url = url;
+            this.headers = headers;
+            this.params = params;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    private final File mFile;
+    private final Map<Long, Entry> mPending = new LinkedHashMap<>();
+
+    private FileOutputStream mOut;
+    private long mNextSeq = 1;
+    private int mAcks;
+
+    OutboxLog(File file) throws IOException {
+        mFile = file;
+        load();
+        mOut = new FileOutputStream(mFile, true);
+    }
+
+    private void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+        try {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length <= 0 || length > mFile.length()) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc(payload) != crc) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                replay(payload);
+                valid += 8 + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (valid < mFile.length()) {
+            // drop the torn tail so new records don't land after garbage
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(valid);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    private void replay(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long seq = in.readLong();
+        mNextSeq = Math.max(mNextSeq, seq + 1);
+
+        if (type == RECORD_ACK) {
+            mPending.remove(seq);
+            mAcks++;
+            return;
+        }
+
+        String idempotencyKey = readString(in);
+        int method = in.readInt();
+        String url = readString(in);
+        Map<String, String> headers = readMap(in);
+        Map<String, String> params = readMap(in);
+        String contentType = readString(in);
+        byte[] body = null;
+        int bodyLength = in.readInt();
+        if (bodyLength >= 0) {
+            body = new byte[bodyLength];
+            in.readFully(body);
+        }
+
+        mPending.put(seq, new Entry(seq, idempotencyKey, method, url, headers, params, contentType, body));
+    }
+
+    /**
+     * @return Requests that haven't been acknowledged, oldest first
+     */
+    List<Entry> getPending() {
+        return new ArrayList<>(mPending.values());
+    }
+
+    int size() {
+        return mPending.size();
+    }
+
+    Entry append(String idempotencyKey, int method, String url, Map<String, String> headers,
+                 Map<String, String> params, String contentType, byte[] body) throws IOException {
+        Entry entry = new Entry(mNextSeq++, idempotencyKey, method, url, headers, params, contentType, body);
+        write(mOut, addRecord(entry));
+        mPending.put(entry.seq, entry);
+        return entry;
+    }
+
+    void ack(long seq) throws IOException {
+        if (mPending.remove(seq) == null) {
+            return;
+        }
+
+        if (mPending.isEmpty()) {
+            // nothing left to keep, start an empty log
+            mOut.close();
+            mOut = new FileOutputStream(mFile, false);
+            mOut.getFD().sync();
+            mAcks = 0;
+            return;
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(9);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(RECORD_ACK);
+        out.writeLong(seq);
+        write(mOut, record.toByteArray());
+
+        if (++mAcks >= COMPACT_ACKS) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the log with only the pending requests
+     */
+    void compact() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp, false);
+        try {
+            for (Entry entry : mPending.values()) {
+                writeFrame(out, addRecord(entry));
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        mOut.close();
+        if (!tmp.renameTo(mFile)) {
+            mOut = new FileOutputStream(mFile, true);
+            throw new IOException("Failed to replace " + mFile);
+        }
+        mOut = new FileOutputStream(mFile, true);
+        mAcks = 0;
+    }
+
+    void close() throws IOException {
+        mOut.close();
+    }
+
+    private static byte[] addRecord(Entry entry) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(
+                128 + (entry.body != null ? entry.body.length : 0));
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(RECORD_ADD);
+        out.writeLong(entry.seq);
+        writeString(out, entry.idempotencyKey);
+        out.writeInt(entry.method);
+        writeString(out, entry.url);
+        writeMap(out, entry.headers);
+        writeMap(out, entry.params);
+        writeString(out, entry.contentType);
+        if (entry.body != null) {
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+        } else {
+            out.writeInt(-1);
+        }
+        return record.toByteArray();
+    }
+
+    private static void write(FileOutputStream out, byte[] payload) throws IOException {
+        writeFrame(out, payload);
+        out.getFD().sync();
+    }
+
+    private static void writeFrame(FileOutputStream out, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(8 + payload.length);
+        DataOutputStream data = new DataOutputStream(frame);
+        data.writeInt(payload.length);
+        data.writeInt(crc(payload));
+        data.write(payload);
+        // one write, so a crash can only tear the last record
+        out.write(frame.toByteArray());
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map != null ? map.size() : 0);
+        if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> map = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import org.dforsyth.android.lob.queues.LobQueue;
+import org.dforsyth.android.lob.util.DnsCache;
+
+/**
+ * Gets a client's first request off to a fast start: resolves the base URI's host into
+ * {@link DnsCache#getDefault()} and sends a HEAD request to the base URI through the client's queue,
+ * which leaves a connection, TLS session included, in the stack's pool.
+ *
+ * While started it also watches for network changes. Addresses resolved on the old network are
+ * evicted from {@link DnsCache#getDefault()} either way, and the warm-up is repeated if asked for.
+ */
+class Warmer {
+    private final static String TAG = Warmer.class.getSimpleName();
+
+    private final static int WARMUP_TIMEOUT_MS = 10000;
+
+    private final Context mContext;
+    private final LobQueue mQueue;
+    private final Uri mBaseUri;
+
+    private BroadcastReceiver mReceiver;
+    private boolean mRewarm;
+
+    /**
+     * A HEAD request whose only job is to open a connection. The response, even an error, is
+     * ignored.
+     */
+    private static class WarmupRequest extends Request<Void> {
+        WarmupRequest(String url) {
+            super(Method.HEAD, url, null);
+            setShouldCache(false);
+            setRetryPolicy(new DefaultRetryPolicy(WARMUP_TIMEOUT_MS, 0, 1));
+        }
+
+        @Override
+        public Priority getPriority() {
+            return Priority.LOW;
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(null, null);
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {
+        }
+    }
+
+    Warmer(Context context, LobQueue queue, Uri baseUri) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mQueue = queue;
+        mBaseUri = baseUri;
+    }
+
+    /**
+     * Start watching for network changes
+     *
+     * @param rewarm Warm up now and after every network change, not just evict stale addresses
+     */
+    void start(boolean rewarm) {
+        mRewarm = rewarm;
+        if (rewarm) {
+            warm();
+        }
+
+        if (mReceiver != null) {
+            return;
+        }
+
+        mReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // registering delivers the current state, which we've just warmed for
+                if (isInitialStickyBroadcast()) {
+                    return;
+                }
+
+                if (intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                    return;
+                }
+
+                DnsCache.getDefault().evictAll();
+                if (mRewarm) {
+                    warm();
+                }
+            }
+        };
+        mContext.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Stop watching for network changes
+     */
+    void close() {
+        if (mReceiver != null) {
+            mContext.unregisterReceiver(mReceiver);
+            mReceiver = null;
+        }
+    }
+
+    /**
+     * Resolve the base host and open a connection to it in the background
+     */
+    void warm() {
+        final String host = mBaseUri.getHost();
+        if (host == null) {
+            Log.d(TAG, "base uri has no host: " + mBaseUri);
+            return;
+        }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!DnsCache.getDefault().prefetch(host)) {
+                    Log.d(TAG, "could not resolve " + host);
+                    return;
+                }
+
+                mQueue.submitRequest(new WarmupRequest(mBaseUri.toString()));
+            }
+        });
+    }
+}
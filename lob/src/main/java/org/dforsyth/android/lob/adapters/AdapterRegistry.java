@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.adapters;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands Gson the adapters lob-compiler generated for {@link LobModel} classes, and any adapters
+ * registered by hand. Types it has no adapter for fall through to Gson's reflective adapters.
+ *
+ * <pre>
+ * new GsonEncoder(new AdapterRegistry())
+ * </pre>
+ */
+public class AdapterRegistry implements TypeAdapterFactory {
+    private final static String TAG = AdapterRegistry.class.getSimpleName();
+
+    /**
+     * Appended to a model's binary name to get its generated adapter's name
+     */
+    public final static String ADAPTER_SUFFIX = "$$LobAdapter";
+
+    private final Map<Class<?>, TypeAdapter<?>> mAdapters = new HashMap<>();
+
+    // null when a model has no generated adapter, so we only look once
+    private final Map<Class<?>, Constructor<?>> mConstructors = new HashMap<>();
+
+    /**
+     * Use an adapter for a type, in place of a generated or reflective one
+     */
+    public synchronized <T> AdapterRegistry register(Class<T> type, TypeAdapter<T> adapter) {
+        mAdapters.put(type, adapter);
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> rawType = type.getRawType();
+
+        synchronized (this) {
+            TypeAdapter<?> adapter = mAdapters.get(rawType);
+            if (adapter != null) {
+                return (TypeAdapter<T>) adapter;
+            }
+        }
+
+        // generated adapters are for the raw class only
+        if (type.getType() != rawType || !rawType.isAnnotationPresent(LobModel.class)) {
+            return null;
+        }
+
+        Constructor<?> constructor = findConstructor(rawType);
+        if (constructor == null) {
+            return null;
+        }
+
+        try {
+            return (TypeAdapter<T>) constructor.newInstance(gson);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to create adapter for " + rawType.getName(), e);
+        }
+    }
+
+    private synchronized Constructor<?> findConstructor(Class<?> type) {
+        if (mConstructors.containsKey(type)) {
+            return mConstructors.get(type);
+        }
+
+        Constructor<?> constructor = null;
+        try {
+            Class<?> adapterClass = Class.forName(type.getName() + ADAPTER_SUFFIX, true, type.getClassLoader());
+            constructor = adapterClass.getDeclaredConstructor(Gson.class);
+            constructor.setAccessible(true);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            Log.w(TAG, "No generated adapter for " + type.getName() + ", is lob-compiler configured?");
+        }
+
+        mConstructors.put(type, constructor);
+        return constructor;
+    }
+}
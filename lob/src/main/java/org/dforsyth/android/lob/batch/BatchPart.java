@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.batch;
+
+import com.android.volley.Request.Method;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One request inside a batch, as a {@link BatchFormat} writes it
+ */
+public class BatchPart {
+    private final int mMethod;
+    private final String mPath;
+    private final Map<String, String> mHeaders;
+    private final String mContentType;
+    private final byte[] mBody;
+
+    public BatchPart(int method, String path, Map<String, String> headers, String contentType, byte[] body) {
+        mMethod = method;
+        mPath = path;
+        mHeaders = headers != null ? headers : Collections.<String, String>emptyMap();
+        mContentType = contentType;
+        mBody = body;
+    }
+
+    public int getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * @return The method as it goes on the wire, e.g. "GET"
+     */
+    public String getMethodName() {
+        switch (mMethod) {
+            case Method.GET:
+                return "GET";
+            case Method.POST:
+                return "POST";
+            case Method.PUT:
+                return "PUT";
+            case Method.DELETE:
+                return "DELETE";
+            case Method.HEAD:
+                return "HEAD";
+            case Method.OPTIONS:
+                return "OPTIONS";
+            case Method.TRACE:
+                return "TRACE";
+            case Method.PATCH:
+                return "PATCH";
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    /**
+     * @return Path and query of the request, relative to the host
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return Headers the request sets on top of the batch request's own
+     */
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return The request body, or null if there isn't one
+     */
+    public byte[] getBody() {
+        return mBody;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.batch;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobRequest;
+
+/**
+ * Collects requests made within a short window and sends them as one {@link LobBatch}. A window
+ * with a single request sends it on its own. Must be used from the main thread.
+ */
+public class Batcher {
+    public final static long DEFAULT_WINDOW_MS = 10;
+    public final static int DEFAULT_MAX_BATCH_SIZE = 20;
+
+    private final Lob mClient;
+    private final String mPath;
+    private final BatchFormat mFormat;
+    private final long mWindowMs;
+    private final int mMaxBatchSize;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private LobBatch mBatch;
+    private LobRequest<?> mFirstRequest;
+    private LobRequest.Callbacks<?> mFirstCallbacks;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public Batcher(Lob client, String path) {
+        this(client, path, new JsonBatchFormat(), DEFAULT_WINDOW_MS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param client Client to send through
+     * @param path Path of the batch endpoint, relative to the client's base URI
+     * @param format Wire format the batch endpoint speaks
+     * @param windowMs How long to wait for more requests after the first
+     * @param maxBatchSize Send immediately once this many requests are waiting
+     */
+    public Batcher(Lob client, String path, BatchFormat format, long windowMs, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize < 1");
+        }
+
+        mClient = client;
+        mPath = path;
+        mFormat = format;
+        mWindowMs = windowMs;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Send a request with the next batch, or right away if {@link LobBatch#canBatch} says it can't
+     * be batched
+     */
+    public <T> void add(LobRequest<T> request, LobRequest.Callbacks<T> callbacks) {
+        if (!LobBatch.canBatch(request)) {
+            request.requestAsync(callbacks);
+            return;
+        }
+
+        if (mBatch == null) {
+            mBatch = new LobBatch(mClient, mPath, mFormat);
+            mFirstRequest = request;
+            mFirstCallbacks = callbacks;
+            mHandler.postDelayed(mFlush, mWindowMs);
+        }
+
+        mBatch.add(request, callbacks);
+
+        if (mBatch.size() >= mMaxBatchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Send whatever is waiting now
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlush);
+
+        LobBatch batch = mBatch;
+        if (batch == null) {
+            return;
+        }
+        mBatch = null;
+
+        if (batch.size() == 1) {
+            sendAlone(mFirstRequest, mFirstCallbacks);
+        } else {
+            batch.submit();
+        }
+
+        mFirstRequest = null;
+        mFirstCallbacks = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void sendAlone(LobRequest<T> request, LobRequest.Callbacks<?> callbacks) {
+        request.requestAsync((LobRequest.Callbacks<T>) callbacks);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.batch;
+
+import android.util.Base64;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import org.dforsyth.android.lob.encoders.DecodeError;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The default {@link BatchFormat}. Requests go out as
+ *
+ * <pre>
+ * {"requests": [{"method": "GET", "path": "/users/1", "headers": {...}, "body": "..."}, ...]}
+ * </pre>
+ *
+ * and come back as
+ *
+ * <pre>
+ * {"responses": [{"status": 200, "headers": {...}, "body": {...}}, ...]}
+ * </pre>
+ *
+ * with each response body embedded as a JSON value. Text and JSON request bodies are sent as
+ * strings. Any other body, or one without a Content-Type, is sent base64 encoded and marked with
+ * {@code "bodyEncoding": "base64"}; a response part marked the same way is decoded back to bytes.
+ */
+public class JsonBatchFormat implements BatchFormat {
+    public final static String BODY_ENCODING_BASE64 = "base64";
+
+    private final static String CHARSET_PARAM = "charset=";
+
+    @Override
+    public String getContentType() {
+        return Constants.CONTENT_TYPE_JSON;
+    }
+
+    @Override
+    public void encode(List<BatchPart> parts, OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+
+        writer.beginObject();
+        writer.name("requests");
+        writer.beginArray();
+        for (BatchPart part : parts) {
+            writer.beginObject();
+            writer.name("method").value(part.getMethodName());
+            writer.name("path").value(part.getPath());
+
+            if (!part.getHeaders().isEmpty() || part.getContentType() != null) {
+                writer.name("headers");
+                writer.beginObject();
+                for (Map.Entry<String, String> header : part.getHeaders().entrySet()) {
+                    writer.name(header.getKey()).value(header.getValue());
+                }
+                if (part.getContentType() != null) {
+                    writer.name(Constants.HEADER_CONTENT_TYPE).value(part.getContentType());
+                }
+                writer.endObject();
+            }
+
+            if (part.getBody() != null) {
+                if (isUtf8Text(part.getContentType())) {
+                    writer.name("body").value(new String(part.getBody(), "UTF-8"));
+                } else {
+                    writer.name("bodyEncoding").value(BODY_ENCODING_BASE64);
+                    writer.name("body").value(Base64.encodeToString(part.getBody(), Base64.NO_WRAP));
+                }
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+
+        writer.flush();
+    }
+
+    /**
+     * @return True if a body of this type can go into a JSON string as it is
+     */
+    static boolean isUtf8Text(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+
+        String[] params = contentType.toLowerCase(Locale.US).split(";");
+        String mediaType = params[0].trim();
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.startsWith(CHARSET_PARAM) && !"utf-8".equals(param.substring(CHARSET_PARAM.length()).replace("\"", ""))) {
+                return false;
+            }
+        }
+
+        return mediaType.startsWith("text/")
+                || mediaType.equals(Constants.MEDIA_TYPE_JSON)
+                || mediaType.endsWith("+json")
+                || mediaType.equals("application/x-www-form-urlencoded");
+    }
+
+    @Override
+    public List<NetworkResponse> decode(NetworkResponse response) throws DecodeError {
+        String data;
+        try {
+            data = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            throw new DecodeError(e);
+        }
+
+        try {
+            JsonArray responses = new JsonParser().parse(data)
+                    .getAsJsonObject()
+                    .getAsJsonArray("responses");
+
+            List<NetworkResponse> parts = new ArrayList<>(responses.size());
+            for (JsonElement element : responses) {
+                parts.add(decodePart(element.getAsJsonObject(), response.networkTimeMs));
+            }
+            return parts;
+        } catch (JsonParseException | IllegalStateException | IllegalArgumentException | ClassCastException
+                | NullPointerException | UnsupportedEncodingException e) {
+            throw new DecodeError(e, data);
+        }
+    }
+
+    private static NetworkResponse decodePart(JsonObject part, long networkTimeMs) throws UnsupportedEncodingException {
+        Map<String, String> headers = new HashMap<>();
+        JsonObject headerObject = part.getAsJsonObject("headers");
+        if (headerObject != null) {
+            for (Map.Entry<String, JsonElement> header : headerObject.entrySet()) {
+                headers.put(header.getKey(), header.getValue().getAsString());
+            }
+        }
+
+        JsonElement body = part.get("body");
+        JsonElement bodyEncoding = part.get("bodyEncoding");
+        byte[] bodyBytes = new byte[0];
+        if (body != null && bodyEncoding != null && BODY_ENCODING_BASE64.equals(bodyEncoding.getAsString())) {
+            // the part's own Content-Type, if any, still describes it
+            bodyBytes = Base64.decode(body.getAsString(), Base64.DEFAULT);
+        } else if (body != null && !body.isJsonNull()) {
+            // whatever the part was, it is now UTF-8 JSON
+            bodyBytes = body.toString().getBytes("UTF-8");
+            headers.put(Constants.HEADER_CONTENT_TYPE, Constants.CONTENT_TYPE_JSON);
+        }
+
+        return new NetworkResponse(
+                part.get("status").getAsInt(),
+                bodyBytes,
+                headers,
+                false,
+                networkTimeMs
+        );
+    }
+}
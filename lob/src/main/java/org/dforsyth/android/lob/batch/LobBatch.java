@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.batch;
+
+import android.net.Uri;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request.Method;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobBody;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.LobResponse;
+import org.dforsyth.android.lob.ResponseDecoder;
+import org.dforsyth.android.lob.encoders.DecodeError;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends several {@link LobRequest}s to a batch endpoint in one round trip. Each request's response
+ * is decoded into its own type and delivered through its own callbacks, as if it had been sent
+ * alone. If the batch request itself fails, every request in it fails with the same error.
+ *
+ * <pre>
+ * new LobBatch(client, "/batch")
+ *         .add(userRequest, userCallbacks)
+ *         .add(feedRequest, feedCallbacks)
+ *         .submit(tag);
+ * </pre>
+ */
+public class LobBatch {
+    private final Lob mClient;
+    private final String mPath;
+    private final BatchFormat mFormat;
+    private final List<Entry<?>> mEntries = new ArrayList<>();
+
+    /**
+     * A batched request, its callbacks, and what came back for it
+     */
+    private static class Entry<T> {
+        final LobRequest<T> mRequest;
+        final LobRequest.Callbacks<T> mCallbacks;
+
+        NetworkResponse mResponse;
+        T mDecoded;
+        DecodeError mError;
+
+        Entry(LobRequest<T> request, LobRequest.Callbacks<T> callbacks) {
+            mRequest = request;
+            mCallbacks = callbacks;
+        }
+
+        void decode(NetworkResponse response) {
+            mResponse = response;
+            if (!isSuccess(response)) {
+                return;
+            }
+
+            try {
+                mDecoded = mRequest.decode(response);
+            } catch (DecodeError e) {
+                mError = e;
+            }
+        }
+
+        void deliver() {
+            if (mError != null) {
+                mCallbacks.onFailure(new ParseError(mError));
+            } else if (isSuccess(mResponse)) {
+                mCallbacks.onSuccess(new LobResponse<>(mResponse, mDecoded));
+            } else if (mResponse.statusCode == HttpURLConnection.HTTP_UNAUTHORIZED
+                    || mResponse.statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                mCallbacks.onFailure(new AuthFailureError(mResponse));
+            } else {
+                mCallbacks.onFailure(new ServerError(mResponse));
+            }
+        }
+
+        private static boolean isSuccess(NetworkResponse response) {
+            return response.statusCode >= 200 && response.statusCode < 300;
+        }
+    }
+
+    /**
+     * @param client Client to send through
+     * @param path Path of the batch endpoint, relative to the client's base URI
+     */
+    public LobBatch(Lob client, String path) {
+        this(client, path, new JsonBatchFormat());
+    }
+
+    /**
+     * @param client Client to send through
+     * @param path Path of the batch endpoint, relative to the client's base URI
+     * @param format Wire format the batch endpoint speaks
+     */
+    public LobBatch(Lob client, String path, BatchFormat format) {
+        mClient = client;
+        mPath = path;
+        mFormat = format;
+    }
+
+    /**
+     * Add a request to the batch
+     *
+     * @param request Request to send. See {@link #canBatch(LobRequest)} for what can't be batched.
+     * @param callbacks Where its response is delivered
+     */
+    public <T> LobBatch add(LobRequest<T> request, LobRequest.Callbacks<T> callbacks) {
+        String reason = whyNotBatchable(request);
+        if (reason != null) {
+            throw new IllegalArgumentException("Cannot batch a request " + reason);
+        }
+
+        mEntries.add(new Entry<>(request, callbacks));
+        return this;
+    }
+
+    /**
+     * Parts of a batch are decoded the way they would be alone, but they are sent, retried and
+     * timed as part of the batch request. So a request with form parameters, a deadline, its own
+     * retry policy, a hedge policy, deferral or delta sync can't be batched; send it alone.
+     *
+     * @return Whether a request can be added to a batch
+     */
+    public static boolean canBatch(LobRequest<?> request) {
+        return whyNotBatchable(request) == null;
+    }
+
+    private static String whyNotBatchable(LobRequest<?> request) {
+        if (request.getParams() != null && !request.getParams().isEmpty()) {
+            return "with form parameters, use a body instead";
+        }
+        if (request.getDeadlineMs() > 0) {
+            return "with a deadline";
+        }
+        if (request.getRetryPolicy() != request.getClient().getRetryPolicy()) {
+            return "with its own retry policy";
+        }
+        if (request.getHedgePolicy() != null) {
+            return "with a hedge policy";
+        }
+        if (request.isDeferrable()) {
+            return "that is deferrable";
+        }
+        if (request.getDeltaCache() != null) {
+            return "that is delta synced";
+        }
+        return null;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void submit() {
+        submit(null);
+    }
+
+    /**
+     * Send the batch
+     *
+     * @param tag Tag for the batch request, may be a {@link org.dforsyth.android.lob.LobScope}
+     */
+    public void submit(Object tag) {
+        final List<Entry<?>> entries = new ArrayList<>(mEntries);
+
+        final List<BatchPart> parts = new ArrayList<>(entries.size());
+        for (Entry<?> entry : entries) {
+            parts.add(toPart(entry.mRequest));
+        }
+
+        LobRequest<List<Entry<?>>> batchRequest = new LobRequest.Builder<List<Entry<?>>>(mClient)
+                .setMethod(Method.POST)
+                .addPath(mPath)
+                .setBody(LobBody.create(mFormat.getContentType(), -1, new LobBody.BodyWriter() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        mFormat.encode(parts, out);
+                    }
+                }))
+                .setResponseDecoder(new ResponseDecoder<List<Entry<?>>>() {
+                    @Override
+                    public List<Entry<?>> decode(NetworkResponse response) throws DecodeError {
+                        List<NetworkResponse> responses = mFormat.decode(response);
+                        if (responses.size() != entries.size()) {
+                            throw new DecodeError(new IllegalStateException(
+                                    "Expected " + entries.size() + " responses, got " + responses.size()));
+                        }
+
+                        // decode every part here, off the main thread
+                        for (int i = 0; i < entries.size(); i++) {
+                            entries.get(i).decode(responses.get(i));
+                        }
+                        return entries;
+                    }
+                })
+                .build();
+
+        batchRequest.requestAsync(tag, new LobRequest.Callbacks<List<Entry<?>>>() {
+            @Override
+            public void onSuccess(LobResponse<List<Entry<?>>> response) {
+                for (Entry<?> entry : response.getDecoded()) {
+                    entry.deliver();
+                }
+            }
+
+            @Override
+            public void onFailure(VolleyError error) {
+                for (Entry<?> entry : entries) {
+                    entry.mCallbacks.onFailure(error);
+                }
+            }
+        });
+    }
+
+    private BatchPart toPart(LobRequest<?> request) {
+        Uri uri = request.getUri();
+        String path = uri.getEncodedPath();
+        if (uri.getEncodedQuery() != null) {
+            path += "?" + uri.getEncodedQuery();
+        }
+
+        // the batch request already carries the client's headers
+        Map<String, String> headers = new HashMap<>();
+        Map<String, String> clientHeaders = mClient.getHeaders();
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (!header.getValue().equals(clientHeaders.get(header.getKey()))) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+
+        String contentType = null;
+        byte[] body = null;
+        LobBody lobBody = request.getBody();
+        if (lobBody != null) {
+            contentType = headers.remove(Constants.HEADER_CONTENT_TYPE);
+            if (contentType == null) {
+                contentType = lobBody.getContentType();
+            }
+
+            try {
+                body = lobBody.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read request body", e);
+            }
+        }
+
+        return new BatchPart(request.getMethod(), path, headers, contentType, body);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.delta;
+
+import android.util.LruCache;
+
+import com.google.gson.JsonElement;
+
+/**
+ * The last version of each delta synced resource, kept as a JSON tree that patches can be applied
+ * to. Held in memory; share one between requests for the same resources.
+ */
+public class DeltaCache {
+    public final static int DEFAULT_MAX_ENTRIES = 32;
+
+    /**
+     * A cached version of a resource
+     */
+    public static class Entry {
+        public final String etag;
+        public final JsonElement document;
+
+        public Entry(String etag, JsonElement document) {
+            this.etag = etag;
+            this.document = document;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries;
+
+    public DeltaCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries How many resources to keep
+     */
+    public DeltaCache(int maxEntries) {
+        mEntries = new LruCache<>(maxEntries);
+    }
+
+    public Entry get(String key) {
+        return mEntries.get(key);
+    }
+
+    public void put(String key, Entry entry) {
+        mEntries.put(key, entry);
+    }
+
+    public void remove(String key) {
+        mEntries.remove(key);
+    }
+
+    public void clear() {
+        mEntries.evictAll();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.delta;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import org.dforsyth.android.lob.ResponseDecoder;
+import org.dforsyth.android.lob.encoders.DecodeError;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+/**
+ * Decodes delta synced responses, using RFC 3229 delta encoding:
+ * <ul>
+ * <li>200: a full body, which replaces the cached version</li>
+ * <li>226 IM Used: a JSON Patch or JSON Merge Patch against the cached version</li>
+ * <li>304 Not Modified: the cached version is current</li>
+ * </ul>
+ * Whichever arrives, the request delivers the whole, current object. Patches and 304s only apply to
+ * the version the request was sent with (and the Delta-Base header, if the server sends one). If the
+ * cached version has moved on, decoding fails with a {@link PatchError} cause and the version is
+ * dropped, so a retry fetches the full body.
+ *
+ * @param <T> Decoded type
+ */
+public class DeltaDecoder<T> implements ResponseDecoder<T> {
+    public final static String IM_JSON_PATCH = "json-patch";
+    public final static String IM_MERGE_PATCH = "merge-patch";
+
+    /**
+     * Value of A-IM. Delta synced requests accept either kind of patch.
+     */
+    public final static String ACCEPTED_IM = IM_JSON_PATCH + ", " + IM_MERGE_PATCH;
+
+    public final static String CONTENT_TYPE_JSON_PATCH = "application/json-patch+json";
+    public final static String CONTENT_TYPE_MERGE_PATCH = "application/merge-patch+json";
+
+    public final static int SC_IM_USED = 226;
+
+    private final Gson mGson;
+    private final Type mType;
+    private final DeltaCache mCache;
+    private final String mKey;
+    private final String mBaseEtag;
+
+    /**
+     * @param key Cache key of the resource, usually its URL
+     * @param baseEtag ETag sent in If-None-Match, the version a patch or 304 refers to. May be null.
+     */
+    public DeltaDecoder(Gson gson, Type type, DeltaCache cache, String key, String baseEtag) {
+        mGson = gson;
+        mType = type;
+        mCache = cache;
+        mKey = key;
+        mBaseEtag = baseEtag;
+    }
+
+    @Override
+    public T decode(NetworkResponse response) throws DecodeError {
+        DeltaCache.Entry cached = mCache.get(mKey);
+
+        try {
+            JsonElement document;
+            if (response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (cached == null || !cached.etag.equals(mBaseEtag)) {
+                    throw new PatchError("Not modified, but " + mBaseEtag + " is no longer cached");
+                }
+                document = cached.document;
+            } else {
+                JsonElement body = new JsonParser().parse(new String(
+                        response.data, HttpHeaderParser.parseCharset(response.headers)));
+
+                if (response.statusCode == SC_IM_USED) {
+                    String base = header(response, Constants.HEADER_DELTA_BASE);
+                    if (mBaseEtag == null || (base != null && !base.equals(mBaseEtag))) {
+                        throw new PatchError("Received a patch against " + base + ", but asked for " + mBaseEtag);
+                    }
+                    // another sync may have replaced the cached version since this request was sent
+                    if (cached == null || !cached.etag.equals(mBaseEtag)) {
+                        throw new PatchError("Received a patch against " + mBaseEtag + ", but it is no longer cached");
+                    }
+                    document = patch(cached.document, body, response);
+                } else {
+                    document = body;
+                }
+
+                String etag = header(response, Constants.HEADER_ETAG);
+                if (etag != null) {
+                    mCache.put(mKey, new DeltaCache.Entry(etag, document));
+                } else {
+                    mCache.remove(mKey);
+                }
+            }
+
+            return mGson.fromJson(document, mType);
+        } catch (PatchError e) {
+            // start over with a full body next time
+            mCache.remove(mKey);
+            throw new DecodeError(e);
+        } catch (JsonParseException | UnsupportedEncodingException e) {
+            throw new DecodeError(e);
+        }
+    }
+
+    private static JsonElement patch(JsonElement document, JsonElement patch, NetworkResponse response)
+            throws PatchError {
+        String im = header(response, Constants.HEADER_IM);
+        String contentType = header(response, Constants.HEADER_CONTENT_TYPE);
+
+        if (matches(im, IM_JSON_PATCH) || matches(contentType, CONTENT_TYPE_JSON_PATCH)) {
+            return JsonPatch.apply(document, patch);
+        }
+
+        if (matches(im, IM_MERGE_PATCH) || matches(contentType, CONTENT_TYPE_MERGE_PATCH)) {
+            return JsonPatch.merge(document, patch);
+        }
+
+        throw new PatchError("Unsupported instance manipulation " + im);
+    }
+
+    private static boolean matches(String value, String expected) {
+        return value != null && value.toLowerCase(Locale.US).contains(expected);
+    }
+
+    private static String header(NetworkResponse response, String name) {
+        return response.headers != null ? response.headers.get(name) : null;
+    }
+}
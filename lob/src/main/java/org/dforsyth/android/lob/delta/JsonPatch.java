@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.delta;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies JSON Patch (RFC 6902) and JSON Merge Patch (RFC 7386) documents to Gson trees. Patches
+ * are applied to a copy, so a patch that fails part way leaves the target untouched.
+ */
+public class JsonPatch {
+    private JsonPatch() {}
+
+    /**
+     * @param target Document to patch
+     * @param patch Array of patch operations
+     * @return The patched copy of target
+     * @throws PatchError If an operation is malformed, its path doesn't exist, or a test fails
+     */
+    public static JsonElement apply(JsonElement target, JsonElement patch) throws PatchError {
+        if (!patch.isJsonArray()) {
+            throw new PatchError("Patch is not an array");
+        }
+
+        // the root is wrapped so operations on "" can replace it
+        JsonArray root = new JsonArray();
+        root.add(copy(target));
+
+        for (JsonElement element : patch.getAsJsonArray()) {
+            if (!element.isJsonObject()) {
+                throw new PatchError("Operation is not an object: " + element);
+            }
+
+            JsonObject operation = element.getAsJsonObject();
+            String op = member(operation, "op");
+            String path = member(operation, "path");
+
+            if (op.equals("add")) {
+                add(root, path, copy(value(operation)));
+            } else if (op.equals("remove")) {
+                remove(root, path);
+            } else if (op.equals("replace")) {
+                remove(root, path);
+                add(root, path, copy(value(operation)));
+            } else if (op.equals("move")) {
+                String from = member(operation, "from");
+                if (path.startsWith(from + "/")) {
+                    throw new PatchError("Cannot move " + from + " into itself");
+                }
+                add(root, path, remove(root, from));
+            } else if (op.equals("copy")) {
+                add(root, path, copy(get(root, member(operation, "from"))));
+            } else if (op.equals("test")) {
+                if (!get(root, path).equals(value(operation))) {
+                    throw new PatchError("Test failed at " + path);
+                }
+            } else {
+                throw new PatchError("Unknown operation " + op);
+            }
+        }
+
+        return root.get(0);
+    }
+
+    /**
+     * @param target Document to patch
+     * @param patch Merge patch
+     * @return The patched copy of target
+     */
+    public static JsonElement merge(JsonElement target, JsonElement patch) {
+        if (!patch.isJsonObject()) {
+            return copy(patch);
+        }
+
+        JsonObject result = target != null && target.isJsonObject()
+                ? copy(target).getAsJsonObject()
+                : new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : patch.getAsJsonObject().entrySet()) {
+            if (entry.getValue().isJsonNull()) {
+                result.remove(entry.getKey());
+            } else {
+                result.add(entry.getKey(), merge(result.get(entry.getKey()), entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    private static String member(JsonObject operation, String name) throws PatchError {
+        JsonElement member = operation.get(name);
+        if (member == null || !member.isJsonPrimitive()) {
+            throw new PatchError("Operation has no " + name + ": " + operation);
+        }
+        return member.getAsString();
+    }
+
+    private static JsonElement value(JsonObject operation) throws PatchError {
+        JsonElement value = operation.get("value");
+        if (value == null) {
+            throw new PatchError("Operation has no value: " + operation);
+        }
+        return value;
+    }
+
+    private static List<String> tokens(String path) throws PatchError {
+        List<String> tokens = new ArrayList<>();
+        // the root wrapper
+        tokens.add("0");
+        if (path.length() == 0) {
+            return tokens;
+        }
+
+        if (path.charAt(0) != '/') {
+            throw new PatchError("Bad path " + path);
+        }
+
+        for (String token : path.substring(1).split("/", -1)) {
+            tokens.add(token.replace("~1", "/").replace("~0", "~"));
+        }
+        return tokens;
+    }
+
+    private static int index(JsonArray array, String token, boolean forAdd) throws PatchError {
+        if (forAdd && token.equals("-")) {
+            return array.size();
+        }
+
+        int index;
+        try {
+            index = Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new PatchError("Bad array index " + token);
+        }
+
+        int limit = forAdd ? array.size() : array.size() - 1;
+        if (index < 0 || index > limit || (token.length() > 1 && token.charAt(0) == '0')) {
+            throw new PatchError("Array index out of range " + token);
+        }
+        return index;
+    }
+
+    private static JsonElement child(JsonElement parent, String token) throws PatchError {
+        JsonElement child = null;
+        if (parent.isJsonObject()) {
+            child = parent.getAsJsonObject().get(token);
+        } else if (parent.isJsonArray()) {
+            child = parent.getAsJsonArray().get(index(parent.getAsJsonArray(), token, false));
+        }
+
+        if (child == null) {
+            throw new PatchError("No member " + token);
+        }
+        return child;
+    }
+
+    private static JsonElement parent(JsonArray root, List<String> tokens) throws PatchError {
+        JsonElement parent = root;
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            parent = child(parent, tokens.get(i));
+        }
+        return parent;
+    }
+
+    private static JsonElement get(JsonArray root, String path) throws PatchError {
+        List<String> tokens = tokens(path);
+        return child(parent(root, tokens), tokens.get(tokens.size() - 1));
+    }
+
+    private static void add(JsonArray root, String path, JsonElement value) throws PatchError {
+        List<String> tokens = tokens(path);
+        JsonElement parent = parent(root, tokens);
+        String last = tokens.get(tokens.size() - 1);
+
+        if (parent == root) {
+            root.set(0, value);
+        } else if (parent.isJsonObject()) {
+            parent.getAsJsonObject().add(last, value);
+        } else if (parent.isJsonArray()) {
+            JsonArray array = parent.getAsJsonArray();
+            int index = index(array, last, true);
+
+            // JsonArray can't insert, so shift the tail along by hand
+            array.add(JsonNull.INSTANCE);
+            for (int i = array.size() - 1; i > index; i--) {
+                array.set(i, array.get(i - 1));
+            }
+            array.set(index, value);
+        } else {
+            throw new PatchError("Cannot add to a value at " + path);
+        }
+    }
+
+    private static JsonElement remove(JsonArray root, String path) throws PatchError {
+        List<String> tokens = tokens(path);
+        JsonElement parent = parent(root, tokens);
+        String last = tokens.get(tokens.size() - 1);
+
+        if (parent == root) {
+            JsonElement removed = root.get(0);
+            root.set(0, JsonNull.INSTANCE);
+            return removed;
+        }
+
+        JsonElement removed = child(parent, last);
+        if (parent.isJsonObject()) {
+            parent.getAsJsonObject().remove(last);
+        } else {
+            parent.getAsJsonArray().remove(index(parent.getAsJsonArray(), last, false));
+        }
+        return removed;
+    }
+
+    /**
+     * @return A deep copy of element. Primitives are immutable and shared.
+     */
+    static JsonElement copy(JsonElement element) {
+        if (element.isJsonObject()) {
+            JsonObject copy = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                copy.add(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        }
+
+        if (element.isJsonArray()) {
+            JsonArray copy = new JsonArray();
+            for (JsonElement child : element.getAsJsonArray()) {
+                copy.add(copy(child));
+            }
+            return copy;
+        }
+
+        return element;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.FieldNamingStrategy;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.annotations.SerializedName;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one instance of each entity, by type and ID, across every response that contains it.
+ * {@link #normalize} swaps each entity in a decoded graph for the instance already in the store,
+ * after merging the newer values into it. Entities are held weakly, so the store only remembers
+ * entities that something else still uses.
+ *
+ * Given the JSON a graph was decoded from, only the members the JSON mentions are merged, so a
+ * partial response doesn't reset the fields it left out. Given the time the response was
+ * generated, an older response, like a cache hit, doesn't overwrite an entity a newer one updated.
+ *
+ * Merged entities are changed in place on a network thread.
+ */
+public class EntityStore {
+    private final Map<Class<?>, Field> mIdFields = new HashMap<>();
+    private final Map<Class<?>, Map<Object, EntityReference>> mEntities = new HashMap<>();
+    private final ReferenceQueue<Object> mQueue = new ReferenceQueue<>();
+    private FieldNamingStrategy mNamingStrategy = FieldNamingPolicy.IDENTITY;
+
+    private static class EntityReference extends WeakReference<Object> {
+        final Class<?> type;
+        final Object id;
+        // when the response the entity was last merged from was generated
+        long asOf;
+
+        EntityReference(Object entity, Object id, long asOf, ReferenceQueue<Object> queue) {
+            super(entity, queue);
+            this.type = entity.getClass();
+            this.id = id;
+            this.asOf = asOf;
+        }
+    }
+
+    /**
+     * Normalize instances of a type
+     *
+     * @param type Entity type
+     * @param idField Name of the Java field that identifies an entity
+     */
+    public synchronized EntityStore register(Class<?> type, String idField) {
+        Field field = null;
+        for (Class<?> c = type; c != null && field == null; c = c.getSuperclass()) {
+            try {
+                field = c.getDeclaredField(idField);
+            } catch (NoSuchFieldException e) {
+                // try the superclass
+            }
+        }
+        if (field == null || Modifier.isStatic(field.getModifiers())) {
+            throw new IllegalArgumentException(type.getName() + " has no field " + idField);
+        }
+
+        field.setAccessible(true);
+        mIdFields.put(type, field);
+        return this;
+    }
+
+    /**
+     * Match JSON members to fields the way the decoding Gson does. Fields with a
+     * {@link SerializedName} always use it.
+     */
+    public synchronized EntityStore setFieldNamingStrategy(FieldNamingStrategy namingStrategy) {
+        mNamingStrategy = namingStrategy;
+        return this;
+    }
+
+    /**
+     * @return The stored entity with an ID, or null if there isn't one
+     */
+    public synchronized <E> E get(Class<E> type, Object id) {
+        expunge();
+
+        Map<Object, EntityReference> entities = mEntities.get(type);
+        EntityReference reference = entities != null ? entities.get(id) : null;
+        return reference != null ? type.cast(reference.get()) : null;
+    }
+
+    /**
+     * @return How many entities are stored
+     */
+    public synchronized int size() {
+        expunge();
+
+        int size = 0;
+        for (Map<Object, EntityReference> entities : mEntities.values()) {
+            size += entities.size();
+        }
+        return size;
+    }
+
+    public synchronized void clear() {
+        mEntities.clear();
+    }
+
+    /**
+     * Replace the entities in a decoded graph with stored instances
+     *
+     * @param decoded Root of the graph. Lists, arrays and maps in it are updated in place.
+     * @return The root, which is itself replaced if it is an entity
+     */
+    public <T> T normalize(T decoded) {
+        return normalize(decoded, null, 0);
+    }
+
+    /**
+     * Replace the entities in a decoded graph with stored instances
+     *
+     * @param decoded Root of the graph. Lists, arrays and maps in it are updated in place.
+     * @param json What the graph was decoded from, or null if unknown. Without it, every field
+     *             except null references is merged.
+     * @param asOf When the response was generated, in epoch milliseconds, or 0 if unknown. Entities
+     *             last merged from a newer response keep their values.
+     * @return The root, which is itself replaced if it is an entity
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T normalize(T decoded, JsonElement json, long asOf) {
+        expunge();
+
+        try {
+            return (T) normalize(decoded, json, asOf, new IdentityHashMap<Object, Object>());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void expunge() {
+        EntityReference reference;
+        while ((reference = (EntityReference) mQueue.poll()) != null) {
+            Map<Object, EntityReference> entities = mEntities.get(reference.type);
+            if (entities != null && entities.get(reference.id) == reference) {
+                entities.remove(reference.id);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object normalize(Object value, JsonElement json, long asOf, Map<Object, Object> visited)
+            throws IllegalAccessException {
+        if (value == null || isValue(value.getClass())) {
+            return value;
+        }
+
+        Object seen = visited.get(value);
+        if (seen != null) {
+            return seen;
+        }
+        // guards against cycles; replaced below if the value turns out to be a stored entity
+        visited.put(value, value);
+
+        if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            for (int i = 0; i < list.size(); i++) {
+                Object element = list.get(i);
+                Object normalized = normalize(element, element(json, i), asOf, visited);
+                if (normalized != element) {
+                    list.set(i, normalized);
+                }
+            }
+            return value;
+        }
+
+        if (value instanceof Map) {
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                Object normalized = normalize(entry.getValue(),
+                        member(json, String.valueOf(entry.getKey())), asOf, visited);
+                if (normalized != entry.getValue()) {
+                    entry.setValue(normalized);
+                }
+            }
+            return value;
+        }
+
+        if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            for (int i = 0; i < array.length; i++) {
+                array[i] = normalize(array[i], element(json, i), asOf, visited);
+            }
+            return value;
+        }
+
+        if (!isModel(value.getClass())) {
+            return value;
+        }
+
+        // children first, so a stored entity only ever points at stored entities
+        for (Map.Entry<String, Field> entry : JsonFields.of(value.getClass(), mNamingStrategy).entrySet()) {
+            Field field = entry.getValue();
+            Object child = field.get(value);
+            Object normalized = normalize(child, member(json, entry.getKey()), asOf, visited);
+            if (normalized != child) {
+                field.set(value, normalized);
+            }
+        }
+
+        Field idField = mIdFields.get(value.getClass());
+        Object id = idField != null ? idField.get(value) : null;
+        if (id == null) {
+            return value;
+        }
+
+        Map<Object, EntityReference> entities = mEntities.get(value.getClass());
+        if (entities == null) {
+            entities = new HashMap<>();
+            mEntities.put(value.getClass(), entities);
+        }
+
+        EntityReference reference = entities.get(id);
+        Object stored = reference != null ? reference.get() : null;
+        if (stored == null) {
+            entities.put(id, new EntityReference(value, id, asOf, mQueue));
+            return value;
+        }
+
+        if (stored != value) {
+            // an older response (a cache hit, say) resolves to the entity but doesn't roll it back
+            if (asOf == 0 || asOf >= reference.asOf) {
+                merge(value, stored, json != null && json.isJsonObject() ? json.getAsJsonObject() : null);
+                reference.asOf = Math.max(reference.asOf, asOf);
+            }
+            visited.put(value, stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Copy newer values into the stored entity. With the JSON, exactly the members it mentions are
+     * copied, explicit nulls included. Without it, null references are taken to be missing from a
+     * partial response and don't overwrite what is already known.
+     */
+    private void merge(Object from, Object into, JsonObject json) throws IllegalAccessException {
+        for (Map.Entry<String, Field> entry : JsonFields.of(from.getClass(), mNamingStrategy).entrySet()) {
+            Field field = entry.getValue();
+            boolean present;
+            if (json != null) {
+                // gson leaves primitives alone for an explicit null, so there's nothing to copy
+                JsonElement member = json.get(entry.getKey());
+                present = member != null && !(member.isJsonNull() && field.getType().isPrimitive());
+            } else {
+                present = field.get(from) != null || field.getType().isPrimitive();
+            }
+            if (present) {
+                field.set(into, field.get(from));
+            }
+        }
+    }
+
+    private static JsonElement member(JsonElement json, String name) {
+        return json != null && json.isJsonObject() ? json.getAsJsonObject().get(name) : null;
+    }
+
+    private static JsonElement element(JsonElement json, int index) {
+        if (json == null || !json.isJsonArray()) {
+            return null;
+        }
+        JsonArray array = json.getAsJsonArray();
+        return index < array.size() ? array.get(index) : null;
+    }
+
+    private static boolean isValue(Class<?> type) {
+        return type.isPrimitive() || type.isEnum() || type == String.class
+                || Number.class.isAssignableFrom(type) || type == Boolean.class || type == Character.class;
+    }
+
+    private static boolean isModel(Class<?> type) {
+        String name = type.getName();
+        return !name.startsWith("java.") && !name.startsWith("android.");
+    }
+}
@@ -30,16 +30,28 @@
 
 package org.dforsyth.android.lob.encoders;
 
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.FieldNamingStrategy;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 
+import org.dforsyth.android.lob.adapters.AdapterRegistry;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.lang.reflect.Type;
 
 /**
  * An encoder that uses Gson
  */
-public class GsonEncoder implements Encoder {
+public class GsonEncoder implements StreamingEncoder {
     private Gson gson = new Gson();
+    private FieldNamingStrategy namingStrategy = FieldNamingPolicy.IDENTITY;
 
     public GsonEncoder() {}
 
@@ -47,6 +59,43 @@ public class GsonEncoder implements Encoder {
         this.gson = gson;
     }
 
+    /**
+     * @param namingStrategy The naming strategy gson was built with. Gson doesn't say, and the
+     *                       decoders that match JSON members to fields themselves, like
+     *                       {@link MergingDecoder}, need to know.
+     */
+    public GsonEncoder(Gson gson, FieldNamingStrategy namingStrategy) {
+        this.gson = gson;
+        this.namingStrategy = namingStrategy;
+    }
+
+    /**
+     * Decode with generated adapters where there are any, and reflection otherwise
+     *
+     * @param registry Registry to take adapters from
+     */
+    public GsonEncoder(AdapterRegistry registry) {
+        this(new GsonBuilder().registerTypeAdapterFactory(registry).create());
+    }
+
+    public Gson getGson() {
+        return gson;
+    }
+
+    public FieldNamingStrategy getFieldNamingStrategy() {
+        return namingStrategy;
+    }
+
+    /**
+     * Build and cache Gson's adapters for some types now, so the first response of each type
+     * doesn't pay for it. Blocks while adapters are built.
+     */
+    public void prewarm(Type... types) {
+        for (Type type : types) {
+            gson.getAdapter(TypeToken.get(type));
+        }
+    }
+
     @Override
     public <T> T decode(String json, Type type) throws DecodeError {
         try {
@@ -60,4 +109,20 @@ public class GsonEncoder implements Encoder {
     public <T> String encode(T object) {
         return gson.toJson(object);
     }
+
+    @Override
+    public <T> void encode(T object, OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        if (object != null) {
+            gson.toJson(object, object.getClass(), writer);
+        } else {
+            writer.nullValue();
+        }
+        writer.flush();
+    }
+
+    @Override
+    public String getContentType() {
+        return Constants.CONTENT_TYPE_JSON;
+    }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import android.util.LruCache;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import org.dforsyth.android.lob.ResponseDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list over a JSON array response that decodes elements only when they are asked
+ * for. The body is scanned once for where each element starts and ends; after that, get() decodes
+ * a single element and keeps recent ones in a small cache. Good for binding an adapter straight to
+ * a response with tens of thousands of elements.
+ *
+ * <pre>
+ * new LobRequest.Builder&lt;JsonArrayView&lt;Item&gt;&gt;(lob)
+ *         .setResponseDecoder(JsonArrayView.decoder(gson, Item.class))
+ * </pre>
+ *
+ * @param <E> Element type
+ */
+public class JsonArrayView<E> extends AbstractList<E> implements RandomAccess {
+    public final static int DEFAULT_CACHE_SIZE = 64;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mData;
+    private final TypeAdapter<E> mAdapter;
+    private final LruCache<Integer, E> mCache;
+
+    private int[] mStarts = new int[64];
+    private int[] mEnds = new int[64];
+    private int mSize;
+
+    /**
+     * @param data UTF-8 JSON whose top level value is an array
+     * @param adapter Adapter to decode elements with
+     * @param cacheSize How many decoded elements to keep
+     * @throws DecodeError If data isn't a well formed array
+     */
+    public JsonArrayView(byte[] data, TypeAdapter<E> adapter, int cacheSize) throws DecodeError {
+        mData = data;
+        mAdapter = adapter;
+        mCache = new LruCache<>(cacheSize);
+        index();
+    }
+
+    /**
+     * @param elementType Type of the array's elements
+     * @return Decoder for requests that deliver a view, with a {@link #DEFAULT_CACHE_SIZE} cache
+     */
+    public static <E> ResponseDecoder<JsonArrayView<E>> decoder(Gson gson, Type elementType) {
+        return decoder(gson, elementType, DEFAULT_CACHE_SIZE);
+    }
+
+    public static <E> ResponseDecoder<JsonArrayView<E>> decoder(final Gson gson, final Type elementType,
+                                                                final int cacheSize) {
+        return new ResponseDecoder<JsonArrayView<E>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public JsonArrayView<E> decode(NetworkResponse response) throws DecodeError {
+                TypeAdapter<E> adapter = (TypeAdapter<E>) gson.getAdapter(TypeToken.get(elementType));
+                return new JsonArrayView<>(utf8(response), adapter, cacheSize);
+            }
+        };
+    }
+
+    private static byte[] utf8(NetworkResponse response) throws DecodeError {
+        Charset charset;
+        try {
+            charset = Charset.forName(HttpHeaderParser.parseCharset(response.headers));
+        } catch (IllegalArgumentException e) {
+            throw new DecodeError(new UnsupportedEncodingException(e.getMessage()));
+        }
+
+        if (charset.equals(UTF_8) || charset.name().equalsIgnoreCase("US-ASCII")) {
+            return response.data;
+        }
+
+        // offsets are found in bytes, so other charsets are re-encoded once up front
+        return new String(response.data, charset).getBytes(UTF_8);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private void index() throws DecodeError {
+        byte[] data = mData;
+        int i = 0;
+        while (i < data.length && isWhitespace(data[i])) {
+            i++;
+        }
+        if (i == data.length || data[i] != '[') {
+            throw new DecodeError(new JsonParseException("Expected an array at offset " + i));
+        }
+        i++;
+
+        int depth = 0;
+        int start = -1;
+        boolean inString = false;
+        for (; i < data.length; i++) {
+            byte b = data[i];
+            if (inString) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+
+            if (isWhitespace(b)) {
+                continue;
+            }
+
+            if (depth == 0 && (b == ',' || b == ']')) {
+                if (start < 0) {
+                    if (b == ']' && mSize == 0) {
+                        return;
+                    }
+                    throw new DecodeError(new JsonParseException("Missing element at offset " + i));
+                }
+
+                add(start, i);
+                start = -1;
+                if (b == ']') {
+                    return;
+                }
+                continue;
+            }
+
+            if (start < 0) {
+                start = i;
+            }
+
+            if (b == '"') {
+                inString = true;
+            } else if (b == '[' || b == '{') {
+                depth++;
+            } else if (b == ']' || b == '}') {
+                depth--;
+                if (depth < 0) {
+                    break;
+                }
+            }
+        }
+
+        throw new DecodeError(new JsonParseException("Unterminated array"));
+    }
+
+    private void add(int start, int end) {
+        if (mSize == mStarts.length) {
+            mStarts = Arrays.copyOf(mStarts, mSize * 2);
+            mEnds = Arrays.copyOf(mEnds, mSize * 2);
+        }
+        mStarts[mSize] = start;
+        mEnds[mSize] = end;
+        mSize++;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @throws JsonParseException If the element can't be decoded
+     */
+    @Override
+    public E get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+
+        E element = mCache.get(index);
+        if (element != null) {
+            return element;
+        }
+
+        JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(mData, mStarts[index], mEnds[index] - mStarts[index]), UTF_8));
+        // elements can be bare values, which strict mode rejects at the top level
+        reader.setLenient(true);
+        try {
+            element = mAdapter.read(reader);
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonParseException("Failed to decode element " + index, e);
+        }
+
+        if (element != null) {
+            mCache.put(index, element);
+        }
+        return element;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.dforsyth.android.lob.encoders;
+
+import com.google.gson.FieldNamingStrategy;
+import com.google.gson.annotations.SerializedName;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The fields Gson's reflective adapter reads for a class, keyed by the JSON member name Gson gives
+ * them: the {@link SerializedName} if there is one, otherwise the name the naming strategy
+ * translates the field to. A field shadowed by a subclass field of the same name is left out.
+ */
+final class JsonFields {
+    private final static Map<FieldNamingStrategy, Map<Class<?>, Map<String, Field>>> sFields = new WeakHashMap<>();
+
+    private JsonFields() {}
+
+    /**
+     * @return Fields by JSON name, in declaration order, subclass first
+     */
+    static Map<String, Field> of(Class<?> type, FieldNamingStrategy namingStrategy) {
+        synchronized (sFields) {
+            Map<Class<?>, Map<String, Field>> byType = sFields.get(namingStrategy);
+            if (byType == null) {
+                byType = new HashMap<>();
+                sFields.put(namingStrategy, byType);
+            }
+
+            Map<String, Field> fields = byType.get(type);
+            if (fields == null) {
+                fields = new LinkedHashMap<>();
+                for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int modifiers = field.getModifiers();
+                        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                            continue;
+                        }
+
+                        String name = name(field, namingStrategy);
+                        if (!fields.containsKey(name)) {
+                            field.setAccessible(true);
+                            fields.put(name, field);
+                        }
+                    }
+                }
+                fields = Collections.unmodifiableMap(fields);
+                byType.put(type, fields);
+            }
+            return fields;
+        }
+    }
+
+    static String name(Field field, FieldNamingStrategy namingStrategy) {
+        SerializedName serializedName = field.getAnnotation(SerializedName.class);
+        return serializedName != null ? serializedName.value() : namingStrategy.translateName(field);
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.FieldNamingStrategy;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.internal.bind.ReflectiveTypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.dforsyth.android.lob.ResponseDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decodes a JSON response into the object the previous response was decoded to, so that a screen
+ * polling the same shape of response doesn't build a new object graph every time. Objects are
+ * merged field by field and lists element by element; only subtrees that weren't there before are
+ * allocated. The first response, and anything that isn't a plain model object or list, is decoded
+ * by Gson as usual. So is any class Gson has its own adapter for, registered or generated, since
+ * that adapter may not map members to fields one to one.
+ *
+ * Members missing from a response are reset to what Gson would decode them to, so the result is
+ * the same as a fresh decode. Every change is journaled, and a response that fails partway through
+ * is rolled back, leaving the previous result as it was. The previous result is changed in place on
+ * a network thread, so it must not be read while a request is decoding into it.
+ *
+ * @param <T> Decoded type
+ */
+public class MergingDecoder<T> implements ResponseDecoder<T> {
+    private final Gson mGson;
+    private final FieldNamingStrategy mNamingStrategy;
+    private final Type mType;
+
+    private volatile T mPrevious;
+
+    /**
+     * Undo log for one decode
+     */
+    private static class Journal {
+        private final List<Object[]> mFieldWrites = new ArrayList<>();
+        private final Map<List<Object>, List<Object>> mLists = new IdentityHashMap<>();
+
+        void set(Field field, Object target, Object value) throws IllegalAccessException {
+            mFieldWrites.add(new Object[] {field, target, field.get(target)});
+            field.set(target, value);
+        }
+
+        /**
+         * Remember a list's contents before its first change
+         */
+        void touch(List<Object> list) {
+            if (!mLists.containsKey(list)) {
+                mLists.put(list, new ArrayList<>(list));
+            }
+        }
+
+        void rollback() throws IllegalAccessException {
+            for (int i = mFieldWrites.size() - 1; i >= 0; i--) {
+                Object[] write = mFieldWrites.get(i);
+                ((Field) write[0]).set(write[1], write[2]);
+            }
+            for (Map.Entry<List<Object>, List<Object>> entry : mLists.entrySet()) {
+                entry.getKey().clear();
+                entry.getKey().addAll(entry.getValue());
+            }
+        }
+    }
+
+    public MergingDecoder(Gson gson, Type type) {
+        this(gson, type, null);
+    }
+
+    /**
+     * @param previous Instance to decode the next response into
+     */
+    public MergingDecoder(Gson gson, Type type, T previous) {
+        this(gson, FieldNamingPolicy.IDENTITY, type, previous);
+    }
+
+    /**
+     * @param namingStrategy Naming strategy the Gson was built with, to match members to fields
+     * @param previous Instance to decode the next response into
+     */
+    public MergingDecoder(Gson gson, FieldNamingStrategy namingStrategy, Type type, T previous) {
+        mGson = gson;
+        mNamingStrategy = namingStrategy;
+        mType = type;
+        mPrevious = previous;
+    }
+
+    public T getPrevious() {
+        return mPrevious;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(NetworkResponse response) throws DecodeError {
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(
+                    new ByteArrayInputStream(response.data),
+                    HttpHeaderParser.parseCharset(response.headers)));
+            reader.setLenient(true);
+            Journal journal = new Journal();
+            try {
+                T decoded = (T) read(reader, mType, mPrevious, journal);
+                mPrevious = decoded;
+                return decoded;
+            } catch (IOException | IllegalStateException | IllegalAccessException | NumberFormatException
+                    | JsonParseException e) {
+                journal.rollback();
+                throw e;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | IllegalStateException | IllegalAccessException | NumberFormatException
+                | JsonParseException e) {
+            throw new DecodeError(e);
+        }
+    }
+
+    private Object read(JsonReader reader, Type type, Object existing, Journal journal)
+            throws IOException, IllegalAccessException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        if (existing != null && token == JsonToken.BEGIN_ARRAY && existing instanceof List
+                && type instanceof ParameterizedType) {
+            mergeList(reader, ((ParameterizedType) type).getActualTypeArguments()[0], (List<?>) existing, journal);
+            return existing;
+        }
+
+        if (existing != null && token == JsonToken.BEGIN_OBJECT && type == existing.getClass()
+                && isModel(existing.getClass()) && isReflective(existing.getClass())) {
+            mergeObject(reader, existing, journal);
+            return existing;
+        }
+
+        return mGson.getAdapter(TypeToken.get(type)).read(reader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mergeList(JsonReader reader, Type elementType, List<?> existing, Journal journal)
+            throws IOException, IllegalAccessException {
+        List<Object> list = (List<Object>) existing;
+        int size = list.size();
+        journal.touch(list);
+
+        int i = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (i < size) {
+                Object element = list.get(i);
+                Object merged = read(reader, elementType, element, journal);
+                if (merged != element) {
+                    list.set(i, merged);
+                }
+            } else {
+                list.add(read(reader, elementType, null, journal));
+            }
+            i++;
+        }
+        reader.endArray();
+
+        if (i < size) {
+            list.subList(i, size).clear();
+        }
+    }
+
+    private void mergeObject(JsonReader reader, Object existing, Journal journal)
+            throws IOException, IllegalAccessException {
+        Map<String, Field> fields = JsonFields.of(existing.getClass(), mNamingStrategy);
+        Set<Field> mentioned = new HashSet<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Field field = fields.get(reader.nextName());
+            if (field == null) {
+                reader.skipValue();
+                continue;
+            }
+            mentioned.add(field);
+
+            Class<?> fieldType = field.getType();
+            if (fieldType.isPrimitive() && reader.peek() != JsonToken.NULL) {
+                Object value;
+                if (fieldType == int.class) {
+                    value = reader.nextInt();
+                } else if (fieldType == long.class) {
+                    value = reader.nextLong();
+                } else if (fieldType == double.class) {
+                    value = reader.nextDouble();
+                } else if (fieldType == boolean.class) {
+                    value = reader.nextBoolean();
+                } else {
+                    value = mGson.getAdapter(fieldType).read(reader);
+                }
+                journal.set(field, existing, value);
+                continue;
+            }
+
+            Object value = field.get(existing);
+            Object merged = read(reader, field.getGenericType(), value, journal);
+            if (merged != value) {
+                journal.set(field, existing, merged);
+            }
+        }
+        reader.endObject();
+
+        if (mentioned.size() < fields.size()) {
+            // whatever a fresh decode would leave in the fields the response didn't mention
+            Object defaults = mGson.fromJson(new JsonObject(), existing.getClass());
+            if (!existing.getClass().isInstance(defaults)) {
+                return;
+            }
+            for (Field field : fields.values()) {
+                if (!mentioned.contains(field)) {
+                    journal.set(field, existing, field.get(defaults));
+                }
+            }
+        }
+    }
+
+    private static boolean isModel(Class<?> type) {
+        String name = type.getName();
+        return !type.isPrimitive() && !type.isEnum() && !type.isArray()
+                && !name.startsWith("java.") && !name.startsWith("android.");
+    }
+
+    /**
+     * @return Whether Gson decodes the class field by field, the way we merge it
+     */
+    private boolean isReflective(Class<?> type) {
+        return mGson.getAdapter(type) instanceof ReflectiveTypeAdapterFactory.Adapter;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+
+import org.msgpack.core.MessageFormat;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link ByteEncoder} for MessagePack. Objects are mapped with Gson, so response types are the
+ * same classes, and the same adapters, as for JSON.
+ *
+ * MessagePack is not a dependency of Lob. Add org.msgpack:msgpack-core to your app to use this
+ * codec.
+ */
+public class MessagePackEncoder implements ByteEncoder {
+    public final static String CONTENT_TYPE = "application/msgpack";
+
+    private final Gson mGson;
+    private volatile Gson mDefaultGson;
+
+    /**
+     * Map objects with the Gson of the {@link MultiEncoder}'s JSON encoder, so the adapters
+     * registered for JSON apply to MessagePack too
+     */
+    public MessagePackEncoder() {
+        this(null);
+    }
+
+    /**
+     * @param gson Gson to map objects with, e.g. one with an
+     *             {@link org.dforsyth.android.lob.adapters.AdapterRegistry}
+     */
+    public MessagePackEncoder(Gson gson) {
+        mGson = gson;
+    }
+
+    /**
+     * Called by {@link MultiEncoder#addCodec} with the Gson its JSON encoder uses
+     */
+    void setDefaultGson(Gson gson) {
+        mDefaultGson = gson;
+    }
+
+    private Gson gson() {
+        if (mGson != null) {
+            return mGson;
+        }
+
+        Gson gson = mDefaultGson;
+        if (gson == null) {
+            gson = new Gson();
+            mDefaultGson = gson;
+        }
+        return gson;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public boolean canDecode(Type type) {
+        // Gson maps MessagePack onto anything it maps JSON onto
+        return true;
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Type type) throws DecodeError {
+        MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(data);
+        try {
+            // Gson reads the values as they are unpacked, no tree in between
+            return gson().fromJson(new JsonReader(new JsonTranscoder(unpacker)), type);
+        } catch (JsonParseException e) {
+            throw new DecodeError(e);
+        } finally {
+            try {
+                unpacker.close();
+            } catch (IOException e) {
+                // nothing to release for a byte array
+            }
+        }
+    }
+
+    /**
+     * Reads MessagePack as JSON text, one value at a time
+     */
+    private static class JsonTranscoder extends Reader {
+        private static class Container {
+            final int size;
+            final boolean map;
+            int index;
+
+            Container(int size, boolean map) {
+                this.size = size;
+                this.map = map;
+            }
+        }
+
+        private final MessageUnpacker mUnpacker;
+        private final Deque<Container> mContainers = new ArrayDeque<>();
+        private final StringBuilder mBuffer = new StringBuilder();
+        private int mPosition;
+        private boolean mStarted;
+
+        JsonTranscoder(MessageUnpacker unpacker) {
+            mUnpacker = unpacker;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            while (mPosition == mBuffer.length()) {
+                mBuffer.setLength(0);
+                mPosition = 0;
+                if (!next()) {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(length, mBuffer.length() - mPosition);
+            mBuffer.getChars(mPosition, mPosition + count, buffer, offset);
+            mPosition += count;
+            return count;
+        }
+
+        /**
+         * Transcode the next token into the buffer
+         *
+         * @return false at the end of the document
+         */
+        private boolean next() throws IOException {
+            if (!mStarted) {
+                mStarted = true;
+                value();
+                return true;
+            }
+
+            Container container = mContainers.peek();
+            if (container == null) {
+                return false;
+            }
+
+            if (container.index == container.size) {
+                mContainers.pop();
+                mBuffer.append(container.map ? '}' : ']');
+                return true;
+            }
+
+            if (container.index++ > 0) {
+                mBuffer.append(',');
+            }
+            if (container.map) {
+                quote(key());
+                mBuffer.append(':');
+            }
+            value();
+            return true;
+        }
+
+        private String key() throws IOException {
+            MessageFormat format = mUnpacker.getNextFormat();
+            switch (format.getValueType()) {
+                case STRING:
+                    return mUnpacker.unpackString();
+                case INTEGER:
+                    return format == MessageFormat.UINT64
+                            ? mUnpacker.unpackBigInteger().toString()
+                            : Long.toString(mUnpacker.unpackLong());
+                case FLOAT:
+                    return Double.toString(mUnpacker.unpackDouble());
+                case BOOLEAN:
+                    return Boolean.toString(mUnpacker.unpackBoolean());
+                default:
+                    return mUnpacker.unpackValue().toString();
+            }
+        }
+
+        private void value() throws IOException {
+            MessageFormat format = mUnpacker.getNextFormat();
+            switch (format.getValueType()) {
+                case NIL:
+                    mUnpacker.unpackNil();
+                    mBuffer.append("null");
+                    break;
+                case BOOLEAN:
+                    mBuffer.append(mUnpacker.unpackBoolean());
+                    break;
+                case INTEGER:
+                    if (format == MessageFormat.UINT64) {
+                        mBuffer.append(mUnpacker.unpackBigInteger());
+                    } else {
+                        mBuffer.append(mUnpacker.unpackLong());
+                    }
+                    break;
+                case FLOAT:
+                    // NaN and Infinity come out unquoted, which Gson reads leniently
+                    mBuffer.append(mUnpacker.unpackDouble());
+                    break;
+                case STRING:
+                    quote(mUnpacker.unpackString());
+                    break;
+                case BINARY: {
+                    // Gson reads byte[] from an array of numbers
+                    byte[] bytes = mUnpacker.readPayload(mUnpacker.unpackBinaryHeader());
+                    mBuffer.append('[');
+                    for (int i = 0; i < bytes.length; i++) {
+                        if (i > 0) {
+                            mBuffer.append(',');
+                        }
+                        mBuffer.append(bytes[i]);
+                    }
+                    mBuffer.append(']');
+                    break;
+                }
+                case ARRAY:
+                    mContainers.push(new Container(mUnpacker.unpackArrayHeader(), false));
+                    mBuffer.append('[');
+                    break;
+                case MAP:
+                    mContainers.push(new Container(mUnpacker.unpackMapHeader(), true));
+                    mBuffer.append('{');
+                    break;
+                default:
+                    mUnpacker.skipValue();
+                    mBuffer.append("null");
+                    break;
+            }
+        }
+
+        private void quote(String value) {
+            mBuffer.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    mBuffer.append('\\').append(c);
+                } else if (c < 0x20) {
+                    mBuffer.append(String.format(Locale.US, "\\u%04x", (int) c));
+                } else {
+                    mBuffer.append(c);
+                }
+            }
+            mBuffer.append('"');
+        }
+
+        @Override
+        public void close() {
+            // the unpacker is closed by decode
+        }
+    }
+
+    @Override
+    public <T> void encode(T object, OutputStream out) throws IOException {
+        MessagePacker packer = MessagePack.newDefaultPacker(out);
+        pack(packer, gson().toJsonTree(object));
+        packer.flush();
+    }
+
+    private static void pack(MessagePacker packer, JsonElement element) throws IOException {
+        if (element.isJsonNull()) {
+            packer.packNil();
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            packer.packMapHeader(object.entrySet().size());
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                packer.packString(entry.getKey());
+                pack(packer, entry.getValue());
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            packer.packArrayHeader(array.size());
+            for (JsonElement child : array) {
+                pack(packer, child);
+            }
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                packer.packBoolean(primitive.getAsBoolean());
+            } else if (primitive.isString()) {
+                packer.packString(primitive.getAsString());
+            } else {
+                packNumber(packer, primitive.getAsNumber());
+            }
+        }
+    }
+
+    private static void packNumber(MessagePacker packer, Number number) throws IOException {
+        if (number instanceof Double || number instanceof Float) {
+            packer.packDouble(number.doubleValue());
+        } else if (number instanceof BigInteger) {
+            packer.packBigInteger((BigInteger) number);
+        } else if (number instanceof Byte || number instanceof Short
+                || number instanceof Integer || number instanceof Long) {
+            packer.packLong(number.longValue());
+        } else {
+            // BigDecimal and Gson's lazily parsed numbers
+            BigDecimal decimal = new BigDecimal(number.toString());
+            if (decimal.signum() != 0 && decimal.stripTrailingZeros().scale() > 0) {
+                packer.packDouble(decimal.doubleValue());
+            } else if (decimal.toBigInteger().bitLength() < 64) {
+                packer.packLong(decimal.longValue());
+            } else {
+                packer.packBigInteger(decimal.toBigInteger());
+            }
+        }
+    }
+}
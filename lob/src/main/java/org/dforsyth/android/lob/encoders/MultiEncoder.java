@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Negotiates between JSON and any number of binary {@link ByteEncoder}s. Requests ask for the
+ * binary formats first and JSON last, and each response is decoded by the codec its Content-Type
+ * names, so endpoints that only speak JSON keep working.
+ *
+ * <pre>
+ * new Lob.Builder(context, baseUri)
+ *         .setEncoder(new MultiEncoder()
+ *                 .addCodec(new ProtobufEncoder())
+ *                 .addCodec(new MessagePackEncoder()))
+ * </pre>
+ */
+public class MultiEncoder implements NegotiatingEncoder, StreamingEncoder {
+    private final StreamingEncoder mJsonEncoder;
+    private final Map<String, ByteEncoder> mCodecs = new LinkedHashMap<>();
+
+    private final Map<Type, String> mAccepts = new ConcurrentHashMap<>();
+
+    private ByteEncoder mRequestCodec;
+
+    public MultiEncoder() {
+        this(new GsonEncoder());
+    }
+
+    /**
+     * @param jsonEncoder Encoder for JSON responses and, unless {@link #setRequestCodec} says
+     *                    otherwise, request bodies
+     */
+    public MultiEncoder(StreamingEncoder jsonEncoder) {
+        mJsonEncoder = jsonEncoder;
+    }
+
+    /**
+     * Accept a binary format. Formats are preferred in the order they are added.
+     */
+    public MultiEncoder addCodec(ByteEncoder codec) {
+        if (codec instanceof MessagePackEncoder && mJsonEncoder instanceof GsonEncoder) {
+            ((MessagePackEncoder) codec).setDefaultGson(((GsonEncoder) mJsonEncoder).getGson());
+        }
+        mCodecs.put(mediaType(codec.getContentType()), codec);
+        mAccepts.clear();
+        return this;
+    }
+
+    /**
+     * Encode request bodies with a binary format instead of JSON
+     *
+     * @param contentType Content type of a codec already added
+     */
+    public MultiEncoder setRequestCodec(String contentType) {
+        ByteEncoder codec = mCodecs.get(mediaType(contentType));
+        if (codec == null) {
+            throw new IllegalArgumentException("No codec for " + contentType);
+        }
+
+        mRequestCodec = codec;
+        return this;
+    }
+
+    private String buildAccept(Type type) {
+        StringBuilder accept = new StringBuilder();
+
+        // each format a little less preferred than the one before, JSON last
+        int quality = 10;
+        for (Map.Entry<String, ByteEncoder> codec : mCodecs.entrySet()) {
+            if (type == null || !codec.getValue().canDecode(type)) {
+                continue;
+            }
+            accept.append(codec.getKey());
+            if (quality < 10) {
+                accept.append(";q=0.").append(quality);
+            }
+            accept.append(", ");
+            quality = Math.max(2, quality - 1);
+        }
+        if (accept.length() == 0) {
+            return Constants.CONTENT_TYPE_JSON;
+        }
+        accept.append(mediaType(Constants.CONTENT_TYPE_JSON)).append(";q=0.1");
+
+        return accept.toString();
+    }
+
+    private static String mediaType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        String mediaType = semicolon < 0 ? contentType : contentType.substring(0, semicolon);
+        return mediaType.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * @return The encoder for JSON
+     */
+    public StreamingEncoder getJsonEncoder() {
+        return mJsonEncoder;
+    }
+
+    @Override
+    public String getAccept(Type type) {
+        if (type == null) {
+            // nothing to decode, so nothing to prefer over JSON
+            return buildAccept(null);
+        }
+
+        String accept = mAccepts.get(type);
+        if (accept == null) {
+            accept = buildAccept(type);
+            mAccepts.put(type, accept);
+        }
+        return accept;
+    }
+
+    @Override
+    public <T> T decode(NetworkResponse response, Type type) throws DecodeError {
+        String contentType = response.headers != null
+                ? response.headers.get(Constants.HEADER_CONTENT_TYPE)
+                : null;
+
+        ByteEncoder codec = contentType != null ? mCodecs.get(mediaType(contentType)) : null;
+        if (codec != null) {
+            return codec.decode(response.data, type);
+        }
+
+        String data;
+        try {
+            data = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            throw new DecodeError(e);
+        }
+        return mJsonEncoder.decode(data, type);
+    }
+
+    @Override
+    public <T> T decode(String json, Type type) throws DecodeError {
+        return mJsonEncoder.decode(json, type);
+    }
+
+    @Override
+    public <T> String encode(T object) {
+        return mJsonEncoder.encode(object);
+    }
+
+    @Override
+    public <T> void encode(T object, OutputStream out) throws IOException {
+        if (mRequestCodec != null) {
+            mRequestCodec.encode(object, out);
+        } else {
+            mJsonEncoder.encode(object, out);
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return mRequestCodec != null ? mRequestCodec.getContentType() : mJsonEncoder.getContentType();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.util.Locale;
+
+/**
+ * An encoder that passes everything it decodes through an {@link EntityStore}, so every response
+ * resolves the same entity to the same instance.
+ *
+ * <pre>
+ * EntityStore store = new EntityStore()
+ *         .register(User.class, "id")
+ *         .register(Post.class, "id");
+ * new Lob.Builder(context, baseUri)
+ *         .setEncoder(new NormalizingEncoder(new GsonEncoder(), store))
+ * </pre>
+ *
+ * JSON responses are merged member by member, and the Date header keeps older responses, like
+ * cache hits, from overwriting newer entities. See {@link EntityStore#normalize(Object, JsonElement, long)}.
+ */
+public class NormalizingEncoder implements NegotiatingEncoder, StreamingEncoder {
+    private final StreamingEncoder mEncoder;
+    private final EntityStore mStore;
+
+    public NormalizingEncoder(StreamingEncoder encoder, EntityStore store) {
+        mEncoder = encoder;
+        mStore = store;
+    }
+
+    public StreamingEncoder getEncoder() {
+        return mEncoder;
+    }
+
+    public EntityStore getStore() {
+        return mStore;
+    }
+
+    @Override
+    public String getAccept(Type type) {
+        return mEncoder instanceof NegotiatingEncoder
+                ? ((NegotiatingEncoder) mEncoder).getAccept(type)
+                : mEncoder.getContentType();
+    }
+
+    @Override
+    public <T> T decode(NetworkResponse response, Type type) throws DecodeError {
+        String date = response.headers != null ? response.headers.get(Constants.HEADER_DATE) : null;
+        long asOf = date != null ? HttpHeaderParser.parseDateAsEpoch(date) : 0;
+
+        String contentType = response.headers != null
+                ? response.headers.get(Constants.HEADER_CONTENT_TYPE)
+                : null;
+        if (mEncoder instanceof NegotiatingEncoder && contentType != null
+                && !contentType.toLowerCase(Locale.US).contains("json")) {
+            // binary formats don't say which members they left out
+            T decoded = ((NegotiatingEncoder) mEncoder).decode(response, type);
+            return mStore.normalize(decoded, null, asOf);
+        }
+
+        String json;
+        try {
+            json = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            throw new DecodeError(e);
+        }
+        return decode(json, type, asOf);
+    }
+
+    @Override
+    public <T> T decode(String json, Type type) throws DecodeError {
+        return decode(json, type, 0);
+    }
+
+    private <T> T decode(String json, Type type, long asOf) throws DecodeError {
+        JsonElement tree;
+        T decoded;
+        if (mEncoder instanceof GsonEncoder) {
+            // parse once, and decode from the tree
+            try {
+                tree = new JsonParser().parse(json);
+                decoded = ((GsonEncoder) mEncoder).getGson().fromJson(tree, type);
+            } catch (JsonParseException e) {
+                throw new DecodeError(e);
+            }
+        } else {
+            decoded = mEncoder.decode(json, type);
+            try {
+                tree = new JsonParser().parse(json);
+            } catch (JsonParseException e) {
+                tree = null;
+            }
+        }
+        return mStore.normalize(decoded, tree, asOf);
+    }
+
+    @Override
+    public <T> String encode(T object) {
+        return mEncoder.encode(object);
+    }
+
+    @Override
+    public <T> void encode(T object, OutputStream out) throws IOException {
+        mEncoder.encode(object, out);
+    }
+
+    @Override
+    public String getContentType() {
+        return mEncoder.getContentType();
+    }
+}
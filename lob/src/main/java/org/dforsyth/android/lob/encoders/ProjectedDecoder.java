@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.dforsyth.android.lob.ResponseDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+
+/**
+ * Decodes only the parts of a JSON response in a {@link Projection}. Members outside it are
+ * skipped as they stream past, so large embedded objects a screen doesn't use are never built.
+ *
+ * @param <T> Decoded type
+ */
+public class ProjectedDecoder<T> implements ResponseDecoder<T> {
+    private final Gson mGson;
+    private final Type mType;
+    private final Projection mProjection;
+
+    public ProjectedDecoder(Gson gson, Type type, Projection projection) {
+        mGson = gson;
+        mType = type;
+        mProjection = projection;
+    }
+
+    @Override
+    public T decode(NetworkResponse response) throws DecodeError {
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(
+                    new ByteArrayInputStream(response.data),
+                    HttpHeaderParser.parseCharset(response.headers)));
+            try {
+                if (reader.peek() == JsonToken.END_DOCUMENT) {
+                    return null;
+                }
+                return mGson.fromJson(read(reader, mProjection), mType);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | IllegalStateException | JsonParseException e) {
+            throw new DecodeError(e);
+        }
+    }
+
+    private static JsonElement read(JsonReader reader, Projection projection) throws IOException {
+        if (projection.isAll()) {
+            return new JsonParser().parse(reader);
+        }
+
+        switch (reader.peek()) {
+            case BEGIN_OBJECT: {
+                JsonObject object = new JsonObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    Projection child = projection.get(name);
+                    if (child == null) {
+                        reader.skipValue();
+                    } else {
+                        object.add(name, read(reader, child));
+                    }
+                }
+                reader.endObject();
+                return object;
+            }
+            case BEGIN_ARRAY: {
+                JsonArray array = new JsonArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.add(read(reader, projection));
+                }
+                reader.endArray();
+                return array;
+            }
+            case NULL:
+                reader.nextNull();
+                return JsonNull.INSTANCE;
+            default:
+                // a value where the projection expected an object; let the type adapter decide
+                return new JsonParser().parse(reader);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.FieldNamingStrategy;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The parts of a JSON document to keep. Everything outside the projection is skipped by
+ * {@link ProjectedDecoder} without being parsed into objects.
+ *
+ * Paths are member names joined with dots, e.g. "user.name". Arrays are transparent, so
+ * "items.id" keeps the id of every element of items; "items[].id" means the same. A path that
+ * ends at an object keeps the whole object.
+ */
+public class Projection {
+    private final static Map<FieldNamingStrategy, Map<Type, Projection>> sTypeProjections = new WeakHashMap<>();
+
+    private final Map<String, Projection> mChildren;
+
+    private Projection(Map<String, Projection> children) {
+        mChildren = children;
+    }
+
+    private static Projection all() {
+        return new Projection(null);
+    }
+
+    /**
+     * @param paths Paths to keep
+     */
+    public static Projection of(String... paths) {
+        Projection root = new Projection(new HashMap<String, Projection>());
+        for (String path : paths) {
+            if (path == null || path.length() == 0) {
+                throw new IllegalArgumentException("Empty projection path");
+            }
+
+            Projection node = root;
+            String[] names = path.split("\\.", -1);
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i].endsWith("[]")
+                        ? names[i].substring(0, names[i].length() - 2)
+                        : names[i];
+                if (name.length() == 0) {
+                    throw new IllegalArgumentException("Empty name in projection path " + path);
+                }
+
+                if (node.isAll()) {
+                    // an earlier, shorter path already keeps everything under here
+                    break;
+                }
+
+                Projection child = node.mChildren.get(name);
+                if (i == names.length - 1) {
+                    child = all();
+                } else if (child == null) {
+                    child = new Projection(new HashMap<String, Projection>());
+                }
+                node.mChildren.put(name, child);
+                node = child;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Keep only what a type has fields for, as a Gson without a naming policy names them
+     *
+     * @param type Type the response is decoded to
+     */
+    public static Projection of(Type type) {
+        return of(type, FieldNamingPolicy.IDENTITY);
+    }
+
+    /**
+     * Keep only what a type has fields for, as Gson names them. Maps, type variables and
+     * recursive fields are kept whole.
+     *
+     * @param type Type the response is decoded to
+     * @param namingStrategy Naming strategy of the Gson that decodes the response
+     */
+    public static Projection of(Type type, FieldNamingStrategy namingStrategy) {
+        synchronized (sTypeProjections) {
+            Map<Type, Projection> projections = sTypeProjections.get(namingStrategy);
+            if (projections == null) {
+                projections = new HashMap<>();
+                sTypeProjections.put(namingStrategy, projections);
+            }
+
+            Projection projection = projections.get(type);
+            if (projection == null) {
+                projection = forType(type, namingStrategy, new HashSet<Type>());
+                projections.put(type, projection);
+            }
+            return projection;
+        }
+    }
+
+    private static Projection forType(Type type, FieldNamingStrategy namingStrategy, Set<Type> visiting) {
+        Type element = elementType(type);
+        if (element != null) {
+            return forType(element, namingStrategy, visiting);
+        }
+
+        if (!(type instanceof Class)) {
+            return all();
+        }
+
+        Class<?> raw = (Class<?>) type;
+        if (raw.isPrimitive() || raw.isEnum() || raw.getName().startsWith("java.")
+                || raw.getName().startsWith("android.") || !visiting.add(raw)) {
+            return all();
+        }
+
+        Map<String, Projection> children = new HashMap<>();
+        for (Map.Entry<String, Field> entry : JsonFields.of(raw, namingStrategy).entrySet()) {
+            children.put(entry.getKey(), forType(entry.getValue().getGenericType(), namingStrategy, visiting));
+        }
+        visiting.remove(raw);
+
+        return new Projection(Collections.unmodifiableMap(children));
+    }
+
+    private static Type elementType(Type type) {
+        if (type instanceof Class && ((Class<?>) type).isArray()) {
+            return ((Class<?>) type).getComponentType();
+        }
+
+        if (type instanceof GenericArrayType) {
+            return ((GenericArrayType) type).getGenericComponentType();
+        }
+
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            Type raw = parameterized.getRawType();
+            if (raw instanceof Class && Collection.class.isAssignableFrom((Class<?>) raw)) {
+                return parameterized.getActualTypeArguments()[0];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Whether everything under this node is kept
+     */
+    public boolean isAll() {
+        return mChildren == null;
+    }
+
+    /**
+     * @return Projection for a member of this object, or null to skip the member
+     */
+    public Projection get(String name) {
+        return mChildren == null ? this : mChildren.get(name);
+    }
+}
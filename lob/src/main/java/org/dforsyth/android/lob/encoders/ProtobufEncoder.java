@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.encoders;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link ByteEncoder} for Protocol Buffers. Response types must be generated message classes.
+ *
+ * Protobuf is not a dependency of Lob. Add com.google.protobuf:protobuf-lite to your app to use
+ * this codec.
+ */
+public class ProtobufEncoder implements ByteEncoder {
+    public final static String CONTENT_TYPE = "application/x-protobuf";
+
+    private final Map<Class<?>, Parser<?>> mParsers = new HashMap<>();
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public boolean canDecode(Type type) {
+        return type instanceof Class && MessageLite.class.isAssignableFrom((Class<?>) type);
+    }
+
+    private synchronized Parser<?> parser(Type type) throws DecodeError {
+        if (!canDecode(type)) {
+            throw new DecodeError(new IllegalArgumentException(type + " is not a protobuf message"));
+        }
+
+        Parser<?> parser = mParsers.get(type);
+        if (parser == null) {
+            // only the first message of each type is looked up reflectively
+            try {
+                MessageLite defaultInstance = (MessageLite) ((Class<?>) type)
+                        .getMethod("getDefaultInstance")
+                        .invoke(null);
+                parser = defaultInstance.getParserForType();
+            } catch (Exception e) {
+                throw new DecodeError(e);
+            }
+            mParsers.put((Class<?>) type, parser);
+        }
+        return parser;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T decode(byte[] data, Type type) throws DecodeError {
+        try {
+            return (T) parser(type).parseFrom(data);
+        } catch (InvalidProtocolBufferException e) {
+            throw new DecodeError(e);
+        }
+    }
+
+    @Override
+    public <T> void encode(T object, OutputStream out) throws IOException {
+        if (!(object instanceof MessageLite)) {
+            throw new IllegalArgumentException(object + " is not a protobuf message");
+        }
+
+        ((MessageLite) object).writeTo(out);
+    }
+}
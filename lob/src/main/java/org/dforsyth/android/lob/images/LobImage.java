@@ -11,6 +11,7 @@ import com.android.volley.toolbox.NetworkImageView;
 import com.android.volley.toolbox.Volley;
 
 import org.dforsyth.android.lob.R;
+import org.dforsyth.android.lob.util.BandwidthEstimator;
 
 /**
  * Helpers around NetworkImageView
@@ -44,6 +45,7 @@ public class LobImage {
 
     public class ImageRequestBuilder {
         private String mUri;
+        private String mLowBandwidthUri;
         private int mDefaultImageResId;
 
         public ImageRequestBuilder fetch(String url) {
@@ -51,6 +53,15 @@ public class LobImage {
             return this;
         }
 
+        /**
+         * Fetch a lighter variant of the image, e.g. a smaller size or lower quality, when the
+         * network is estimated to be poor or moderate
+         */
+        public ImageRequestBuilder setLowBandwidthUrl(String url) {
+            mLowBandwidthUri = url;
+            return this;
+        }
+
         public ImageRequestBuilder setDefaultImageResId(int defaultImageResId) {
             mDefaultImageResId = defaultImageResId;
             return this;
@@ -64,20 +75,36 @@ public class LobImage {
             }
             */
 
-            Log.d(TAG, String.format("Fetching image from %s", mUri));
+            String uri = mUri;
+            if (mLowBandwidthUri != null) {
+                BandwidthEstimator.Quality quality = getNetworkQuality();
+                if (quality == BandwidthEstimator.Quality.POOR
+                        || quality == BandwidthEstimator.Quality.MODERATE) {
+                    uri = mLowBandwidthUri;
+                }
+            }
+
+            Log.d(TAG, String.format("Fetching image from %s", uri));
 
             if (mDefaultImageResId > 0) {
                 imageView.setDefaultImageResId(mDefaultImageResId);
             }
 
             imageView.setImageUrl(
-                    mUri,
+                    uri,
                     sImageLoader
             );
         }
 
     }
 
+    /**
+     * @return Quality of the current network, as estimated from recent Lob requests
+     */
+    public static BandwidthEstimator.Quality getNetworkQuality() {
+        return BandwidthEstimator.getDefault().getQuality();
+    }
+
     public static ImageRequestBuilder using(Context context) {
         if (sInstance == null) {
             sInstance = new LobImage();
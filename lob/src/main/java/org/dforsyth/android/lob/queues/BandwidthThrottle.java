@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import com.android.volley.Request;
+
+import org.dforsyth.android.lob.util.BandwidthEstimator;
+
+/**
+ * A {@link Throttle} that lets fewer requests run at once on a slow network, where parallel
+ * requests only split the link and all finish late. Concurrency follows the quality reported by a
+ * {@link BandwidthEstimator}: one request at a time on a poor network, two on a moderate one, and
+ * the full limit otherwise.
+ *
+ * Each response is sampled on its own, so while several requests share the link each one sees
+ * only its share of it, and the estimate reads low. Cutting concurrency then makes the estimate
+ * rise, which lets concurrency back up again. The estimator's moving average damps the swing, but
+ * on a network near one of the quality thresholds concurrency can step back and forth between two
+ * levels.
+ */
+public class BandwidthThrottle implements Throttle {
+    public final static String IN_FLIGHT = "bandwidth.in_flight";
+    public final static String CONCURRENCY = "bandwidth.concurrency";
+    public final static String KBPS = "bandwidth.kbps";
+    public final static String RTT_MS = "bandwidth.rtt_ms";
+
+    /**
+     * Volley's number of network dispatchers
+     */
+    public final static int DEFAULT_MAX_CONCURRENCY = 4;
+
+    private final BandwidthEstimator mEstimator;
+    private final int mMaxConcurrency;
+
+    private int mInFlight;
+
+    public BandwidthThrottle() {
+        this(BandwidthEstimator.getDefault(), DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * @param estimator Estimator to follow
+     * @param maxConcurrency Concurrent requests allowed on a good network
+     */
+    public BandwidthThrottle(BandwidthEstimator estimator, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency < 1");
+        }
+
+        mEstimator = estimator;
+        mMaxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @return How many requests may run at once on the network as currently estimated
+     */
+    public int getConcurrency() {
+        switch (mEstimator.getQuality()) {
+            case POOR:
+                return 1;
+            case MODERATE:
+                return Math.min(2, mMaxConcurrency);
+            default:
+                return mMaxConcurrency;
+        }
+    }
+
+    @Override
+    public synchronized long tryAcquire(Request<?> request) {
+        if (mInFlight >= getConcurrency()) {
+            return WAIT;
+        }
+
+        mInFlight++;
+        return ADMIT;
+    }
+
+    @Override
+    public synchronized void release(Request<?> request) {
+        mInFlight = Math.max(0, mInFlight - 1);
+    }
+
+    @Override
+    public synchronized void report(QueueMetrics metrics) {
+        metrics.put(IN_FLIGHT, mInFlight);
+        metrics.put(CONCURRENCY, getConcurrency());
+        metrics.put(KBPS, (long) mEstimator.getBandwidthKbps());
+        metrics.put(RTT_MS, mEstimator.getRttMs());
+    }
+}
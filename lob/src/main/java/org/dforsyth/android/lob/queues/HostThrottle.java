@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import android.net.Uri;
+
+import com.android.volley.Request;
+
+import org.dforsyth.android.lob.util.TokenBucket;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link Throttle} that limits concurrent requests per host, and optionally their rate.
+ */
+public class HostThrottle implements Throttle {
+    public final static String IN_FLIGHT = "host.in_flight";
+
+    private final int mDefaultMaxConcurrency;
+    private final Map<String, Integer> mMaxConcurrency;
+    private final Map<String, TokenBucket> mBuckets;
+    private final Map<String, Integer> mInFlight;
+
+    /**
+     * @param defaultMaxConcurrency Concurrent requests allowed to any host without its own limit
+     */
+    public HostThrottle(int defaultMaxConcurrency) {
+        if (defaultMaxConcurrency < 1) {
+            throw new IllegalArgumentException("defaultMaxConcurrency < 1");
+        }
+
+        mDefaultMaxConcurrency = defaultMaxConcurrency;
+        mMaxConcurrency = new HashMap<>();
+        mBuckets = new HashMap<>();
+        mInFlight = new HashMap<>();
+    }
+
+    public HostThrottle setMaxConcurrency(String host, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency < 1");
+        }
+
+        mMaxConcurrency.put(host, maxConcurrency);
+        return this;
+    }
+
+    /**
+     * Limit the request rate to a host
+     *
+     * @param host Host to limit
+     * @param permitsPerSecond Sustained requests per second
+     * @param burst Requests allowed back to back after a quiet period
+     */
+    public HostThrottle setRate(String host, double permitsPerSecond, int burst) {
+        mBuckets.put(host, new TokenBucket(permitsPerSecond, burst));
+        return this;
+    }
+
+    public synchronized int getInFlight(String host) {
+        Integer inFlight = mInFlight.get(host);
+        return inFlight != null ? inFlight : 0;
+    }
+
+    private static String hostOf(Request<?> request) {
+        String host = Uri.parse(request.getOriginUrl()).getHost();
+        return host != null ? host : "";
+    }
+
+    @Override
+    public synchronized long tryAcquire(Request<?> request) {
+        String host = hostOf(request);
+
+        Integer max = mMaxConcurrency.get(host);
+        int inFlight = getInFlight(host);
+        if (inFlight >= (max != null ? max : mDefaultMaxConcurrency)) {
+            return WAIT;
+        }
+
+        // only take a token once we know the request can actually go
+        TokenBucket bucket = mBuckets.get(host);
+        if (bucket != null) {
+            long delay = bucket.tryConsume();
+            if (delay > 0) {
+                return delay;
+            }
+        }
+
+        mInFlight.put(host, inFlight + 1);
+        return ADMIT;
+    }
+
+    @Override
+    public synchronized void release(Request<?> request) {
+        String host = hostOf(request);
+
+        int inFlight = getInFlight(host);
+        if (inFlight <= 1) {
+            mInFlight.remove(host);
+        } else {
+            mInFlight.put(host, inFlight - 1);
+        }
+    }
+
+    @Override
+    public synchronized void report(QueueMetrics metrics) {
+        long total = 0;
+        for (int inFlight : mInFlight.values()) {
+            total += inFlight;
+        }
+        metrics.put(IN_FLIGHT, total);
+    }
+}
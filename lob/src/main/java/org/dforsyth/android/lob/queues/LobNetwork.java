@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpStack;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.util.EntityUtils;
+import org.dforsyth.android.lob.DeadlineExceededError;
+import org.dforsyth.android.lob.DownloadRequest;
+import org.dforsyth.android.lob.ObjectRequest;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The {@link com.android.volley.Network} used by {@link SimpleQueue}. Fails requests whose deadline
+ * has passed before they touch the network, moves requests that can't connect to another endpoint
+ * in their {@link org.dforsyth.android.lob.EndpointPool}, and streams {@link DownloadRequest} bodies
+ * to their sinks instead of buffering them.
+ */
+public class LobNetwork extends BasicNetwork {
+    private final static String CONTENT_RANGE_UNIT = "bytes ";
+
+    public LobNetwork(HttpStack httpStack) {
+        super(httpStack);
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        if (request instanceof ObjectRequest) {
+            return performObjectRequest((ObjectRequest<?>) request);
+        }
+
+        if (request instanceof DownloadRequest) {
+            return performDownload((DownloadRequest) request);
+        }
+
+        return super.performRequest(request);
+    }
+
+    private NetworkResponse performObjectRequest(ObjectRequest<?> request) throws VolleyError {
+        while (true) {
+            if (request.isExpired()) {
+                request.addMarker("network-discard-expired");
+                throw new DeadlineExceededError();
+            }
+
+            try {
+                return super.performRequest(request);
+            } catch (NoConnectionError e) {
+                // the host couldn't be reached at all, another base URI might be
+                if (request.isCanceled() || !request.failover()) {
+                    throw e;
+                }
+                request.addMarker("network-failover");
+            }
+        }
+    }
+
+    private NetworkResponse performDownload(DownloadRequest request) throws VolleyError {
+        long requestStart = SystemClock.elapsedRealtime();
+        while (true) {
+            if (request.isExpired()) {
+                request.addMarker("network-discard-expired");
+                throw new DeadlineExceededError();
+            }
+
+            HttpResponse httpResponse = null;
+            long attemptStart = SystemClock.elapsedRealtime();
+            try {
+                httpResponse = mHttpStack.performRequest(request, Collections.<String, String>emptyMap());
+
+                int statusCode = httpResponse.getStatusLine().getStatusCode();
+                Map<String, String> headers = convertHeaders(httpResponse.getAllHeaders());
+                HttpEntity entity = httpResponse.getEntity();
+                long offset = request.getRequestedOffset();
+
+                if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0) {
+                    if (entity != null) {
+                        entity.consumeContent();
+                    }
+
+                    long elapsed = SystemClock.elapsedRealtime() - requestStart;
+                    if (getContentRangeTotal(headers.get(Constants.HEADER_CONTENT_RANGE)) == offset) {
+                        // the sink already holds the whole body
+                        request.reportEndpoint(SystemClock.elapsedRealtime() - attemptStart);
+                        request.onAlreadyComplete(offset);
+                        return new NetworkResponse(statusCode, new byte[0], headers, false, elapsed);
+                    }
+
+                    // the body on the server is shorter than what we have, so it isn't ours any more
+                    request.addMarker("network-range-restart");
+                    request.restart();
+                    continue;
+                }
+
+                if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                    // error bodies are small, keep them for the caller
+                    byte[] data = entity != null ? EntityUtils.toByteArray(entity) : new byte[0];
+                    NetworkResponse networkResponse = new NetworkResponse(
+                            statusCode, data, headers, false, SystemClock.elapsedRealtime() - requestStart);
+
+                    if (statusCode == HttpStatus.SC_UNAUTHORIZED || statusCode == HttpStatus.SC_FORBIDDEN) {
+                        attemptRetryOnException("auth", request, new AuthFailureError(networkResponse));
+                        continue;
+                    }
+                    if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                        request.reportEndpoint(-1);
+                    }
+                    throw new ServerError(networkResponse);
+                }
+
+                boolean partial = statusCode == HttpStatus.SC_PARTIAL_CONTENT;
+                if (partial && getContentRangeStart(headers.get(Constants.HEADER_CONTENT_RANGE)) != offset) {
+                    if (entity != null) {
+                        entity.consumeContent();
+                    }
+
+                    // a range we didn't ask for can't be appended
+                    NetworkResponse networkResponse = new NetworkResponse(
+                            statusCode, new byte[0], headers, false, SystemClock.elapsedRealtime() - requestStart);
+                    if (offset == 0) {
+                        throw new ServerError(networkResponse);
+                    }
+                    request.addMarker("network-range-restart");
+                    request.restart();
+                    continue;
+                }
+
+                // a 200 answering a Range request is the whole body, the sink starts over
+                if (entity != null) {
+                    request.writeEntity(entity, partial, DownloadRequest.getValidator(headers), mPool);
+                }
+
+                request.reportEndpoint(SystemClock.elapsedRealtime() - attemptStart);
+                return new NetworkResponse(
+                        statusCode, new byte[0], headers, false, SystemClock.elapsedRealtime() - requestStart);
+            } catch (SocketTimeoutException e) {
+                attemptRetryOnException("socket", request, new TimeoutError());
+            } catch (ConnectTimeoutException e) {
+                attemptRetryOnException("connection", request, new TimeoutError());
+            } catch (MalformedURLException e) {
+                throw new RuntimeException("Bad URL " + request.getUrl(), e);
+            } catch (IOException e) {
+                if (httpResponse == null) {
+                    // the host couldn't be reached at all, another base URI might be
+                    if (!request.isCanceled() && request.failover()) {
+                        request.addMarker("network-failover");
+                        continue;
+                    }
+                    throw new NoConnectionError(e);
+                }
+                if (request.isCanceled()) {
+                    throw new NetworkError(e);
+                }
+                // the body broke off, the next attempt picks up where this one stopped
+                attemptRetryOnException("body", request, new NetworkError(e));
+            }
+        }
+    }
+
+    /**
+     * @param contentRange A Content-Range value, e.g. "bytes 100-199/200"
+     * @return The first byte of the range, or -1 if there isn't one
+     */
+    static long getContentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith(CONTENT_RANGE_UNIT)) {
+            return -1;
+        }
+
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(CONTENT_RANGE_UNIT.length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param contentRange A Content-Range value, e.g. "bytes *&#47;200"
+     * @return The length of the whole body, or -1 if the server didn't say
+     */
+    static long getContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void attemptRetryOnException(String logPrefix, Request<?> request, VolleyError exception) throws VolleyError {
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+        int oldTimeout = request.getTimeoutMs();
+
+        retryPolicy.retry(exception);
+
+        request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.android.volley.Request;
+
+import org.dforsyth.android.lob.BaseRequest;
+import org.dforsyth.android.lob.ObjectRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link Throttle} that keeps the estimated size of in-flight responses under a budget.
+ *
+ * A request's size comes from its {@link ObjectRequest#getResponseSizeHint()} if it has one,
+ * otherwise from the size of the last response from the same endpoint, otherwise from a default.
+ * A request is always admitted when nothing else is in flight, so a response larger than the whole
+ * budget still goes out eventually.
+ *
+ * The first request refused for lack of room reserves its estimate. Later requests only get the
+ * room left over, so a stream of small requests can't keep a large one waiting forever.
+ */
+public class MemoryThrottle implements Throttle {
+    public final static String IN_FLIGHT_BYTES = "memory.in_flight_bytes";
+    public final static String BUDGET_BYTES = "memory.budget_bytes";
+    public final static String PEAK_BYTES = "memory.peak_bytes";
+    public final static String RESERVED_BYTES = "memory.reserved_bytes";
+
+    private final static int MAX_ENDPOINTS = 256;
+
+    private final long mBudget;
+    private final long mDefaultEstimate;
+
+    private final Map<Request<?>, Long> mEstimates;
+    private final LruCache<String, Long> mObserved;
+
+    private long mInFlightBytes;
+    private long mPeakBytes;
+
+    private Request<?> mReserved;
+    private long mReservedBytes;
+
+    /**
+     * @param budgetBytes Estimated response bytes allowed in memory at once
+     * @param defaultEstimate Estimate for requests we know nothing about
+     */
+    public MemoryThrottle(long budgetBytes, long defaultEstimate) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("budgetBytes <= 0");
+        }
+
+        mBudget = budgetBytes;
+        mDefaultEstimate = defaultEstimate;
+        mEstimates = new HashMap<>();
+        mObserved = new LruCache<>(MAX_ENDPOINTS);
+    }
+
+    public synchronized long getInFlightBytes() {
+        return mInFlightBytes;
+    }
+
+    /**
+     * @return The estimate held back for the oldest request waiting on the budget
+     */
+    public synchronized long getReservedBytes() {
+        return mReservedBytes;
+    }
+
+    public long getBudgetBytes() {
+        return mBudget;
+    }
+
+    private static String endpointOf(Request<?> request) {
+        Uri uri = Uri.parse(request.getOriginUrl());
+        return uri.getHost() + uri.getPath();
+    }
+
+    private long estimate(Request<?> request) {
+        if (request instanceof ObjectRequest) {
+            long hint = ((ObjectRequest<?>) request).getResponseSizeHint();
+            if (hint >= 0) {
+                return hint;
+            }
+        }
+
+        Long observed = mObserved.get(endpointOf(request));
+        return observed != null ? observed : mDefaultEstimate;
+    }
+
+    private void reserve(Request<?> request, long estimate) {
+        mReserved = request;
+        mReservedBytes = request != null ? estimate : 0;
+    }
+
+    @Override
+    public synchronized long tryAcquire(Request<?> request) {
+        long estimate = estimate(request);
+
+        // the queue drops canceled and expired requests without telling us
+        if (mReserved != null && mReserved != request && (mReserved.isCanceled()
+                || (mReserved instanceof BaseRequest && ((BaseRequest<?>) mReserved).isExpired()))) {
+            reserve(null, 0);
+        }
+
+        long reserved = mReserved == request ? 0 : mReservedBytes;
+        if ((mInFlightBytes > 0 || reserved > 0) && mInFlightBytes + reserved + estimate > mBudget) {
+            if (mReserved == null) {
+                reserve(request, estimate);
+            }
+            return WAIT;
+        }
+
+        if (mReserved == request) {
+            reserve(null, 0);
+        }
+        mEstimates.put(request, estimate);
+        mInFlightBytes += estimate;
+        mPeakBytes = Math.max(mPeakBytes, mInFlightBytes);
+        return ADMIT;
+    }
+
+    @Override
+    public synchronized void release(Request<?> request) {
+        Long estimate = mEstimates.remove(request);
+        if (estimate == null) {
+            return;
+        }
+
+        mInFlightBytes -= estimate;
+
+        if (request instanceof ObjectRequest) {
+            long actual = ((ObjectRequest<?>) request).getResponseBytes();
+            if (actual >= 0) {
+                mObserved.put(endpointOf(request), actual);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void report(QueueMetrics metrics) {
+        metrics.put(IN_FLIGHT_BYTES, mInFlightBytes);
+        metrics.put(BUDGET_BYTES, mBudget);
+        metrics.put(PEAK_BYTES, mPeakBytes);
+        metrics.put(RESERVED_BYTES, mReservedBytes);
+    }
+}
@@ -35,8 +35,12 @@ import android.util.Log;
 
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.DiskBasedCache;
 import com.android.volley.toolbox.HttpStack;
-import com.android.volley.toolbox.Volley;
+
+import org.dforsyth.android.lob.stacks.LobStack;
+
+import java.io.File;
 
 /**
  * A simple LobQueue
@@ -44,6 +48,8 @@ import com.android.volley.toolbox.Volley;
 public class SimpleQueue implements LobQueue {
     private static String TAG = SimpleQueue.class.getSimpleName();
 
+    private static final String CACHE_DIR = "volley";
+
     private HttpStack mHttpStack;
     private RequestQueue mQueue;
 
@@ -62,11 +68,12 @@ public class SimpleQueue implements LobQueue {
             return;
         }
 
-        if (mHttpStack != null) {
-            mQueue = Volley.newRequestQueue(context, mHttpStack);
-        } else {
-            mQueue = Volley.newRequestQueue(context);
-        }
+        // what Volley.newRequestQueue does, but with our own Network
+        HttpStack stack = mHttpStack != null ? mHttpStack : new LobStack();
+        mQueue = new RequestQueue(
+                new DiskBasedCache(new File(context.getCacheDir(), CACHE_DIR)),
+                new LobNetwork(stack)
+        );
         mQueue.start();
     }
 
@@ -80,6 +87,13 @@ public class SimpleQueue implements LobQueue {
         mQueue.cancelAll(tag);
     }
 
+    /**
+     * @return The stack passed in, or null if requests go through the default {@link LobStack}
+     */
+    public HttpStack getHttpStack() {
+        return mHttpStack;
+    }
+
     @Override
     public RequestQueue getRequestQueue() {
         return mQueue;
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import com.android.volley.Request;
+
+/**
+ * Decides when a request held by a {@link ThrottledQueue} may be handed to the network.
+ */
+public interface Throttle {
+    /**
+     * Returned by {@link #tryAcquire(com.android.volley.Request)} when the request may be dispatched.
+     */
+    public final static long ADMIT = 0;
+
+    /**
+     * Returned by {@link #tryAcquire(com.android.volley.Request)} when the request has to wait for an
+     * in-flight request to finish.
+     */
+    public final static long WAIT = -1;
+
+    /**
+     * Try to take whatever this throttle needs to let a request through. Called with the queue lock
+     * held, so implementations must not block.
+     *
+     * @param request The request that wants to be dispatched
+     * @return {@link #ADMIT}, {@link #WAIT}, or the number of milliseconds to wait before asking again
+     */
+    public long tryAcquire(Request<?> request);
+
+    /**
+     * Give back whatever {@link #tryAcquire(com.android.volley.Request)} took. Called once for every
+     * admitted request, either when it finishes or when another throttle refused it.
+     *
+     * @param request The admitted request
+     */
+    public void release(Request<?> request);
+
+    /**
+     * Add this throttle's counters to a metrics snapshot
+     *
+     * @param metrics Snapshot being built by {@link ThrottledQueue#getMetrics()}
+     */
+    public void report(QueueMetrics metrics);
+}
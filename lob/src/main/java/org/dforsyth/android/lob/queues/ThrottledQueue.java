@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.queues;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.HttpStack;
+
+import org.dforsyth.android.lob.BaseRequest;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * A {@link SimpleQueue} that holds requests back until every one of its {@link Throttle}s admits
+ * them. Held requests wait here rather than in a network dispatcher, so a request that is held back
+ * never keeps an unrelated request from going out.
+ */
+public class ThrottledQueue extends SimpleQueue {
+    private final Throttle[] mThrottles;
+
+    private final LinkedList<Request<?>> mPending;
+    private final Set<Request<?>> mAdmitted;
+
+    private Handler mHandler;
+    private long mScheduledDrain;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ThrottledQueue.this) {
+                mScheduledDrain = 0;
+            }
+            drain();
+        }
+    };
+
+    public ThrottledQueue(Throttle... throttles) {
+        this(null, throttles);
+    }
+
+    public ThrottledQueue(HttpStack stack, Throttle... throttles) {
+        super(stack);
+        mThrottles = throttles;
+        mPending = new LinkedList<>();
+        mAdmitted = new HashSet<>();
+    }
+
+    @Override
+    public void prepare(Context context) {
+        if (getRequestQueue() != null) {
+            return;
+        }
+
+        super.prepare(context);
+
+        mHandler = new Handler(Looper.getMainLooper());
+
+        getRequestQueue().addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                onFinished(request);
+            }
+        });
+    }
+
+    @Override
+    public void submitRequest(Request<?> request) {
+        synchronized (this) {
+            mPending.add(request);
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel(Object tag) {
+        synchronized (this) {
+            // held requests aren't in the RequestQueue yet, so cancelAll won't see them
+            Iterator<Request<?>> it = mPending.iterator();
+            while (it.hasNext()) {
+                Request<?> request = it.next();
+                if (request.getTag() == tag) {
+                    request.cancel();
+                    it.remove();
+                }
+            }
+        }
+
+        super.cancel(tag);
+    }
+
+    /**
+     * @return The number of requests being held back
+     */
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return The number of admitted requests that have not finished
+     */
+    public synchronized int getAdmittedCount() {
+        return mAdmitted.size();
+    }
+
+    /**
+     * @return A snapshot of this queue's counters and those of its throttles
+     */
+    public synchronized QueueMetrics getMetrics() {
+        QueueMetrics metrics = new QueueMetrics();
+        metrics.put(QueueMetrics.PENDING, mPending.size());
+        metrics.put(QueueMetrics.ADMITTED, mAdmitted.size());
+        for (Throttle throttle : mThrottles) {
+            throttle.report(metrics);
+        }
+        return metrics;
+    }
+
+    private void onFinished(Request<?> request) {
+        synchronized (this) {
+            if (!mAdmitted.remove(request)) {
+                return;
+            }
+
+            for (Throttle throttle : mThrottles) {
+                throttle.release(request);
+            }
+        }
+
+        drain();
+    }
+
+    private long acquire(Request<?> request) {
+        for (int i = 0; i < mThrottles.length; i++) {
+            long delay = mThrottles[i].tryAcquire(request);
+            if (delay != Throttle.ADMIT) {
+                for (int j = 0; j < i; j++) {
+                    mThrottles[j].release(request);
+                }
+                return delay;
+            }
+        }
+
+        return Throttle.ADMIT;
+    }
+
+    private synchronized void drain() {
+        long retryDelay = Long.MAX_VALUE;
+
+        Iterator<Request<?>> it = mPending.iterator();
+        while (it.hasNext()) {
+            Request<?> request = it.next();
+
+            if (request.isCanceled()) {
+                it.remove();
+                continue;
+            }
+
+            // let the network fail expired requests right away instead of holding them
+            if (request instanceof BaseRequest && ((BaseRequest<?>) request).isExpired()) {
+                it.remove();
+                getRequestQueue().add(request);
+                continue;
+            }
+
+            long delay = acquire(request);
+            if (delay == Throttle.ADMIT) {
+                it.remove();
+                mAdmitted.add(request);
+                getRequestQueue().add(request);
+            } else {
+                if (delay > 0) {
+                    retryDelay = Math.min(retryDelay, delay);
+                }
+
+                // come back when the request expires, even if no throttle frees up by then
+                if (request instanceof BaseRequest) {
+                    retryDelay = Math.min(retryDelay, ((BaseRequest<?>) request).getRemainingMs());
+                }
+            }
+        }
+
+        if (retryDelay != Long.MAX_VALUE) {
+            scheduleDrain(retryDelay);
+        }
+    }
+
+    private void scheduleDrain(long delay) {
+        long at = SystemClock.uptimeMillis() + delay;
+        if (mScheduledDrain != 0 && mScheduledDrain <= at) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mDrainRunnable);
+        mHandler.postAtTime(mDrainRunnable, at);
+        mScheduledDrain = at;
+    }
+}
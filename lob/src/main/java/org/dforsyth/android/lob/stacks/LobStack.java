@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.stacks;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.toolbox.HttpStack;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.LobBody;
+import org.dforsyth.android.lob.ObjectRequest;
+import org.dforsyth.android.lob.util.Constants;
+
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An {@link HttpStack} over {@link HttpURLConnection}. Works like Volley's HurlStack, but lets
+ * {@link Abortable} requests close their connection when they are cancelled, and streams
+ * {@link LobBody} request bodies straight to the connection.
+ *
+ * Responses are requested with gzip or deflate and decompressed as they are read, so every API level
+ * behaves the same. Deflate is read with or without its zlib wrapper. A request that sets its own
+ * Accept-Encoding gets the body as the server sent it.
+ */
+public class LobStack implements HttpStack {
+    final static String ACCEPT_ENCODING = Constants.ENCODING_GZIP + ", " + Constants.ENCODING_DEFLATE;
+
+    private final SSLSocketFactory mSslSocketFactory;
+
+    public LobStack() {
+        this(null);
+    }
+
+    public LobStack(SSLSocketFactory sslSocketFactory) {
+        mSslSocketFactory = sslSocketFactory;
+    }
+
+    /**
+     * @return Whether hosts are resolved through {@link org.dforsyth.android.lob.util.DnsCache#getDefault()},
+     *         which has to be cleared when the device changes networks
+     */
+    public boolean usesDnsCache() {
+        return false;
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+        if (request.isCanceled()) {
+            throw new IOException("Request cancelled");
+        }
+
+        if (request instanceof ObjectRequest) {
+            ((ObjectRequest<?>) request).setWireBytes(-1);
+        }
+
+        HashMap<String, String> map = new HashMap<>();
+        map.putAll(request.getHeaders());
+        map.putAll(additionalHeaders);
+
+        boolean decompress = !containsHeader(map, Constants.HEADER_ACCEPT_ENCODING);
+        if (decompress) {
+            map.put(Constants.HEADER_ACCEPT_ENCODING, ACCEPT_ENCODING);
+        }
+
+        URL url = new URL(request.getUrl());
+        final HttpURLConnection connection = openConnection(url, request);
+
+        if (request instanceof Abortable) {
+            ((Abortable) request).setConnection(new Abortable.Connection() {
+                @Override
+                public void abort() {
+                    connection.disconnect();
+                }
+            });
+        }
+
+        for (String headerName : map.keySet()) {
+            connection.addRequestProperty(headerName, map.get(headerName));
+        }
+        setConnectionParametersForRequest(connection, request);
+
+        ProtocolVersion protocolVersion = new ProtocolVersion("HTTP", 1, 1);
+        int responseCode = connection.getResponseCode();
+        if (responseCode == -1) {
+            throw new IOException("Could not retrieve response code from HttpUrlConnection.");
+        }
+
+        StatusLine responseStatus = new BasicStatusLine(protocolVersion, responseCode, connection.getResponseMessage());
+        BasicHttpResponse response = new BasicHttpResponse(responseStatus);
+        boolean decoded = false;
+        if (hasResponseBody(request.getMethod(), responseCode)) {
+            BasicHttpEntity entity = entityFromConnection(connection);
+            decoded = decompress && decodeEntity(entity, request);
+            response.setEntity(entity);
+        }
+
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() == null) {
+                continue;
+            }
+
+            // these describe the compressed body, not the one we hand back
+            if (decoded && (Constants.HEADER_CONTENT_ENCODING.equalsIgnoreCase(header.getKey())
+                    || Constants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(header.getKey()))) {
+                continue;
+            }
+
+            Header h = new BasicHeader(header.getKey(), header.getValue().get(0));
+            response.addHeader(h);
+        }
+
+        return response;
+    }
+
+    static boolean containsHeader(Map<String, String> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (name.equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the compressed bytes under a decompressing stream, and hands the count to the request
+     * when the body has been read. Content-Length is dropped along with the compression, so this is
+     * the only record of what actually came over the network.
+     */
+    private static class WireCountingInputStream extends FilterInputStream {
+        private final ObjectRequest<?> mRequest;
+        private long mCount;
+
+        WireCountingInputStream(InputStream in, ObjectRequest<?> request) {
+            super(in);
+            mRequest = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            } else {
+                mRequest.setWireBytes(mCount);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            } else if (read == -1) {
+                mRequest.setWireBytes(mCount);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mRequest.setWireBytes(mCount);
+            super.close();
+        }
+    }
+
+    /**
+     * Swap a compressed entity's content for a stream that decompresses it
+     *
+     * @return True if the entity was compressed
+     */
+    static boolean decodeEntity(BasicHttpEntity entity, Request<?> request) throws IOException {
+        // getContent() can only be called once per setContent(), isStreaming() checks without it
+        Header encoding = entity.getContentEncoding();
+        if (encoding == null || !entity.isStreaming()) {
+            return false;
+        }
+
+        String value = encoding.getValue().trim();
+        boolean gzip = Constants.ENCODING_GZIP.equalsIgnoreCase(value);
+        if (!gzip && !Constants.ENCODING_DEFLATE.equalsIgnoreCase(value)) {
+            return false;
+        }
+
+        InputStream raw = entity.getContent();
+        if (request instanceof ObjectRequest) {
+            raw = new WireCountingInputStream(raw, (ObjectRequest<?>) request);
+        }
+
+        // an empty body has no gzip header to read
+        PushbackInputStream in = new PushbackInputStream(raw, 2);
+        int first = in.read();
+        int second = first != -1 ? in.read() : -1;
+        if (second != -1) {
+            in.unread(second);
+        }
+        if (first != -1) {
+            in.unread(first);
+        }
+
+        InputStream content;
+        if (first == -1) {
+            content = in;
+        } else if (gzip) {
+            content = new GZIPInputStream(in);
+        } else if (isZlibHeader(first, second)) {
+            content = new InflaterInputStream(in);
+        } else {
+            // plenty of servers send deflate without the zlib wrapper the spec asks for
+            content = new InflaterInputStream(in, new Inflater(true));
+        }
+
+        entity.setContent(content);
+        entity.setContentLength(-1);
+        entity.setContentEncoding((Header) null);
+        return true;
+    }
+
+    /**
+     * A zlib stream opens with a deflate method byte and a check that makes the first two bytes a
+     * multiple of 31
+     */
+    private static boolean isZlibHeader(int first, int second) {
+        return second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+    }
+
+    /**
+     * Create an {@link HttpURLConnection} for the specified {@code url}.
+     */
+    protected HttpURLConnection createConnection(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private HttpURLConnection openConnection(URL url, Request<?> request) throws IOException {
+        HttpURLConnection connection = createConnection(url);
+
+        int timeoutMs = request.getTimeoutMs();
+        connection.setConnectTimeout(timeoutMs);
+        connection.setReadTimeout(timeoutMs);
+        connection.setUseCaches(false);
+        connection.setDoInput(true);
+
+        if ("https".equals(url.getProtocol()) && mSslSocketFactory != null) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(mSslSocketFactory);
+        }
+
+        return connection;
+    }
+
+    static boolean hasResponseBody(int requestMethod, int responseCode) {
+        return requestMethod != Method.HEAD
+                && !(100 <= responseCode && responseCode < HttpURLConnection.HTTP_OK)
+                && responseCode != HttpURLConnection.HTTP_NO_CONTENT
+                && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    private static BasicHttpEntity entityFromConnection(HttpURLConnection connection) {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        InputStream inputStream;
+        try {
+            inputStream = connection.getInputStream();
+        } catch (IOException ioe) {
+            inputStream = connection.getErrorStream();
+        }
+        entity.setContent(inputStream);
+        entity.setContentLength(connection.getContentLength());
+        entity.setContentEncoding(connection.getContentEncoding());
+        entity.setContentType(connection.getContentType());
+        return entity;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setConnectionParametersForRequest(HttpURLConnection connection, Request<?> request) throws IOException, AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                byte[] postBody = request.getPostBody();
+                if (postBody != null) {
+                    connection.setRequestMethod("POST");
+                    writeBody(connection, request.getPostBodyContentType(), postBody);
+                }
+                break;
+            case Method.GET:
+                connection.setRequestMethod("GET");
+                break;
+            case Method.DELETE:
+                connection.setRequestMethod("DELETE");
+                break;
+            case Method.POST:
+                connection.setRequestMethod("POST");
+                addBodyIfExists(connection, request);
+                break;
+            case Method.PUT:
+                connection.setRequestMethod("PUT");
+                addBodyIfExists(connection, request);
+                break;
+            case Method.HEAD:
+                connection.setRequestMethod("HEAD");
+                break;
+            case Method.OPTIONS:
+                connection.setRequestMethod("OPTIONS");
+                break;
+            case Method.TRACE:
+                connection.setRequestMethod("TRACE");
+                break;
+            case Method.PATCH:
+                connection.setRequestMethod("PATCH");
+                addBodyIfExists(connection, request);
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    private static void addBodyIfExists(HttpURLConnection connection, Request<?> request) throws IOException, AuthFailureError {
+        if (request instanceof ObjectRequest) {
+            ObjectRequest<?> objectRequest = (ObjectRequest<?>) request;
+            LobBody lobBody = objectRequest.getLobBody();
+            if (lobBody != null) {
+                streamBody(connection, request.getBodyContentType(), lobBody, objectRequest.isCompressBody());
+                return;
+            }
+        }
+
+        byte[] body = request.getBody();
+        if (body != null) {
+            writeBody(connection, request.getBodyContentType(), body);
+        }
+    }
+
+    private static void streamBody(HttpURLConnection connection, String contentType, LobBody body, boolean compress) throws IOException {
+        connection.setDoOutput(true);
+        connection.setRequestProperty(Constants.HEADER_CONTENT_TYPE, contentType);
+
+        long length = body.getContentLength();
+        if (compress) {
+            // the compressed length isn't known until it has been written
+            connection.setRequestProperty(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+            connection.setChunkedStreamingMode(0);
+        } else if (length >= 0 && length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) length);
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
+
+        OutputStream out = connection.getOutputStream();
+        if (compress) {
+            out = new GZIPOutputStream(out);
+        }
+
+        try {
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeBody(HttpURLConnection connection, String contentType, byte[] body) throws IOException {
+        connection.setDoOutput(true);
+        connection.setRequestProperty(Constants.HEADER_CONTENT_TYPE, contentType);
+        DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+        out.write(body);
+        out.close();
+    }
+}
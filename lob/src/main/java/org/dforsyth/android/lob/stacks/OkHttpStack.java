@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.stacks;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request.Method;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.dforsyth.android.lob.LobBody;
+import org.dforsyth.android.lob.ObjectRequest;
+import org.dforsyth.android.lob.util.Constants;
+import org.dforsyth.android.lob.util.DnsCache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link LobStack} that sends its requests through OkHttp's own calls. Connections are kept in an
+ * explicit pool and reused across requests, and HTTPS hosts that support HTTP/2 get one multiplexed
+ * connection for every request in flight instead of one connection each. Hosts are resolved through
+ * {@link DnsCache#getDefault()}, so a client's warm-up lookup is reused.
+ *
+ * Bodies are streamed, compressed and decompressed the same way {@link LobStack} does it, and a
+ * cancelled {@link Abortable} request cancels its call.
+ *
+ * OkHttp is not a dependency of Lob. Add com.squareup.okhttp3:okhttp to your app to use this stack.
+ */
+public class OkHttpStack extends LobStack {
+    public final static int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public final static long DEFAULT_KEEP_ALIVE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private final static byte[] EMPTY_BODY = new byte[0];
+
+    private final OkHttpClient mClient;
+    private final boolean mUsesDnsCache;
+
+    // every connection a request has gone out on, to tell new connections from reused ones
+    private final Map<Connection, Boolean> mSeen = new WeakHashMap<>();
+    private int mOpened;
+    private int mReused;
+    private int mMultiplexed;
+
+    public OkHttpStack() {
+        this(new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(
+                        DEFAULT_MAX_IDLE_CONNECTIONS,
+                        DEFAULT_KEEP_ALIVE_MS,
+                        TimeUnit.MILLISECONDS
+                ))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .dns(new Dns() {
+                    @Override
+                    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                        return Arrays.asList(DnsCache.getDefault().lookup(hostname));
+                    }
+                })
+                .build(), true);
+    }
+
+    /**
+     * @param client Client to take the connection pool, protocols and TLS settings from. Timeouts
+     *               come from each request's {@link com.android.volley.RetryPolicy} instead.
+     */
+    public OkHttpStack(OkHttpClient client) {
+        this(client, false);
+    }
+
+    private OkHttpStack(OkHttpClient client, boolean usesDnsCache) {
+        mUsesDnsCache = usesDnsCache;
+        mClient = client.newBuilder()
+                .addNetworkInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        countConnection(chain.connection());
+                        return chain.proceed(chain.request());
+                    }
+                })
+                .build();
+    }
+
+    public OkHttpClient getClient() {
+        return mClient;
+    }
+
+    @Override
+    public boolean usesDnsCache() {
+        return mUsesDnsCache;
+    }
+
+    @Override
+    public HttpResponse performRequest(com.android.volley.Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        if (request.isCanceled()) {
+            throw new IOException("Request cancelled");
+        }
+
+        if (request instanceof ObjectRequest) {
+            ((ObjectRequest<?>) request).setWireBytes(-1);
+        }
+
+        HashMap<String, String> map = new HashMap<>();
+        map.putAll(request.getHeaders());
+        map.putAll(additionalHeaders);
+
+        // setting Accept-Encoding turns off OkHttp's own gzip handling, so decoding is done here
+        boolean decompress = !containsHeader(map, Constants.HEADER_ACCEPT_ENCODING);
+        if (decompress) {
+            map.put(Constants.HEADER_ACCEPT_ENCODING, ACCEPT_ENCODING);
+        }
+
+        Request.Builder builder = new Request.Builder().url(request.getUrl());
+        for (Map.Entry<String, String> header : map.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        setMethod(builder, request);
+
+        int timeoutMs = request.getTimeoutMs();
+        OkHttpClient client = mClient.newBuilder()
+                .connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .writeTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+
+        final Call call = client.newCall(builder.build());
+        if (request instanceof Abortable) {
+            ((Abortable) request).setConnection(new Abortable.Connection() {
+                @Override
+                public void abort() {
+                    call.cancel();
+                }
+            });
+        }
+
+        Response okResponse = call.execute();
+
+        ProtocolVersion protocolVersion = new ProtocolVersion("HTTP", 1, 1);
+        StatusLine responseStatus = new BasicStatusLine(protocolVersion, okResponse.code(), okResponse.message());
+        BasicHttpResponse response = new BasicHttpResponse(responseStatus);
+
+        boolean decoded = false;
+        ResponseBody body = okResponse.body();
+        if (hasResponseBody(request.getMethod(), okResponse.code())) {
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(body.byteStream());
+            entity.setContentLength(body.contentLength());
+            entity.setContentEncoding(okResponse.header(Constants.HEADER_CONTENT_ENCODING));
+            entity.setContentType(okResponse.header(Constants.HEADER_CONTENT_TYPE));
+            decoded = decompress && decodeEntity(entity, request);
+            response.setEntity(entity);
+        } else if (body != null) {
+            body.close();
+        }
+
+        Headers headers = okResponse.headers();
+        for (int i = 0; i < headers.size(); i++) {
+            String name = headers.name(i);
+
+            // these describe the compressed body, not the one we hand back
+            if (decoded && (Constants.HEADER_CONTENT_ENCODING.equalsIgnoreCase(name)
+                    || Constants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(name))) {
+                continue;
+            }
+
+            response.addHeader(name, headers.value(i));
+        }
+
+        return response;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setMethod(Request.Builder builder, com.android.volley.Request<?> request)
+            throws IOException, AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                byte[] postBody = request.getPostBody();
+                if (postBody != null) {
+                    builder.post(RequestBody.create(MediaType.parse(request.getPostBodyContentType()), postBody));
+                }
+                break;
+            case Method.GET:
+                builder.get();
+                break;
+            case Method.DELETE:
+                builder.delete();
+                break;
+            case Method.POST:
+                builder.post(createBody(builder, request));
+                break;
+            case Method.PUT:
+                builder.put(createBody(builder, request));
+                break;
+            case Method.HEAD:
+                builder.head();
+                break;
+            case Method.OPTIONS:
+                builder.method("OPTIONS", null);
+                break;
+            case Method.TRACE:
+                builder.method("TRACE", null);
+                break;
+            case Method.PATCH:
+                builder.patch(createBody(builder, request));
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    /**
+     * OkHttp wants a body for every POST, PUT and PATCH, so a request without one gets an empty body
+     */
+    private static RequestBody createBody(Request.Builder builder, com.android.volley.Request<?> request)
+            throws AuthFailureError {
+        MediaType contentType = MediaType.parse(request.getBodyContentType());
+
+        if (request instanceof ObjectRequest) {
+            ObjectRequest<?> objectRequest = (ObjectRequest<?>) request;
+            LobBody lobBody = objectRequest.getLobBody();
+            if (lobBody != null) {
+                if (objectRequest.isCompressBody()) {
+                    builder.header(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+                }
+                return new StreamingBody(contentType, lobBody, objectRequest.isCompressBody());
+            }
+        }
+
+        byte[] body = request.getBody();
+        return RequestBody.create(contentType, body != null ? body : EMPTY_BODY);
+    }
+
+    /**
+     * Writes a {@link LobBody} straight to the call. OkHttp may write it again on a retry, which
+     * {@link LobBody} allows.
+     */
+    private static class StreamingBody extends RequestBody {
+        private final MediaType mContentType;
+        private final LobBody mBody;
+        private final boolean mCompress;
+
+        StreamingBody(MediaType contentType, LobBody body, boolean compress) {
+            mContentType = contentType;
+            mBody = body;
+            mCompress = compress;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mContentType;
+        }
+
+        @Override
+        public long contentLength() {
+            // the compressed length isn't known until it has been written
+            return mCompress ? -1 : mBody.getContentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            if (!mCompress) {
+                mBody.writeTo(sink.outputStream());
+                return;
+            }
+
+            // finish rather than close, the sink belongs to OkHttp
+            GZIPOutputStream out = new GZIPOutputStream(sink.outputStream());
+            mBody.writeTo(out);
+            out.finish();
+        }
+    }
+
+    private synchronized void countConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        if (mSeen.put(connection, Boolean.TRUE) != null) {
+            mReused++;
+            return;
+        }
+
+        mOpened++;
+        if (connection.protocol() == Protocol.HTTP_2 || connection.protocol() == Protocol.H2_PRIOR_KNOWLEDGE) {
+            mMultiplexed++;
+        }
+    }
+
+    /**
+     * @return Connections open in the pool, idle or not
+     */
+    public int getConnectionCount() {
+        return mClient.connectionPool().connectionCount();
+    }
+
+    /**
+     * @return Connections in the pool that no request is using
+     */
+    public int getIdleConnectionCount() {
+        return mClient.connectionPool().idleConnectionCount();
+    }
+
+    /**
+     * @return Connections opened since the stack was created
+     */
+    public synchronized int getOpenedConnectionCount() {
+        return mOpened;
+    }
+
+    /**
+     * @return Requests that went out on a connection an earlier request opened
+     */
+    public synchronized int getReusedConnectionCount() {
+        return mReused;
+    }
+
+    /**
+     * @return Connections opened that speak HTTP/2 and can carry several requests at once
+     */
+    public synchronized int getMultiplexedConnectionCount() {
+        return mMultiplexed;
+    }
+}
@@ -7,6 +7,7 @@ import com.android.volley.toolbox.HurlStack;
 import org.apache.http.HttpResponse;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Map;
 
 /**
@@ -17,18 +18,58 @@ public class TestStack extends HurlStack {
 
     TestEndpoint[] mEndpoints;
 
+    long mLatencyMs;
+    long mBytesPerSecond;
+
     public TestStack(TestEndpoint[] endpoints) {
         mEndpoints = endpoints;
     }
 
+    /**
+     * Make every response take at least this long, like a round trip on a slow network
+     */
+    public TestStack setLatency(long latencyMs) {
+        mLatencyMs = latencyMs;
+        return this;
+    }
+
+    /**
+     * Make response bodies arrive no faster than this, or 0 for no limit
+     */
+    public TestStack setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
     @Override
     public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
         for (TestEndpoint endpoint : mEndpoints) {
             if (endpoint.matchRequest(request)) {
-                return endpoint.prepareResponse(request, additionalHeaders);
+                HttpResponse response = endpoint.prepareResponse(request, additionalHeaders);
+                throttle(response);
+                return response;
             }
         }
 
         throw new IOException("MockAuthStack: Could not complete request.");
     }
+
+    private void throttle(HttpResponse response) throws IOException {
+        long delayMs = mLatencyMs;
+        if (mBytesPerSecond > 0 && response.getEntity() != null) {
+            long length = Math.max(0, response.getEntity().getContentLength());
+            delayMs += length * 1000 / mBytesPerSecond;
+        }
+
+        if (delayMs <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
 }
@@ -9,4 +9,8 @@ public class TestStackQueue extends SimpleQueue {
     public TestStackQueue(TestEndpoint[] endpoint) {
         super(new TestStack(endpoint));
     }
+
+    public TestStackQueue(TestStack stack) {
+        super(stack);
+    }
 }
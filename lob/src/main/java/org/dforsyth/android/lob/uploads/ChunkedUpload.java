@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.uploads;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.volley.VolleyError;
+
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobBody;
+import org.dforsyth.android.lob.LobRequest;
+import org.dforsyth.android.lob.LobResponse;
+import org.dforsyth.android.lob.LobScope;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Uploads a file in chunks, several at a time, and commits it once every chunk is in. A chunk that
+ * fails is sent again on its own, so a failure late in a large upload doesn't mean sending the whole
+ * file again. Each chunk request still goes through the client's
+ * {@link com.android.volley.RetryPolicy} for timeouts and auth failures before it counts as failed.
+ *
+ * All methods must be called on the main thread, and all callbacks happen there.
+ *
+ * @param <S> Decoded response of the protocol's start request
+ */
+public class ChunkedUpload<S> {
+    public final static long DEFAULT_CHUNK_SIZE = 512 * 1024;
+    public final static int DEFAULT_CONCURRENCY = 3;
+    public final static int DEFAULT_MAX_CHUNK_RETRIES = 3;
+    public final static long DEFAULT_RETRY_DELAY_MS = 1000;
+
+    /**
+     * A piece of the file
+     */
+    public static class Chunk {
+        private final int mIndex;
+        private final long mOffset;
+        private final long mLength;
+
+        private int mAttempts;
+        private LobResponse<?> mResponse;
+
+        Chunk(int index, long offset, long length) {
+            mIndex = index;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * @return The response to this chunk's request, or null if it hasn't been uploaded yet
+         */
+        public LobResponse<?> getResponse() {
+            return mResponse;
+        }
+    }
+
+    public interface Listener {
+        public void onProgress(long uploaded, long total);
+        public void onSuccess(LobResponse<?> response);
+        public void onFailure(VolleyError error);
+    }
+
+    private final Lob mClient;
+    private final File mFile;
+    private final UploadProtocol<S> mProtocol;
+    private final String mContentType;
+    private final int mConcurrency;
+    private final int mMaxChunkRetries;
+    private final long mRetryDelayMs;
+
+    private final List<Chunk> mChunks;
+    private final LinkedList<Chunk> mWaiting;
+    private final LobScope mScope;
+    private final Handler mHandler;
+
+    private Listener mListener;
+    private S mSession;
+    private int mRunning;
+    private int mDone;
+    private long mUploaded;
+    private boolean mCommitting;
+    private boolean mFinished;
+
+    private ChunkedUpload(Builder<S> builder) {
+        mClient = builder.mClient;
+        mFile = builder.mFile;
+        mProtocol = builder.mProtocol;
+        mContentType = builder.mContentType;
+        mConcurrency = builder.mConcurrency;
+        mMaxChunkRetries = builder.mMaxChunkRetries;
+        mRetryDelayMs = builder.mRetryDelayMs;
+
+        mChunks = new ArrayList<>();
+        long length = mFile.length();
+        for (long offset = 0; offset < length || mChunks.isEmpty(); offset += builder.mChunkSize) {
+            mChunks.add(new Chunk(mChunks.size(), offset, Math.min(builder.mChunkSize, length - offset)));
+        }
+
+        mWaiting = new LinkedList<>(mChunks);
+        mScope = new LobScope();
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(mChunks);
+    }
+
+    /**
+     * Start the upload
+     *
+     * @param listener Progress and completion callbacks
+     */
+    public void start(Listener listener) {
+        if (mListener != null) {
+            throw new IllegalStateException("Upload already started");
+        }
+        mListener = listener;
+
+        LobRequest<S> startRequest = mProtocol.start(mClient, mFile.length(), mChunks.size());
+        if (startRequest == null) {
+            pump();
+            return;
+        }
+
+        startRequest.requestAsync(mScope, new LobRequest.Callbacks<S>() {
+            @Override
+            public void onSuccess(LobResponse<S> response) {
+                mSession = response.getDecoded();
+                pump();
+            }
+
+            @Override
+            public void onFailure(VolleyError error) {
+                fail(error);
+            }
+        });
+    }
+
+    /**
+     * Stop the upload. Chunks on the network are aborted and no more callbacks happen.
+     */
+    public void cancel() {
+        mFinished = true;
+        mHandler.removeCallbacksAndMessages(null);
+        mScope.close();
+    }
+
+    private void pump() {
+        while (!mFinished && mRunning < mConcurrency && !mWaiting.isEmpty()) {
+            send(mWaiting.removeFirst());
+        }
+
+        if (!mFinished && !mCommitting && mDone == mChunks.size()) {
+            commit();
+        }
+    }
+
+    private void send(Chunk chunk) {
+        mRunning++;
+        chunk.mAttempts++;
+
+        LobBody body = LobBody.create(mContentType, mFile, chunk.mOffset, chunk.mLength);
+        send(mProtocol.chunk(mClient, mSession, chunk, body), chunk);
+    }
+
+    private <T> void send(LobRequest<T> request, final Chunk chunk) {
+        request.requestAsync(mScope, new LobRequest.Callbacks<T>() {
+            @Override
+            public void onSuccess(LobResponse<T> response) {
+                mRunning--;
+                chunk.mResponse = response;
+                mDone++;
+                mUploaded += chunk.mLength;
+
+                mListener.onProgress(mUploaded, mFile.length());
+                pump();
+            }
+
+            @Override
+            public void onFailure(VolleyError error) {
+                mRunning--;
+                if (mFinished) {
+                    return;
+                }
+
+                if (chunk.mAttempts > mMaxChunkRetries) {
+                    fail(error);
+                    return;
+                }
+
+                // back off, then put the chunk at the front of the line
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        mWaiting.addFirst(chunk);
+                        pump();
+                    }
+                }, mRetryDelayMs * chunk.mAttempts);
+            }
+        });
+    }
+
+    private void commit() {
+        mCommitting = true;
+        commit(mProtocol.commit(mClient, mSession, getChunks()));
+    }
+
+    private <T> void commit(LobRequest<T> request) {
+        request.requestAsync(mScope, new LobRequest.Callbacks<T>() {
+            @Override
+            public void onSuccess(LobResponse<T> response) {
+                mFinished = true;
+                mListener.onSuccess(response);
+            }
+
+            @Override
+            public void onFailure(VolleyError error) {
+                fail(error);
+            }
+        });
+    }
+
+    private void fail(VolleyError error) {
+        if (mFinished) {
+            return;
+        }
+
+        cancel();
+        mListener.onFailure(error);
+    }
+
+    /**
+     * Builder for {@link ChunkedUpload}
+     *
+     * @param <S> Decoded response of the protocol's start request
+     */
+    public static class Builder<S> {
+        private Lob mClient;
+        private File mFile;
+        private UploadProtocol<S> mProtocol;
+
+        private String mContentType = "application/octet-stream";
+        private long mChunkSize = DEFAULT_CHUNK_SIZE;
+        private int mConcurrency = DEFAULT_CONCURRENCY;
+        private int mMaxChunkRetries = DEFAULT_MAX_CHUNK_RETRIES;
+        private long mRetryDelayMs = DEFAULT_RETRY_DELAY_MS;
+
+        public Builder(Lob client, File file, UploadProtocol<S> protocol) {
+            mClient = client;
+            mFile = file;
+            mProtocol = protocol;
+        }
+
+        public Builder<S> setContentType(String contentType) {
+            mContentType = contentType;
+            return this;
+        }
+
+        public Builder<S> setChunkSize(long chunkSize) {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("chunkSize < 1");
+            }
+
+            mChunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * @param concurrency Most chunks on the network at once
+         */
+        public Builder<S> setConcurrency(int concurrency) {
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("concurrency < 1");
+            }
+
+            mConcurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * @param maxChunkRetries Times a failed chunk is sent again before the upload fails
+         */
+        public Builder<S> setMaxChunkRetries(int maxChunkRetries) {
+            mMaxChunkRetries = maxChunkRetries;
+            return this;
+        }
+
+        /**
+         * @param retryDelayMs Wait before resending a failed chunk, multiplied by its attempts so far
+         */
+        public Builder<S> setRetryDelay(long retryDelayMs) {
+            mRetryDelayMs = retryDelayMs;
+            return this;
+        }
+
+        public ChunkedUpload<S> build() {
+            if (!mFile.isFile()) {
+                throw new IllegalArgumentException("Not a file: " + mFile);
+            }
+
+            return new ChunkedUpload<S>(this);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.uploads;
+
+import org.dforsyth.android.lob.Lob;
+import org.dforsyth.android.lob.LobBody;
+import org.dforsyth.android.lob.LobRequest;
+
+import java.util.List;
+
+/**
+ * The server side of a {@link ChunkedUpload}: how to start an upload, send a chunk, and commit.
+ *
+ * @param <S> Decoded response of the start request, e.g. an upload session
+ */
+public interface UploadProtocol<S> {
+    /**
+     * @param client Client the upload runs on
+     * @param length Total length of the upload
+     * @param chunkCount Number of chunks it will be sent in
+     * @return A request that starts the upload, or null if the server doesn't need one
+     */
+    public LobRequest<S> start(Lob client, long length, int chunkCount);
+
+    /**
+     * @param client Client the upload runs on
+     * @param session Decoded response of the start request, or null if there wasn't one
+     * @param chunk The chunk to send
+     * @param body The chunk's bytes, to set as the request body
+     * @return A request that uploads the chunk
+     */
+    public LobRequest<?> chunk(Lob client, S session, ChunkedUpload.Chunk chunk, LobBody body);
+
+    /**
+     * @param client Client the upload runs on
+     * @param session Decoded response of the start request, or null if there wasn't one
+     * @param chunks Every chunk, with the response it got
+     * @return A request that finishes the upload
+     */
+    public LobRequest<?> commit(Lob client, S session, List<ChunkedUpload.Chunk> chunks);
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.util;
+
+/**
+ * Estimates the current network's bandwidth and round trip time from completed requests. Small
+ * responses are dominated by the round trip, so they sample RTT; larger ones sample throughput,
+ * less the estimated round trip. Both are moving averages, so the estimate follows the device
+ * from one network to the next.
+ */
+public class BandwidthEstimator {
+    /**
+     * Coarse network quality, for choosing between payload variants
+     */
+    public enum Quality {
+        UNKNOWN,
+        POOR,
+        MODERATE,
+        GOOD,
+        EXCELLENT
+    }
+
+    public final static long RTT_SAMPLE_MAX_BYTES = 2 * 1024;
+    public final static long THROUGHPUT_SAMPLE_MIN_BYTES = 8 * 1024;
+
+    public final static double POOR_KBPS = 150;
+    public final static double MODERATE_KBPS = 550;
+    public final static double GOOD_KBPS = 2000;
+
+    public final static long POOR_RTT_MS = 2000;
+    public final static long MODERATE_RTT_MS = 700;
+    public final static long GOOD_RTT_MS = 250;
+
+    private final static double DEFAULT_WEIGHT = 0.25;
+
+    private static BandwidthEstimator sDefault;
+
+    private final double mWeight;
+
+    private double mKbps = -1;
+    private double mRttMs = -1;
+    private long mSampleCount;
+
+    /**
+     * @return The estimator {@link org.dforsyth.android.lob.ObjectRequest}s report to
+     */
+    public static synchronized BandwidthEstimator getDefault() {
+        if (sDefault == null) {
+            sDefault = new BandwidthEstimator(DEFAULT_WEIGHT);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param weight How much each new sample moves the estimate, between 0 and 1
+     */
+    public BandwidthEstimator(double weight) {
+        if (weight <= 0 || weight > 1) {
+            throw new IllegalArgumentException("weight must be in (0, 1]");
+        }
+
+        mWeight = weight;
+    }
+
+    /**
+     * @param bytes Size of a response
+     * @param durationMs How long the request took on the network
+     */
+    public synchronized void addSample(long bytes, long durationMs) {
+        if (bytes < 0 || durationMs <= 0) {
+            return;
+        }
+
+        if (bytes <= RTT_SAMPLE_MAX_BYTES) {
+            mRttMs = average(mRttMs, durationMs);
+            mSampleCount++;
+        } else if (bytes >= THROUGHPUT_SAMPLE_MIN_BYTES) {
+            long transferMs = mRttMs > 0 ? Math.max(1, durationMs - (long) mRttMs) : durationMs;
+            // bits per millisecond are kilobits per second
+            mKbps = average(mKbps, bytes * 8.0 / transferMs);
+            mSampleCount++;
+        }
+    }
+
+    private double average(double current, double sample) {
+        return current < 0 ? sample : current + mWeight * (sample - current);
+    }
+
+    /**
+     * @return Estimated bandwidth in kilobits per second, or -1 if there are no samples
+     */
+    public synchronized double getBandwidthKbps() {
+        return mKbps;
+    }
+
+    /**
+     * @return Estimated round trip time in milliseconds, or -1 if there are no samples
+     */
+    public synchronized long getRttMs() {
+        return (long) mRttMs;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return Quality by bandwidth, or by round trip time when there's no bandwidth estimate yet
+     */
+    public synchronized Quality getQuality() {
+        if (mKbps >= 0) {
+            if (mKbps < POOR_KBPS) {
+                return Quality.POOR;
+            } else if (mKbps < MODERATE_KBPS) {
+                return Quality.MODERATE;
+            } else if (mKbps < GOOD_KBPS) {
+                return Quality.GOOD;
+            }
+            return Quality.EXCELLENT;
+        }
+
+        if (mRttMs >= 0) {
+            if (mRttMs > POOR_RTT_MS) {
+                return Quality.POOR;
+            } else if (mRttMs > MODERATE_RTT_MS) {
+                return Quality.MODERATE;
+            } else if (mRttMs > GOOD_RTT_MS) {
+                return Quality.GOOD;
+            }
+            return Quality.EXCELLENT;
+        }
+
+        return Quality.UNKNOWN;
+    }
+
+    /**
+     * Forget everything, e.g. after switching networks
+     */
+    public synchronized void reset() {
+        mKbps = -1;
+        mRttMs = -1;
+        mSampleCount = 0;
+    }
+}
@@ -38,6 +38,29 @@ import org.dforsyth.android.lob.BuildConfig;
  */
 public class Constants {
     public final static String HEADER_USER_AGENT = "User-Agent";
+    public final static String HEADER_CONTENT_TYPE = "Content-Type";
+    public final static String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    public final static String HEADER_CONTENT_LENGTH = "Content-Length";
+    public final static String HEADER_ACCEPT = "Accept";
+    public final static String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public final static String HEADER_ETAG = "ETag";
+    public final static String HEADER_DATE = "Date";
+    public final static String HEADER_IF_NONE_MATCH = "If-None-Match";
+    public final static String HEADER_LAST_MODIFIED = "Last-Modified";
+    public final static String HEADER_RANGE = "Range";
+    public final static String HEADER_IF_RANGE = "If-Range";
+    public final static String HEADER_CONTENT_RANGE = "Content-Range";
+    public final static String HEADER_A_IM = "A-IM";
+    public final static String HEADER_IM = "IM";
+    public final static String HEADER_DELTA_BASE = "Delta-Base";
+    public final static String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    public final static String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+    public final static String MEDIA_TYPE_JSON = "application/json";
+
+    public final static String ENCODING_GZIP = "gzip";
+    public final static String ENCODING_DEFLATE = "deflate";
+    public final static String ENCODING_IDENTITY = "identity";
 
     public final static String DEFAULT_USER_AGENT = String.format("Lob %s", BuildConfig.VERSION_NAME);
 }
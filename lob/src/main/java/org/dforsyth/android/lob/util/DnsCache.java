@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.util;
+
+import android.os.SystemClock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches resolved host addresses for a fixed time, so a host resolved ahead of time doesn't cost a
+ * lookup when the first request goes out. Failed lookups are not cached.
+ */
+public class DnsCache {
+    public final static long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static DnsCache sDefault;
+
+    private static class Entry {
+        final InetAddress[] mAddresses;
+        final long mExpires;
+
+        Entry(InetAddress[] addresses, long expires) {
+            mAddresses = addresses;
+            mExpires = expires;
+        }
+    }
+
+    private final long mTtlMs;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * @return The cache shared by the client's warm-up and {@link org.dforsyth.android.lob.stacks.OkHttpStack}
+     */
+    public static synchronized DnsCache getDefault() {
+        if (sDefault == null) {
+            sDefault = new DnsCache(DEFAULT_TTL_MS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param ttlMs How long a resolved address is used before resolving it again
+     */
+    public DnsCache(long ttlMs) {
+        if (ttlMs < 1) {
+            throw new IllegalArgumentException("ttlMs < 1");
+        }
+
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Resolve a host, from the cache if it hasn't expired. Blocks while resolving.
+     */
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(host);
+            if (entry != null && entry.mExpires > SystemClock.elapsedRealtime()) {
+                return entry.mAddresses;
+            }
+        }
+
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        synchronized (mEntries) {
+            mEntries.put(host, new Entry(addresses, SystemClock.elapsedRealtime() + mTtlMs));
+        }
+        return addresses;
+    }
+
+    /**
+     * Resolve a host into the cache, ignoring failures. Blocks while resolving.
+     *
+     * @return True if the host resolved
+     */
+    public boolean prefetch(String host) {
+        try {
+            lookup(host);
+            return true;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Forget every address, e.g. after switching networks
+     */
+    public void evictAll() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+}
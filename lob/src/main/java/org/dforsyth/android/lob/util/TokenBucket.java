@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, David Forsythe
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of Lob nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.dforsyth.android.lob.util;
+
+import android.os.SystemClock;
+
+/**
+ * A token bucket for rate limiting. Tokens refill continuously at a fixed rate up to a maximum
+ * burst size.
+ */
+public class TokenBucket {
+    private final double mTokensPerMs;
+    private final int mCapacity;
+
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param permitsPerSecond Sustained rate
+     * @param capacity Largest burst allowed after a quiet period
+     */
+    public TokenBucket(double permitsPerSecond, int capacity) {
+        if (permitsPerSecond <= 0 || capacity < 1) {
+            throw new IllegalArgumentException("Bad token bucket parameters");
+        }
+
+        mTokensPerMs = permitsPerSecond / 1000.0;
+        mCapacity = capacity;
+        mTokens = capacity;
+        mLastRefill = SystemClock.elapsedRealtime();
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mTokensPerMs);
+        mLastRefill = now;
+    }
+
+    /**
+     * Take a token if one is available
+     *
+     * @return 0 if a token was taken, otherwise the number of milliseconds until one will be
+     */
+    public synchronized long tryConsume() {
+        refill();
+
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return 0;
+        }
+
+        return Math.max(1, (long) Math.ceil((1 - mTokens) / mTokensPerMs));
+    }
+}